@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Different ways of getting the same data off the device, under a modelled bus
+ * latency: one transaction per encoder, versus one bulk transaction.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AccessPatternBenchmark
+{
+    @Param({"NONE", "HUB_400K", "HUB_100K"})
+    public String latency;
+
+    private OctoQuadDriver octoquad;
+
+    private final int[] positions = new int[OctoQuadBase.NUM_ENCODERS];
+    private final OctoQuadBase.EncoderDataBlock block = new OctoQuadBase.EncoderDataBlock();
+
+    @Setup
+    public void setup() throws Exception
+    {
+        OctoQuadSimulator simulator = new OctoQuadSimulator();
+        simulator.setBusCostModel((OctoQuadBusCostModel) OctoQuadBusCostModel.class.getField(latency).get(null));
+
+        octoquad = new OctoQuadDriver(simulator);
+        octoquad.getChipId();
+    }
+
+    @Benchmark
+    public void eightSinglePositions(Blackhole bh)
+    {
+        for(int i = OctoQuadBase.ENCODER_FIRST; i <= OctoQuadBase.ENCODER_LAST; i++)
+        {
+            bh.consume(octoquad.readSinglePosition(i));
+        }
+    }
+
+    @Benchmark
+    public int[] allPositions()
+    {
+        octoquad.readAllPositions(positions);
+        return positions;
+    }
+
+    @Benchmark
+    public OctoQuadBase.EncoderDataBlock allEncoderData()
+    {
+        octoquad.readAllEncoderData(block);
+        return block;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-call cost of decoding a full encoder register block, with no bus involved.
+ * The codec variants decode from a heap buffer, a direct buffer, and a buffer
+ * left in the wrong byte order; the byteBuffer variants reproduce how the driver
+ * used to decode, as a baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark
+{
+    private final byte[] frame = new byte[48];
+    private final int[] positions = new int[OctoQuadBase.NUM_ENCODERS];
+    private final OctoQuadBase.EncoderDataBlock block = new OctoQuadBase.EncoderDataBlock();
+
+    private ByteBuffer heap;
+    private ByteBuffer direct;
+    private ByteBuffer bigEndian;
+
+    @Setup
+    public void setup()
+    {
+        new Random(42).nextBytes(frame);
+
+        heap = OctoQuadCodec.wrap(frame);
+        direct = ByteBuffer.allocateDirect(frame.length).order(OctoQuadBase.OCTOQUAD_ENDIAN);
+        direct.put(frame);
+        bigEndian = ByteBuffer.wrap(frame);
+    }
+
+    @Benchmark
+    public OctoQuadBase.EncoderDataBlock codecHeap()
+    {
+        OctoQuadCodec.decodeEncoderBlock(heap, 0, block);
+        return block;
+    }
+
+    @Benchmark
+    public OctoQuadBase.EncoderDataBlock codecDirect()
+    {
+        OctoQuadCodec.decodeEncoderBlock(direct, 0, block);
+        return block;
+    }
+
+    @Benchmark
+    public OctoQuadBase.EncoderDataBlock codecSwappedOrder()
+    {
+        OctoQuadCodec.decodeEncoderBlock(bigEndian, 0, block);
+        return block;
+    }
+
+    @Benchmark
+    public int[] byteBufferInts()
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        buffer.order(OctoQuadBase.OCTOQUAD_ENDIAN);
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            positions[i] = buffer.getInt();
+        }
+        return positions;
+    }
+
+    @Benchmark
+    public int[] byteBufferIntPerRegister()
+    {
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            ByteBuffer buffer = ByteBuffer.wrap(frame, i*4, 4);
+            buffer.order(OctoQuadBase.OCTOQUAD_ENDIAN);
+            positions[i] = buffer.getInt();
+        }
+        return positions;
+    }
+}
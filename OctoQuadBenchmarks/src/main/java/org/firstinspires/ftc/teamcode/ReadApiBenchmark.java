@@ -0,0 +1,182 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Driver-side cost of each public read API, against a simulated device with no
+ * bus latency. Run with -prof gc to see the allocation rate of each call.
+ *
+ * {@link #transportReadOnly()} measures the simulated bus transaction on its own,
+ * so it can be subtracted out to see what the driver itself costs.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadApiBenchmark
+{
+    private OctoQuadSimulator simulator;
+    private OctoQuadDriver octoquad;
+    private OctoQuadDriver cachedOctoquad;
+
+    private final byte[] rx = new byte[48];
+    private final int[] positions = new int[OctoQuadBase.NUM_ENCODERS];
+    private final short[] velocities = new short[OctoQuadBase.NUM_ENCODERS];
+    private final OctoQuadBase.EncoderDataBlock block = new OctoQuadBase.EncoderDataBlock();
+    private final OctoQuadBase.TimestampedEncoderDataBlock timestampedBlock = new OctoQuadBase.TimestampedEncoderDataBlock();
+
+    @Setup
+    public void setup()
+    {
+        simulator = new OctoQuadSimulator();
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            simulator.setSignal(i, OctoQuadSimulator.constantVelocity(1000 * (i+1)));
+        }
+
+        octoquad = new OctoQuadDriver(simulator);
+        octoquad.getChipId();
+
+        cachedOctoquad = new OctoQuadDriver(simulator);
+        cachedOctoquad.enableCachedEncoderReads(1, TimeUnit.MILLISECONDS);
+    }
+
+    @Benchmark
+    public byte[] transportReadOnly()
+    {
+        simulator.read(0x0C, rx, 0, 48);
+        return rx;
+    }
+
+    @Benchmark
+    public int readSinglePosition()
+    {
+        return octoquad.readSinglePosition(3);
+    }
+
+    @Benchmark
+    public int[] readAllPositionsInto()
+    {
+        octoquad.readAllPositions(positions);
+        return positions;
+    }
+
+    @Benchmark
+    public int[] readAllPositions()
+    {
+        return octoquad.readAllPositions();
+    }
+
+    @Benchmark
+    public int[] readPositionRangeInto()
+    {
+        octoquad.readPositionRange(2, 5, positions);
+        return positions;
+    }
+
+    @Benchmark
+    public int[] readPositionRange()
+    {
+        return octoquad.readPositionRange(2, 5);
+    }
+
+    @Benchmark
+    public short readSingleVelocity()
+    {
+        return octoquad.readSingleVelocity(3);
+    }
+
+    @Benchmark
+    public short[] readAllVelocitiesInto()
+    {
+        octoquad.readAllVelocities(velocities);
+        return velocities;
+    }
+
+    @Benchmark
+    public short[] readAllVelocities()
+    {
+        return octoquad.readAllVelocities();
+    }
+
+    @Benchmark
+    public short[] readVelocityRangeInto()
+    {
+        octoquad.readVelocityRange(2, 5, velocities);
+        return velocities;
+    }
+
+    @Benchmark
+    public short[] readVelocityRange()
+    {
+        return octoquad.readVelocityRange(2, 5);
+    }
+
+    @Benchmark
+    public OctoQuadBase.EncoderDataBlock readAllEncoderDataInto()
+    {
+        octoquad.readAllEncoderData(block);
+        return block;
+    }
+
+    @Benchmark
+    public OctoQuadBase.EncoderDataBlock readAllEncoderData()
+    {
+        return octoquad.readAllEncoderData();
+    }
+
+    @Benchmark
+    public OctoQuadBase.TimestampedEncoderDataBlock readAllEncoderDataTimestamped()
+    {
+        octoquad.readAllEncoderDataTimestamped(timestampedBlock);
+        return timestampedBlock;
+    }
+
+    @Benchmark
+    public int readSinglePositionCached()
+    {
+        return cachedOctoquad.readSinglePosition(3);
+    }
+
+    @Benchmark
+    public OctoQuadBase.EncoderDataBlock readAllEncoderDataCached()
+    {
+        cachedOctoquad.readAllEncoderData(block);
+        return block;
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Turns the pulse widths reported by absolute encoder channels into angles, and
+ * counts whole turns across wrap-around so the loop can read a multi-turn
+ * absolute position directly.
+ *
+ * The scale for each channel is worked out once from its
+ * {@link OctoQuadBase.ChannelPulseWidthParams}. Every update the new reading is
+ * compared with the last one and taken the short way round, so a step of more
+ * than half a turn is a wrap. Readings outside the channel's pulse width range
+ * (e.g. an unplugged encoder) and steps larger than the maximum step are
+ * rejected as glitches; if the maximum step keeps being exceeded several samples
+ * in a row, the tracker assumes the encoder really did move that far and follows it.
+ *
+ * Add the tracker to an {@link OctoQuadSampler} to have it updated on the sampler
+ * thread, or call {@link #update(OctoQuadBase.EncoderDataBlock)} from the loop.
+ * Updates must only come from one thread, and channels should be configured
+ * before updates start. The getters may be called from any thread.
+ */
+public class OctoQuadAbsoluteEncoderTracker implements OctoQuadSampler.Listener
+{
+    private static final double TWO_PI = 2 * Math.PI;
+
+    private final boolean[] enabled = new boolean[OctoQuadBase.NUM_ENCODERS];
+    private final int[] minLengthUs = new int[OctoQuadBase.NUM_ENCODERS];
+    private final int[] maxLengthUs = new int[OctoQuadBase.NUM_ENCODERS];
+    private final double[] revsPerUs = new double[OctoQuadBase.NUM_ENCODERS];
+    private final int[] toleranceUs = new int[OctoQuadBase.NUM_ENCODERS];
+
+    // Only touched by the updating thread
+    private final boolean[] tracking = new boolean[OctoQuadBase.NUM_ENCODERS];
+    private final double[] lastFraction = new double[OctoQuadBase.NUM_ENCODERS];
+    private final int[] turns = new int[OctoQuadBase.NUM_ENCODERS];
+    private final int[] consecutiveJumps = new int[OctoQuadBase.NUM_ENCODERS];
+
+    /*
+     * Published for other threads. The multi-turn position is kept as a single
+     * double (stored as its raw bits) so the angle and turn count read from it
+     * always belong to the same update.
+     */
+    private final AtomicLongArray revolutions = new AtomicLongArray(OctoQuadBase.NUM_ENCODERS);
+    private final AtomicLongArray rejectedCounts = new AtomicLongArray(OctoQuadBase.NUM_ENCODERS);
+    private final AtomicInteger turnResetRequests = new AtomicInteger(0);
+
+    private double maxStepRevs = 0.25;
+    private int maxConsecutiveJumps = 3;
+
+    /**
+     * Create a tracker with no channels enabled; see
+     * {@link #setChannel(int, OctoQuadBase.ChannelPulseWidthParams)}
+     */
+    public OctoQuadAbsoluteEncoderTracker()
+    {
+    }
+
+    /**
+     * Create a tracker for all the pulse width channels of an OctoQuad,
+     * using its current channel bank config and pulse width parameters
+     * @param octoquad the OctoQuad the samples will come from
+     */
+    public OctoQuadAbsoluteEncoderTracker(OctoQuadBase octoquad)
+    {
+        OctoQuadBase.Parameters params = octoquad.getParameters();
+
+        int first;
+        switch (params.channelBankConfig)
+        {
+            case ALL_PULSE_WIDTH:
+                first = 0;
+                break;
+            case BANK1_QUADRATURE_BANK2_PULSE_WIDTH:
+                first = OctoQuadBase.NUM_ENCODERS / 2;
+                break;
+            default:
+                first = OctoQuadBase.NUM_ENCODERS;
+                break;
+        }
+
+        for(int i = first; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            setChannel(i, params.pulseWidthParams[i]);
+        }
+    }
+
+    /**
+     * Enable tracking on a channel
+     * @param idx the channel
+     * @param params the minimum/maximum pulse width the encoder on that channel reports
+     */
+    public void setChannel(int idx, OctoQuadBase.ChannelPulseWidthParams params)
+    {
+        if(params.min_length_us < 0 || params.max_length_us <= params.min_length_us)
+        {
+            throw new IllegalArgumentException("invalid pulse width params");
+        }
+
+        int span = params.max_length_us - params.min_length_us;
+
+        enabled[idx] = true;
+        minLengthUs[idx] = params.min_length_us;
+        maxLengthUs[idx] = params.max_length_us;
+        revsPerUs[idx] = 1.0 / span;
+        toleranceUs[idx] = Math.max(1, span / 20);
+        tracking[idx] = false;
+    }
+
+    /**
+     * Stop tracking a channel
+     * @param idx the channel
+     */
+    public void disableChannel(int idx)
+    {
+        enabled[idx] = false;
+    }
+
+    /**
+     * Set the largest step a channel may plausibly make between two updates,
+     * in revolutions (default 0.25). Must be less than half a turn, since
+     * anything larger is indistinguishable from a wrap.
+     * @param revs the largest plausible step between updates
+     */
+    public void setMaxStep(double revs)
+    {
+        if(!(revs > 0 && revs < 0.5))
+        {
+            throw new IllegalArgumentException("max step must be between 0 and 0.5 revolutions");
+        }
+
+        maxStepRevs = revs;
+    }
+
+    /**
+     * Set how many consecutive steps larger than the max step are rejected before
+     * the tracker follows the encoder anyway (default 3)
+     * @param count the number of consecutive rejections
+     */
+    public void setMaxConsecutiveJumps(int count)
+    {
+        if(count < 0)
+        {
+            throw new IllegalArgumentException("count < 0");
+        }
+
+        maxConsecutiveJumps = count;
+    }
+
+    @Override
+    public void onSample(OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        update(sample);
+    }
+
+    /**
+     * Process a new sample
+     * @param sample the latest encoder data
+     */
+    public void update(OctoQuadBase.EncoderDataBlock sample)
+    {
+        int resets = turnResetRequests.getAndSet(0);
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            if((resets & (1 << i)) != 0)
+            {
+                turns[i] = 0;
+                if(tracking[i])
+                {
+                    publish(i);
+                }
+            }
+
+            if(enabled[i])
+            {
+                updateChannel(i, sample.positions[i]);
+            }
+        }
+    }
+
+    /**
+     * @param idx the channel
+     * @return the angle within the current turn, in radians [0, 2pi)
+     */
+    public double getAngle(int idx)
+    {
+        double revs = getRevolutions(idx);
+        return (revs - Math.floor(revs)) * TWO_PI;
+    }
+
+    /**
+     * @param idx the channel
+     * @return the number of whole turns made
+     */
+    public int getTurns(int idx)
+    {
+        return (int) Math.floor(getRevolutions(idx));
+    }
+
+    /**
+     * @param idx the channel
+     * @return the multi-turn absolute position, in radians
+     */
+    public double getMultiTurnAngle(int idx)
+    {
+        return getRevolutions(idx) * TWO_PI;
+    }
+
+    /**
+     * @param idx the channel
+     * @return the multi-turn absolute position, in revolutions
+     */
+    public double getRevolutions(int idx)
+    {
+        return Double.longBitsToDouble(revolutions.get(idx));
+    }
+
+    /**
+     * @param idx the channel
+     * @return the number of readings rejected as out of range or implausible
+     */
+    public long getRejectedCount(int idx)
+    {
+        return rejectedCounts.get(idx);
+    }
+
+    /**
+     * Zero the turn count of a channel, keeping its angle within the turn.
+     * Takes effect on the next update, so may be called from any thread.
+     * @param idx the channel
+     */
+    public void resetTurns(int idx)
+    {
+        int current;
+        do
+        {
+            current = turnResetRequests.get();
+        }
+        while(!turnResetRequests.compareAndSet(current, current | (1 << idx)));
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    private void updateChannel(int idx, int lengthUs)
+    {
+        if(lengthUs < minLengthUs[idx] - toleranceUs[idx] || lengthUs > maxLengthUs[idx] + toleranceUs[idx])
+        {
+            rejectedCounts.incrementAndGet(idx);
+            return;
+        }
+
+        // Readings within tolerance of the range are clamped onto it, and
+        // the maximum pulse width is a full turn, i.e. back at 0
+        double fraction = (lengthUs - minLengthUs[idx]) * revsPerUs[idx];
+        if(fraction < 0 || fraction >= 1)
+        {
+            fraction = 0;
+        }
+
+        if(!tracking[idx])
+        {
+            tracking[idx] = true;
+            lastFraction[idx] = fraction;
+            consecutiveJumps[idx] = 0;
+            publish(idx);
+            return;
+        }
+
+        double step = fraction - lastFraction[idx];
+        int turnStep = 0;
+
+        if(step > 0.5)
+        {
+            step -= 1;
+            turnStep = -1;
+        }
+        else if(step < -0.5)
+        {
+            step += 1;
+            turnStep = 1;
+        }
+
+        if(Math.abs(step) > maxStepRevs && consecutiveJumps[idx] < maxConsecutiveJumps)
+        {
+            consecutiveJumps[idx]++;
+            rejectedCounts.incrementAndGet(idx);
+            return;
+        }
+
+        consecutiveJumps[idx] = 0;
+        turns[idx] += turnStep;
+        lastFraction[idx] = fraction;
+        publish(idx);
+    }
+
+    private void publish(int idx)
+    {
+        revolutions.set(idx, Double.doubleToRawLongBits(turns[idx] + lastFraction[idx]));
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Polls several OctoQuads, e.g. on different hub I2C buses, in parallel and
+ * combines their data into one snapshot of 8 channels per device. Channel k of
+ * the snapshot is channel k % 8 of device k / 8.
+ *
+ * Each device gets its own worker thread. The workers run in lockstep: every
+ * cycle they all start their bulk read at the same moment, and the last one to
+ * finish merges the per-device samples and publishes the snapshot. So the devices'
+ * samples are as close together in time as the buses allow, each snapshot reports
+ * how far apart they actually were, and a cycle takes as long as the slowest bus
+ * rather than the sum of them all.
+ *
+ * Snapshots are handed over through the same lock-free triple buffer as
+ * {@link OctoQuadSampler}, so there must be only one consumer thread.
+ */
+public class OctoQuadAggregator
+{
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;
+
+    /**
+     * The combined data of all devices from one cycle
+     */
+    public static class Snapshot
+    {
+        public final int[] positions;
+        public final short[] velocities;
+        public final long[] unwrappedPositions;
+
+        /**
+         * The best estimate of when each device latched its data; see
+         * {@link OctoQuadBase.TimestampedEncoderDataBlock#getSampleNanos()}
+         */
+        public final long[] sampleNanos;
+
+        /**
+         * The spread between the earliest and latest of the devices' sample times
+         */
+        public long skewNanos;
+
+        /**
+         * How long the cycle took, from starting the reads to the last one finishing
+         */
+        public long cycleNanos;
+
+        public Snapshot(int numDevices)
+        {
+            positions = new int[numDevices * OctoQuadBase.NUM_ENCODERS];
+            velocities = new short[numDevices * OctoQuadBase.NUM_ENCODERS];
+            unwrappedPositions = new long[numDevices * OctoQuadBase.NUM_ENCODERS];
+            sampleNanos = new long[numDevices];
+        }
+
+        /**
+         * @param device the device in question
+         * @return how much later than the earliest device this device sampled
+         */
+        public long getDeviceSkewNanos(int device)
+        {
+            long earliest = sampleNanos[0];
+            for(long nanos : sampleNanos)
+            {
+                earliest = Math.min(earliest, nanos);
+            }
+            return sampleNanos[device] - earliest;
+        }
+    }
+
+    private final OctoQuadBase[] devices;
+    private final OctoQuadBase.TimestampedEncoderDataBlock[] samples;
+    private final Snapshot[] buffers = new Snapshot[3];
+
+    /*
+     * Index of the most recently published buffer, plus the FRESH flag
+     * if the consumer has not yet picked it up.
+     */
+    private final AtomicInteger published = new AtomicInteger(1);
+    private int backIdx = 0;  // only touched by the worker completing a cycle
+    private int frontIdx = 2; // only touched by the consumer thread
+
+    private volatile boolean running = false;
+    private volatile long cyclePeriodNanos = 0;
+    private volatile long cycleCount = 0;
+    private final AtomicLong errorCount = new AtomicLong(0);
+    private volatile RuntimeException lastError = null;
+
+    // Only touched by the workers, which the barrier keeps in step
+    private long cycleStartNanos;
+    private long nextCycleNanos;
+
+    private CyclicBarrier barrier = null;
+    private Thread[] threads = null;
+
+    public OctoQuadAggregator(OctoQuadBase... devices)
+    {
+        if(devices.length == 0)
+        {
+            throw new IllegalArgumentException("no devices");
+        }
+
+        this.devices = devices.clone();
+        samples = new OctoQuadBase.TimestampedEncoderDataBlock[devices.length];
+
+        for(int i = 0; i < devices.length; i++)
+        {
+            samples[i] = new OctoQuadBase.TimestampedEncoderDataBlock();
+        }
+
+        for(int i = 0; i < buffers.length; i++)
+        {
+            buffers[i] = new Snapshot(devices.length);
+        }
+    }
+
+    /**
+     * @return the number of devices being aggregated
+     */
+    public int getDeviceCount()
+    {
+        return devices.length;
+    }
+
+    /**
+     * Set the minimum time between the start of consecutive cycles.
+     * By default (0) cycles run back-to-back as fast as the slowest bus allows.
+     * @param period the minimum cycle period
+     * @param unit the unit of period
+     */
+    public void setCyclePeriod(long period, TimeUnit unit)
+    {
+        if(period < 0)
+        {
+            throw new IllegalArgumentException("period < 0");
+        }
+
+        cyclePeriodNanos = unit.toNanos(period);
+    }
+
+    /**
+     * Start the worker threads. Has no effect if already running.
+     */
+    public synchronized void start()
+    {
+        if(running)
+        {
+            return;
+        }
+
+        running = true;
+        cycleStartNanos = System.nanoTime();
+        nextCycleNanos = cycleStartNanos;
+
+        barrier = new CyclicBarrier(devices.length, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                completeCycle();
+            }
+        });
+
+        threads = new Thread[devices.length];
+        for(int i = 0; i < devices.length; i++)
+        {
+            final int device = i;
+            threads[i] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    workerLoop(device);
+                }
+            }, "OctoQuad aggregator " + i);
+            threads[i].setDaemon(true);
+            threads[i].start();
+        }
+    }
+
+    /**
+     * Stop the worker threads and wait for them to exit.
+     * The last published snapshot remains available.
+     */
+    public synchronized void stop()
+    {
+        if(!running)
+        {
+            return;
+        }
+
+        running = false;
+
+        try
+        {
+            for(Thread thread : threads)
+            {
+                // A worker still mid-read may reach the barrier after it's been
+                // reset, so keep breaking it until every worker has left
+                while(thread.isAlive())
+                {
+                    barrier.reset();
+                    thread.interrupt();
+                    thread.join(10);
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        threads = null;
+        barrier = null;
+    }
+
+    /**
+     * @return whether the worker threads are running
+     */
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * @return whether a snapshot has been published which the consumer has not yet picked up
+     */
+    public boolean hasFreshSnapshot()
+    {
+        return (published.get() & FRESH) != 0;
+    }
+
+    /**
+     * Get the most recently published snapshot. This never blocks.
+     * The returned snapshot is owned by the consumer until the next call
+     * to this method; the workers will not write to it in the meantime.
+     * @return the most recently published snapshot (all zero if none yet)
+     */
+    public Snapshot getLatest()
+    {
+        if((published.get() & FRESH) != 0)
+        {
+            frontIdx = published.getAndSet(frontIdx) & INDEX_MASK;
+        }
+
+        return buffers[frontIdx];
+    }
+
+    /**
+     * @return the number of snapshots published since this aggregator was created
+     */
+    public long getCycleCount()
+    {
+        return cycleCount;
+    }
+
+    /**
+     * @return the number of device reads which threw an exception
+     */
+    public long getErrorCount()
+    {
+        return errorCount.get();
+    }
+
+    /**
+     * @return the most recent exception thrown by a device read, or null if none
+     */
+    public RuntimeException getLastError()
+    {
+        return lastError;
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    private void workerLoop(int device)
+    {
+        CyclicBarrier barrier = this.barrier;
+
+        while(running)
+        {
+            long wait;
+            while(running && (wait = nextCycleNanos - System.nanoTime()) > 0)
+            {
+                LockSupport.parkNanos(wait);
+            }
+
+            if(!running)
+            {
+                break;
+            }
+
+            try
+            {
+                devices[device].readAllEncoderDataTimestamped(samples[device]);
+            }
+            catch (RuntimeException e)
+            {
+                // The device's previous sample is carried into this cycle's snapshot
+                lastError = e;
+                errorCount.incrementAndGet();
+            }
+
+            try
+            {
+                barrier.await();
+            }
+            catch (InterruptedException e)
+            {
+                break;
+            }
+            catch (BrokenBarrierException e)
+            {
+                break;
+            }
+        }
+    }
+
+    /*
+     * Run by the last worker to reach the barrier, while all the others wait on it
+     */
+    private void completeCycle()
+    {
+        long now = System.nanoTime();
+        Snapshot snapshot = buffers[backIdx];
+
+        long earliest = Long.MAX_VALUE;
+        long latest = Long.MIN_VALUE;
+
+        for(int i = 0; i < devices.length; i++)
+        {
+            OctoQuadBase.TimestampedEncoderDataBlock sample = samples[i];
+            int base = i * OctoQuadBase.NUM_ENCODERS;
+
+            System.arraycopy(sample.positions, 0, snapshot.positions, base, OctoQuadBase.NUM_ENCODERS);
+            System.arraycopy(sample.velocities, 0, snapshot.velocities, base, OctoQuadBase.NUM_ENCODERS);
+            System.arraycopy(sample.unwrappedPositions, 0, snapshot.unwrappedPositions, base, OctoQuadBase.NUM_ENCODERS);
+
+            long sampleNanos = sample.getSampleNanos();
+            snapshot.sampleNanos[i] = sampleNanos;
+            earliest = Math.min(earliest, sampleNanos);
+            latest = Math.max(latest, sampleNanos);
+        }
+
+        snapshot.skewNanos = latest - earliest;
+        snapshot.cycleNanos = now - cycleStartNanos;
+
+        backIdx = published.getAndSet(backIdx | FRESH) & INDEX_MASK;
+        cycleCount++;
+
+        // Don't try to catch up with a burst of cycles if a bus stalled
+        long period = cyclePeriodNanos;
+        nextCycleNanos = Math.max(nextCycleNanos + period, now);
+        cycleStartNanos = Math.max(nextCycleNanos, now);
+    }
+}
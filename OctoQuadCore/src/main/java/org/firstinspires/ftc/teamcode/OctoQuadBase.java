@@ -0,0 +1,635 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The OctoQuad driver API, along with the constants and data types it uses.
+ * This is implemented by {@link OctoQuadDriver}, which talks to the device over
+ * any {@link OctoQuadTransport}, and by the FTC hardware device class which
+ * wraps it.
+ */
+public interface OctoQuadBase
+{
+    int I2C_ADDRESS = 0x30;
+    byte OCTOQUAD_CHIP_ID = 0x51;
+    int SUPPORTED_FW_VERSION_MAJ = 2;
+    ByteOrder OCTOQUAD_ENDIAN = ByteOrder.LITTLE_ENDIAN;
+    int ENCODER_FIRST = 0;
+    int ENCODER_LAST = 7;
+    int NUM_ENCODERS = 8;
+    int VELOCITY_MEASUREMENT_INTERVAL_MIN = 1;
+    int VELOCITY_MEASUREMENT_INTERVAL_MAX = 255;
+    int PULSE_WIDTH_LENGTH_MIN = 1; // us
+    int PULSE_WIDTH_LENGTH_MAX = 0xFFFF;
+
+    /**
+     * Reads the CHIP_ID register of the OctoQuad
+     * @return the value in the CHIP_ID register of the OctoQuad
+     */
+    byte getChipId();
+
+    /**
+     * Class to represent an OctoQuad firmware version
+     */
+    class FirmwareVersion
+    {
+        public final int maj;
+        public final int min;
+        public final int eng;
+
+        public FirmwareVersion(int maj, int min, int eng)
+        {
+            this.maj = maj;
+            this.min = min;
+            this.eng = eng;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%d.%d.%d", maj, min, eng);
+        }
+    }
+
+    /**
+     * Get the firmware version running on the OctoQuad
+     * @return the firmware version running on the OctoQuad
+     */
+    FirmwareVersion getFirmwareVersion();
+
+    /**
+     * Read a single position from the OctoQuad
+     * Depending on the channel bank configuration, this may
+     * either be quadrature step count, or pulse width.
+     * @param idx the index of the encoder to read
+     * @return the position for the specified encoder
+     */
+    int readSinglePosition(int idx);
+
+    /**
+     * Reads all positions from the OctoQuad, writing the data into
+     * an existing int[] object. The previous values are destroyed.
+     * Depending on the channel bank configuration, this may
+     * either be quadrature step count, or pulse width.
+     * @param out the int[] object to fill with new data
+     */
+    void readAllPositions(int[] out);
+
+    /**
+     * Reads all positions from the OctoQuad
+     * Depending on the channel bank configuration, this may
+     * either be quadrature step count, or pulse width.
+     * This allocates a new array on every call; prefer
+     * {@link #readAllPositions(int[])} in a tight loop.
+     * @return an int[] object with the new data
+     */
+    int[] readAllPositions();
+
+    /**
+     * Read a selected range of encoders
+     * Depending on the channel bank configuration, this may
+     * either be quadrature step count, or pulse width.
+     * @param idxFirst the first encoder (inclusive)
+     * @param idxLast the last encoder (inclusive)
+     * @return an array containing the requested encoder positions
+     */
+    int[] readPositionRange(int idxFirst, int idxLast);
+
+    /**
+     * Read a selected range of encoders, writing the data into the start
+     * of an existing int[] object.
+     * Depending on the channel bank configuration, this may
+     * either be quadrature step count, or pulse width.
+     * @param idxFirst the first encoder (inclusive)
+     * @param idxLast the last encoder (inclusive)
+     * @param out the int[] object to fill with new data; must hold at least idxLast-idxFirst+1 values
+     */
+    void readPositionRange(int idxFirst, int idxLast, int[] out);
+
+    /**
+     * Read a single position from the OctoQuad, unwrapped to 64 bits.
+     * The driver accumulates the change between successive 32-bit readings
+     * of each channel, so the result keeps counting in the same direction
+     * where the raw register would roll over from 2147483647 to -2147483648.
+     * Every position read feeds the accumulator, and resetting a position
+     * resets it too.
+     * @param idx the index of the encoder to read
+     * @return the unwrapped position for the specified encoder
+     */
+    long readSingleUnwrappedPosition(int idx);
+
+    /**
+     * Reads all positions from the OctoQuad, unwrapped to 64 bits
+     * (see {@link #readSingleUnwrappedPosition(int)}), into an existing long[] object
+     * @param out the long[] object to fill with new data
+     */
+    void readAllUnwrappedPositions(long[] out);
+
+    /**
+     * Reset a single encoder in the OctoQuad firmware
+     * @param idx the index of the encoder to reset
+     */
+    void resetSinglePosition(int idx);
+
+    /**
+     * Reset all encoder counts in the OctoQuad firmware
+     */
+    void resetAllPositions();
+
+    /**
+     * Reset multiple encoders in the OctoQuad firmware in one command
+     * @param resets the encoders to be reset
+     */
+    void resetMultiplePositions(boolean[] resets);
+
+    /**
+     * Reset multiple encoders in the OctoQuad firmware in one command
+     * @param indices the indices of the encoders to reset
+     */
+    void resetMultiplePositions(int... indices);
+
+    /**
+     * Set the direction for a single encoder
+     * This parameter will NOT be retained across power cycles, unless
+     * you call {@link #saveParametersToFlash()} ()}
+     * @param idx the index of the encoder
+     * @param reverse direction
+     */
+    void setSingleEncoderDirection(int idx, boolean reverse);
+
+    /**
+     * Get the direction for a single encoder. This is answered from the
+     * driver's parameter shadow (see {@link #getParameters()})
+     * @param idx the index of the encoder
+     * @return whether the encoder is reversed
+     */
+    boolean getSingleEncoderDirection(int idx);
+
+    /**
+     * Set the direction for all encoders
+     * This parameter will NOT be retained across power cycles, unless
+     * you call {@link #saveParametersToFlash()} ()}
+     * @param reverse 8-length direction array
+     */
+    void setAllEncoderDirections(boolean[] reverse);
+
+    /**
+     * Read a single velocity from the OctoQuad
+     * NOTE: if using an absolute pulse width encoder, in order to get sane
+     * velocity data, you must set the channel min/max pulse width parameter.
+     * @param idx the index of the encoder to read
+     * @return the velocity for the specified encoder
+     */
+    short readSingleVelocity(int idx);
+
+    /**
+     * Reads all velocities from the OctoQuad, writing the data into
+     * an existing short[] object. The previous values are destroyed.
+     * NOTE: if using an absolute pulse width encoder, in order to get sane
+     * velocity data, you must set the channel min/max pulse width parameter.
+     * @param out the short[] object to fill with new data
+     */
+    void readAllVelocities(short[] out);
+
+    /**
+     * Reads all velocities from the OctoQuad
+     * NOTE: if using an absolute pulse width encoder, in order to get sane
+     * velocity data, you must set the channel min/max pulse width parameter.
+     * This allocates a new array on every call; prefer
+     * {@link #readAllVelocities(short[])} in a tight loop.
+     * @return a short[] object with the new data
+     */
+    short[] readAllVelocities();
+
+    /**
+     * Read a selected range of encoder velocities
+     * NOTE: if using an absolute pulse width encoder, in order to get sane
+     * velocity data, you must set the channel min/max pulse width parameter.
+     * @param idxFirst the first encoder (inclusive)
+     * @param idxLast the last encoder (inclusive)
+     * @return an array containing the requested velocities
+     */
+    short[] readVelocityRange(int idxFirst, int idxLast);
+
+    /**
+     * Read a selected range of encoder velocities, writing the data into
+     * the start of an existing short[] object.
+     * NOTE: if using an absolute pulse width encoder, in order to get sane
+     * velocity data, you must set the channel min/max pulse width parameter.
+     * @param idxFirst the first encoder (inclusive)
+     * @param idxLast the last encoder (inclusive)
+     * @param out the short[] object to fill with new data; must hold at least idxLast-idxFirst+1 values
+     */
+    void readVelocityRange(int idxFirst, int idxLast, short[] out);
+
+    class EncoderDataBlock
+    {
+        public int[] positions = new int[NUM_ENCODERS];
+        public short[] velocities = new short[NUM_ENCODERS];
+
+        /**
+         * The positions, unwrapped past the int32 range (see {@link #readAllUnwrappedPositions(long[])})
+         */
+        public long[] unwrappedPositions = new long[NUM_ENCODERS];
+    }
+
+    /**
+     * Reads all encoder data from the OctoQuad, writing the data into
+     * an existing {@link EncoderDataBlock} object. The previous values are destroyed.
+     * @param out the {@link EncoderDataBlock} object to fill with new data
+     */
+    void readAllEncoderData(EncoderDataBlock out);
+
+    /**
+     * An {@link EncoderDataBlock} which also records when the data was sampled,
+     * as a window of host {@link System#nanoTime()} values. The OctoQuad latched
+     * the data somewhere between requestNanos and responseNanos.
+     */
+    class TimestampedEncoderDataBlock extends EncoderDataBlock
+    {
+        /**
+         * {@link System#nanoTime()} just before the read request was issued
+         */
+        public long requestNanos;
+
+        /**
+         * {@link System#nanoTime()} at which the device client received the response
+         */
+        public long responseNanos;
+
+        /**
+         * @return the best single estimate of when the data was sampled (the middle of the request/response window)
+         */
+        public long getSampleNanos()
+        {
+            return requestNanos + (responseNanos - requestNanos) / 2;
+        }
+    }
+
+    /**
+     * Reads all encoder data from the OctoQuad, writing the data and the
+     * host time window in which it was sampled into an existing
+     * {@link TimestampedEncoderDataBlock} object. The previous values are destroyed.
+     * If cached encoder reads are enabled, the timestamps are those of
+     * the cached data, not of this call.
+     * @param out the {@link TimestampedEncoderDataBlock} object to fill with new data
+     */
+    void readAllEncoderDataTimestamped(TimestampedEncoderDataBlock out);
+
+    /**
+     * Reads just the positions and velocities chosen by a {@link OctoQuadReadPlan},
+     * using the plan's reads, into an existing {@link EncoderDataBlock} object.
+     * Only the planned values (and their unwrapped positions) are written; the rest
+     * are left as they were. The timestamps are written too if out is a
+     * {@link TimestampedEncoderDataBlock}. If cached encoder reads are enabled,
+     * the values come from the cache instead.
+     * @param plan the reads to make
+     * @param out the {@link EncoderDataBlock} object to fill with new data
+     */
+    void readEncoderData(OctoQuadReadPlan plan, EncoderDataBlock out);
+
+    /**
+     * Reads all encoder data from the OctoQuad
+     * This allocates a new {@link EncoderDataBlock} on every call; prefer
+     * {@link #readAllEncoderData(EncoderDataBlock)} in a tight loop.
+     * @return a {@link EncoderDataBlock} object with the new data
+     */
+    EncoderDataBlock readAllEncoderData();
+
+    /**
+     * Set the velocity sample interval for a single encoder
+     * This parameter will NOT be retained across power cycles, unless
+     * you call {@link #saveParametersToFlash()} ()}
+     * @param idx the index of the encoder in question
+     * @param intvlms the sample interval in milliseconds
+     */
+    void setSingleVelocitySampleInterval(int idx, int intvlms);
+
+    /**
+     * Set the velocity sample interval for all encoders
+     * This parameter will NOT be retained across power cycles, unless
+     * you call {@link #saveParametersToFlash()} ()}
+     * @param intvlms the sample interval in milliseconds
+     */
+    void setAllVelocitySampleIntervals(int intvlms);
+
+    /**
+     * Set the velocity sample intervals for all encoders
+     * This parameter will NOT be retained across power cycles, unless
+     * you call {@link #saveParametersToFlash()} ()}
+     * @param intvlms the sample intervals in milliseconds
+     */
+    void setAllVelocitySampleIntervals(int[] intvlms);
+
+    /**
+     * Read a single velocity sample interval, from the driver's parameter shadow
+     * @param idx the index of the encoder in question
+     * @return the velocity sample interval
+     */
+    int getSingleVelocitySampleInterval(int idx);
+
+    /**
+     * Reads all velocity sample intervals, from the driver's parameter shadow
+     * @return all velocity sample intervals from the OctoQuad
+     */
+    int[] getAllVelocitySampleIntervals();
+
+    class ChannelPulseWidthParams
+    {
+        public int min_length_us;
+        public int max_length_us;
+
+        public ChannelPulseWidthParams() {};
+
+        public ChannelPulseWidthParams(int min_length_us, int max_length_us) {
+            this.min_length_us = min_length_us;
+            this.max_length_us = max_length_us;
+        }
+    }
+
+    /**
+     * Configure the minimum/maximum pulse width reported by an absolute encoder
+     * which is connected to a given channel, to allow the ability to provide
+     * accurate velocity data.
+     * These parameters will NOT be retained across power cycles, unless
+     * you call {@link #saveParametersToFlash()} ()}
+     * @param idx the channel in question
+     * @param params minimum/maximum pulse width
+     */
+    void setSingleChannelPulseWidthParams(int idx, ChannelPulseWidthParams params);
+
+    /**
+     * Get the currently set minimum/maxiumum pulse width for an encoder
+     * channel, to allow sane velocity data. This is answered from the
+     * driver's parameter shadow.
+     * @param idx the channel in question
+     * @return minimum/maximum pulse width
+     */
+    ChannelPulseWidthParams getSingleChannelPulseWidthParams(int idx);
+
+    /**
+     * Run the firmware's internal reset routine. This reloads the parameters
+     * from flash, so the driver's parameter shadow is invalidated too.
+     */
+    void resetEverything();
+
+    enum ChannelBankConfig
+    {
+        /**
+         * Both channel banks are configured for Quadrature input
+         */
+        ALL_QUADRATURE(0),
+
+        /**
+         * Both channel banks are configured for pulse width input
+         */
+        ALL_PULSE_WIDTH(1),
+
+        /**
+         * Bank 1 (channels 0-3) is configured for Quadrature input;
+         * Bank 2 (channels 4-7) is configured for pulse width input.
+         */
+        BANK1_QUADRATURE_BANK2_PULSE_WIDTH(2);
+
+        public byte bVal;
+
+        ChannelBankConfig(int bVal)
+        {
+            this.bVal = (byte) bVal;
+        }
+    }
+
+    /**
+     * Configures the OctoQuad's channel banks
+     * This parameter will NOT be retained across power cycles, unless
+     * you call {@link #saveParametersToFlash()} ()}
+     * @param config the channel bank configuration to use
+     */
+    void setChannelBankConfig(ChannelBankConfig config);
+
+    /**
+     * Get the current channel bank configuration, from the driver's parameter shadow
+     * @return the current channel bank configuration
+     */
+    ChannelBankConfig getChannelBankConfig();
+
+    enum I2cRecoveryMode
+    {
+        /**
+         * Does not perform any active attempts to recover a wedged I2C bus
+         */
+        NONE(0),
+
+        /**
+         * The OctoQuad will reset its I2C peripheral if 50ms elapses between
+         * byte transmissions or between bytes and start/stop conditions
+         */
+        MODE_1_PERIPH_RST_ON_FRAME_ERR(1),
+
+        /**
+         * Mode 1 actions + the OctoQuad will toggle the clock line briefly,
+         * once, after 1500ms of no communications.
+         */
+        MODE_2_M1_PLUS_SCL_IDLE_ONESHOT_TGL(2);
+
+        public byte bVal;
+
+        I2cRecoveryMode(int bVal)
+        {
+            this.bVal = (byte) bVal;
+        }
+    }
+
+    /**
+     * Configures the OctoQuad to use the specified I2C recovery mode.
+     * This parameter will NOT be retained across power cycles, unless
+     * you call {@link #saveParametersToFlash()} ()}
+     * @param mode the recovery mode to use
+     */
+    void setI2cRecoveryMode(I2cRecoveryMode mode);
+
+    /**
+     * Get the currently configured I2C recovery mode, from the driver's parameter shadow
+     * @return the currently configured I2C recovery mode
+     */
+    I2cRecoveryMode getI2cRecoveryMode();
+
+    /**
+     * Stores the current state of parameters to flash, to be applied at next boot.
+     * This blocks for as long as the write is allowed to take (100ms); see
+     * {@link #saveParametersToFlashAsync()} to carry on in the meantime.
+     */
+    void saveParametersToFlash();
+
+    /**
+     * A flash save which may still be in progress
+     */
+    interface FlashSave
+    {
+        /**
+         * Check whether the save has completed. This never blocks, and doesn't
+         * touch the bus.
+         * @return whether the save has completed
+         */
+        boolean isDone();
+
+        /**
+         * Wait for the save to complete. Returns early, with the thread's
+         * interrupt flag still set, if the thread is interrupted.
+         */
+        void await();
+    }
+
+    /**
+     * Start storing the current state of parameters to flash, to be applied at
+     * next boot, and return straight away. The firmware gives no indication of when
+     * the write has finished, so the save counts as complete once the 100ms the
+     * driver has always allowed for it have passed.
+     * Encoder reads carry on as normal while the save is in progress; any other
+     * command waits for it to complete first, since the firmware can't take
+     * commands while it's writing flash.
+     * @return a handle with which to check for, or wait for, completion
+     */
+    FlashSave saveParametersToFlashAsync();
+
+    /**
+     * A complete set of the OctoQuad's configurable parameters
+     */
+    class Parameters
+    {
+        public boolean[] reversed = new boolean[NUM_ENCODERS];
+        public int[] velocitySampleIntervals = new int[NUM_ENCODERS];
+        public ChannelPulseWidthParams[] pulseWidthParams = new ChannelPulseWidthParams[NUM_ENCODERS];
+        public ChannelBankConfig channelBankConfig = ChannelBankConfig.ALL_QUADRATURE;
+        public I2cRecoveryMode i2cRecoveryMode = I2cRecoveryMode.NONE;
+
+        public Parameters()
+        {
+            for(int i = 0; i < NUM_ENCODERS; i++)
+            {
+                pulseWidthParams[i] = new ChannelPulseWidthParams();
+            }
+        }
+
+        public Parameters(Parameters other)
+        {
+            this();
+            copyFrom(other);
+        }
+
+        public void copyFrom(Parameters other)
+        {
+            for(int i = 0; i < NUM_ENCODERS; i++)
+            {
+                reversed[i] = other.reversed[i];
+                velocitySampleIntervals[i] = other.velocitySampleIntervals[i];
+                pulseWidthParams[i].min_length_us = other.pulseWidthParams[i].min_length_us;
+                pulseWidthParams[i].max_length_us = other.pulseWidthParams[i].max_length_us;
+            }
+
+            channelBankConfig = other.channelBankConfig;
+            i2cRecoveryMode = other.i2cRecoveryMode;
+        }
+    }
+
+    /**
+     * Get a copy of every device parameter. The driver keeps a shadow copy of the
+     * parameters, which is fetched from the OctoQuad in one go the first time any
+     * parameter is asked for and kept up to date by every setter, so parameter
+     * queries don't cost any I2C traffic after that.
+     * @return a copy of the current device parameters
+     */
+    Parameters getParameters();
+
+    /**
+     * Re-read every parameter from the OctoQuad into the driver's parameter shadow now
+     */
+    void resyncParameters();
+
+    /**
+     * Discard the driver's parameter shadow, so that it is re-read from the OctoQuad
+     * the next time a parameter is asked for. Use this if the OctoQuad may have
+     * been power cycled, or reconfigured by something other than this driver.
+     */
+    void invalidateParameters();
+
+    /**
+     * Bring the OctoQuad's configuration to target as a single transaction: the
+     * whole of target is validated before anything is sent, and then only the
+     * parameters which differ from the current ones are written. Parameters
+     * which are already right cost no I2C traffic, so this is cheap to call at
+     * every opmode init:
+     *
+     * <pre>
+     * OctoQuad.Parameters config = octoquad.getParameters();
+     * config.channelBankConfig = OctoQuad.ChannelBankConfig.ALL_QUADRATURE;
+     * config.reversed[2] = true;
+     * octoquad.applyParameters(config, true);
+     * </pre>
+     *
+     * @param target the complete configuration wanted
+     * @param saveToFlash whether to save the parameters to flash if anything was changed.
+     *                    Flash is compared against the current parameters, not read back,
+     *                    so changes made earlier without saving are not detected. The save
+     *                    is started as with {@link #saveParametersToFlashAsync()}, and
+     *                    isn't waited for.
+     * @return the number of parameters which were changed
+     */
+    int applyParameters(Parameters target, boolean saveToFlash);
+
+    /**
+     * Serve encoder position and velocity reads from a cached copy of the whole
+     * ENCODER_0_POSITION..ENCODER_7_VELOCITY block, rather than issuing a new
+     * I2C transaction for every call. The block is also registered as the device
+     * client's REPEAT read window, so clients which refresh their read window in
+     * the background can satisfy the refresh without a new transaction either.
+     * The cached block is re-read once it is older than maxAge, or after any
+     * encoder reset. Use {@link #getEncoderDataAgeNanos()} to find out how old
+     * the data returned by the last read was.
+     * @param maxAge the maximum age of cached data before it is re-read
+     * @param unit the unit of maxAge
+     */
+    void enableCachedEncoderReads(long maxAge, TimeUnit unit);
+
+    /**
+     * Go back to issuing a new I2C transaction for every encoder read,
+     * and restore the device client's previous read window.
+     */
+    void disableCachedEncoderReads();
+
+    /**
+     * @return whether encoder reads are being served from a cached block
+     */
+    boolean isCachedEncoderReadsEnabled();
+
+    /**
+     * Get how long ago the data returned by the most recent encoder position
+     * or velocity read was captured from the OctoQuad. Without cached reads this
+     * is simply the time since that read completed.
+     * @return the age of the most recently returned encoder data in nanoseconds,
+     *         or -1 if no encoder data has been read yet
+     */
+    long getEncoderDataAgeNanos();
+}
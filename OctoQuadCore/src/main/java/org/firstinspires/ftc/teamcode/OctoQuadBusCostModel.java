@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+/**
+ * Time taken by an I2C transaction with the OctoQuad: a fixed per-transaction
+ * overhead plus a per-byte transfer time. {@link OctoQuadReadPlan} uses it to
+ * choose which reads to make, and {@link OctoQuadSimulator} to delay its
+ * simulated transactions.
+ */
+public class OctoQuadBusCostModel
+{
+    public static final OctoQuadBusCostModel NONE = new OctoQuadBusCostModel(0, 0);
+
+    /**
+     * Roughly a hub I2C port at the default 100 kHz: 9 bit times per byte, plus command round trip overhead
+     */
+    public static final OctoQuadBusCostModel HUB_100K = new OctoQuadBusCostModel(1000000, 90000);
+
+    /**
+     * Roughly a hub I2C port switched to 400 kHz
+     */
+    public static final OctoQuadBusCostModel HUB_400K = new OctoQuadBusCostModel(1000000, 22500);
+
+    public final long transactionNanos;
+    public final long perByteNanos;
+
+    public OctoQuadBusCostModel(long transactionNanos, long perByteNanos)
+    {
+        this.transactionNanos = transactionNanos;
+        this.perByteNanos = perByteNanos;
+    }
+
+    /**
+     * @param numBytes the number of bytes transferred
+     * @return the time taken by a transaction of that many bytes, in nanoseconds
+     */
+    public long nanosFor(int numBytes)
+    {
+        return transactionNanos + perByteNanos * numBytes;
+    }
+}
@@ -0,0 +1,1214 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Makes an OctoQuad safe to share between threads, e.g. a sampler, a control
+ * loop and a logger. {@link OctoQuadDriver} keeps state between calls (the
+ * parameter shadow, the position unwrapping, the encoder cache) and many calls are
+ * several bus transactions, such as writing a read parameter command and then
+ * reading the answer back, so calls from two threads could interleave and corrupt
+ * each other.
+ *
+ * An executor owns the wrapped device and runs every call on its own thread,
+ * one at a time. Callers hand their calls over through a lock-free queue and wait
+ * for the result, so calls are serialized without anyone holding a lock on the bus.
+ *
+ * Every read of the whole encoder block ({@link #readAllEncoderData(EncoderDataBlock)},
+ * {@link #readAllEncoderDataTimestamped(TimestampedEncoderDataBlock)} and the
+ * background polls) also publishes its sample, and {@link #readSnapshot(TimestampedEncoderDataBlock)}
+ * copies out the latest one without blocking or touching the bus. Reads of part of
+ * the block, such as {@link #readAllPositions(int[])} or a plan, don't. With
+ * {@link #setPollPeriod(long, TimeUnit)}, the executor keeps the snapshot fresh
+ * by itself between calls. The executor reads into one reused block and publishes
+ * it as primitive fields behind a version stamp, so none of this allocates.
+ *
+ * Single-channel reads ({@link #readSinglePosition(int)}, {@link #readSingleVelocity(int)}
+ * and {@link #readSingleUnwrappedPosition(int)}) are coalesced in the style of
+ * singleflight: when several are waiting, one bulk read is made and every
+ * single-channel read submitted before it started is answered from the same
+ * frame, so several subsystems each reading their own encoder cost one transaction
+ * rather than one each. A single-channel read with none waiting behind it is made
+ * on its own, as that is the cheapest transaction.
+ *
+ * {@link #setCoalescingWindow(long, TimeUnit)} covers reads made one after another,
+ * e.g. a loop whose subsystems each read their own channel: single-channel reads
+ * are answered straight from a snapshot read recently enough, without queueing at
+ * all, and one which finds the snapshot stale makes a bulk read to refresh it. So
+ * a loop reading all 8 channels within the window costs one transaction.
+ *
+ * <pre>
+ * OctoQuadBusExecutor octoquad = new OctoQuadBusExecutor(hardwareMap.get(OctoQuad.class, "octoquad"));
+ * </pre>
+ */
+public class OctoQuadBusExecutor implements OctoQuadBase
+{
+    private static final long SHUTDOWN_CHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    /*
+     * A call waiting to be run on the executor thread
+     */
+    private abstract static class Task<T>
+    {
+        T result;
+        Throwable error;
+        Thread waiter;
+        volatile boolean done;
+
+        abstract T run(OctoQuadBase device);
+    }
+
+    private static final int POSITION = 0;
+    private static final int VELOCITY = 1;
+    private static final int UNWRAPPED_POSITION = 2;
+
+    /*
+     * A single-channel read, which can be answered from any bulk read made for it or alongside it
+     */
+    private final class SingleChannelRead extends Task<Long>
+    {
+        final int idx;
+        final int field;
+        final long sequence;
+
+        SingleChannelRead(int idx, int field, long sequence)
+        {
+            this.idx = idx;
+            this.field = field;
+            this.sequence = sequence;
+        }
+
+        @Override
+        Long run(OctoQuadBase device)
+        {
+            switch (field)
+            {
+                case POSITION:
+                    return (long) device.readSinglePosition(idx);
+                case VELOCITY:
+                    return (long) device.readSingleVelocity(idx);
+                default:
+                    return device.readSingleUnwrappedPosition(idx);
+            }
+        }
+    }
+
+    private final OctoQuadBase device;
+    private final ConcurrentLinkedQueue<Task<?>> queue = new ConcurrentLinkedQueue<Task<?>>();
+    private final Thread thread;
+
+    private volatile boolean running = true;
+    private volatile long pollPeriodNanos = 0;
+
+    // Only touched by the executor thread
+    private final TimestampedEncoderDataBlock bulkSample = new TimestampedEncoderDataBlock();
+
+    /*
+     * The published snapshot: positions, velocities and unwrapped positions for each
+     * channel, indexed by field * NUM_ENCODERS + channel, then the timestamps. The
+     * version is odd while the executor is writing it and 0 until the first bulk
+     * read, and readers retry until they see the same even version either side.
+     */
+    private static final int SNAPSHOT_REQUEST_NANOS = 3 * NUM_ENCODERS;
+    private static final int SNAPSHOT_RESPONSE_NANOS = SNAPSHOT_REQUEST_NANOS + 1;
+    private final AtomicLong snapshotVersion = new AtomicLong(0);
+    private final AtomicLongArray snapshotData = new AtomicLongArray(SNAPSHOT_RESPONSE_NANOS + 1);
+    private volatile RuntimeException lastPollError = null;
+    private volatile long coalescingWindowNanos = 0;
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+    private final AtomicLong singleReadSequence = new AtomicLong(0);
+
+    /**
+     * Wrap a device and start its executor thread. The device must not be used
+     * directly from then on.
+     * @param device the device to take ownership of
+     */
+    public OctoQuadBusExecutor(OctoQuadBase device)
+    {
+        this.device = device;
+
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                executorLoop();
+            }
+        }, "OctoQuad bus executor");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Set how often the executor bulk reads by itself to keep the snapshot
+     * fresh, when no calls are waiting. By default (0) it doesn't.
+     * @param period the poll period
+     * @param unit the unit of period
+     */
+    public void setPollPeriod(long period, TimeUnit unit)
+    {
+        if(period < 0)
+        {
+            throw new IllegalArgumentException("period < 0");
+        }
+
+        pollPeriodNanos = unit.toNanos(period);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Answer single-channel reads from the latest snapshot, without touching the bus,
+     * if its read started no more than the window before the call; a single-channel
+     * read which finds the snapshot older than that refreshes it with a bulk read.
+     * By default (0), single-channel reads are only coalesced with others waiting
+     * at the same time.
+     * @param window how old a snapshot single-channel reads may be answered from
+     * @param unit the unit of window
+     */
+    public void setCoalescingWindow(long window, TimeUnit unit)
+    {
+        if(window < 0)
+        {
+            throw new IllegalArgumentException("window < 0");
+        }
+
+        coalescingWindowNanos = unit.toNanos(window);
+    }
+
+    /**
+     * @return the number of single-channel reads answered from another read's frame
+     */
+    public long getCoalescedCount()
+    {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Copy the most recent bulk read sample into an existing block. This never
+     * blocks, doesn't allocate, and may be called from any thread.
+     * The timestamps are copied too if out is a {@link TimestampedEncoderDataBlock}.
+     * @param out the block to fill with the latest sample
+     * @return false if there hasn't been a bulk read yet, in which case out is untouched
+     */
+    public boolean readSnapshot(EncoderDataBlock out)
+    {
+        while(true)
+        {
+            long version = snapshotVersion.get();
+            if(version == 0)
+            {
+                return false;
+            }
+            else if((version & 1) != 0)
+            {
+                continue;
+            }
+
+            for(int i = 0; i < NUM_ENCODERS; i++)
+            {
+                out.positions[i] = (int) snapshotData.get(POSITION * NUM_ENCODERS + i);
+                out.velocities[i] = (short) snapshotData.get(VELOCITY * NUM_ENCODERS + i);
+                out.unwrappedPositions[i] = snapshotData.get(UNWRAPPED_POSITION * NUM_ENCODERS + i);
+            }
+
+            if(out instanceof TimestampedEncoderDataBlock)
+            {
+                ((TimestampedEncoderDataBlock) out).requestNanos = snapshotData.get(SNAPSHOT_REQUEST_NANOS);
+                ((TimestampedEncoderDataBlock) out).responseNanos = snapshotData.get(SNAPSHOT_RESPONSE_NANOS);
+            }
+
+            if(snapshotVersion.get() == version)
+            {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return the most recent exception thrown by a background poll, or null if none
+     */
+    public RuntimeException getLastPollError()
+    {
+        return lastPollError;
+    }
+
+    /**
+     * Stop the executor thread once the calls already queued have run.
+     * Calls made afterwards throw.
+     */
+    public void shutdown()
+    {
+        running = false;
+        LockSupport.unpark(thread);
+
+        if(Thread.currentThread() == thread)
+        {
+            return;
+        }
+
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // PUBLIC API
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public byte getChipId()
+    {
+        return execute(new Task<Byte>()
+        {
+            @Override
+            Byte run(OctoQuadBase device)
+            {
+                return device.getChipId();
+            }
+        });
+    }
+
+    @Override
+    public FirmwareVersion getFirmwareVersion()
+    {
+        return execute(new Task<FirmwareVersion>()
+        {
+            @Override
+            FirmwareVersion run(OctoQuadBase device)
+            {
+                return device.getFirmwareVersion();
+            }
+        });
+    }
+
+    @Override
+    public int readSinglePosition(int idx)
+    {
+        return (int) readSingle(idx, POSITION);
+    }
+
+    @Override
+    public void readAllPositions(final int[] out)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.readAllPositions(out);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public int[] readAllPositions()
+    {
+        return execute(new Task<int[]>()
+        {
+            @Override
+            int[] run(OctoQuadBase device)
+            {
+                return device.readAllPositions();
+            }
+        });
+    }
+
+    @Override
+    public int[] readPositionRange(final int idxFirst, final int idxLast)
+    {
+        return execute(new Task<int[]>()
+        {
+            @Override
+            int[] run(OctoQuadBase device)
+            {
+                return device.readPositionRange(idxFirst, idxLast);
+            }
+        });
+    }
+
+    @Override
+    public void readPositionRange(final int idxFirst, final int idxLast, final int[] out)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.readPositionRange(idxFirst, idxLast, out);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public long readSingleUnwrappedPosition(int idx)
+    {
+        return readSingle(idx, UNWRAPPED_POSITION);
+    }
+
+    @Override
+    public void readAllUnwrappedPositions(final long[] out)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.readAllUnwrappedPositions(out);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void resetSinglePosition(final int idx)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.resetSinglePosition(idx);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void resetAllPositions()
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.resetAllPositions();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void resetMultiplePositions(final boolean[] resets)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.resetMultiplePositions(resets);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void resetMultiplePositions(final int... indices)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.resetMultiplePositions(indices);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void setSingleEncoderDirection(final int idx, final boolean reverse)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.setSingleEncoderDirection(idx, reverse);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean getSingleEncoderDirection(final int idx)
+    {
+        return execute(new Task<Boolean>()
+        {
+            @Override
+            Boolean run(OctoQuadBase device)
+            {
+                return device.getSingleEncoderDirection(idx);
+            }
+        });
+    }
+
+    @Override
+    public void setAllEncoderDirections(final boolean[] reverse)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.setAllEncoderDirections(reverse);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public short readSingleVelocity(int idx)
+    {
+        return (short) readSingle(idx, VELOCITY);
+    }
+
+    @Override
+    public void readAllVelocities(final short[] out)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.readAllVelocities(out);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public short[] readAllVelocities()
+    {
+        return execute(new Task<short[]>()
+        {
+            @Override
+            short[] run(OctoQuadBase device)
+            {
+                return device.readAllVelocities();
+            }
+        });
+    }
+
+    @Override
+    public short[] readVelocityRange(final int idxFirst, final int idxLast)
+    {
+        return execute(new Task<short[]>()
+        {
+            @Override
+            short[] run(OctoQuadBase device)
+            {
+                return device.readVelocityRange(idxFirst, idxLast);
+            }
+        });
+    }
+
+    @Override
+    public void readVelocityRange(final int idxFirst, final int idxLast, final short[] out)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.readVelocityRange(idxFirst, idxLast, out);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void readAllEncoderData(final EncoderDataBlock out)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                copy(bulkRead(), out);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void readAllEncoderDataTimestamped(TimestampedEncoderDataBlock out)
+    {
+        readAllEncoderData(out);
+    }
+
+    @Override
+    public void readEncoderData(final OctoQuadReadPlan plan, final EncoderDataBlock out)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.readEncoderData(plan, out);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public EncoderDataBlock readAllEncoderData()
+    {
+        EncoderDataBlock out = new EncoderDataBlock();
+        readAllEncoderData(out);
+        return out;
+    }
+
+    @Override
+    public void setSingleVelocitySampleInterval(final int idx, final int intvlms)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.setSingleVelocitySampleInterval(idx, intvlms);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void setAllVelocitySampleIntervals(final int intvlms)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.setAllVelocitySampleIntervals(intvlms);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void setAllVelocitySampleIntervals(final int[] intvlms)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.setAllVelocitySampleIntervals(intvlms);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public int getSingleVelocitySampleInterval(final int idx)
+    {
+        return execute(new Task<Integer>()
+        {
+            @Override
+            Integer run(OctoQuadBase device)
+            {
+                return device.getSingleVelocitySampleInterval(idx);
+            }
+        });
+    }
+
+    @Override
+    public int[] getAllVelocitySampleIntervals()
+    {
+        return execute(new Task<int[]>()
+        {
+            @Override
+            int[] run(OctoQuadBase device)
+            {
+                return device.getAllVelocitySampleIntervals();
+            }
+        });
+    }
+
+    @Override
+    public void setSingleChannelPulseWidthParams(final int idx, final ChannelPulseWidthParams params)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.setSingleChannelPulseWidthParams(idx, params);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public ChannelPulseWidthParams getSingleChannelPulseWidthParams(final int idx)
+    {
+        return execute(new Task<ChannelPulseWidthParams>()
+        {
+            @Override
+            ChannelPulseWidthParams run(OctoQuadBase device)
+            {
+                return device.getSingleChannelPulseWidthParams(idx);
+            }
+        });
+    }
+
+    @Override
+    public void resetEverything()
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.resetEverything();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void setChannelBankConfig(final ChannelBankConfig config)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.setChannelBankConfig(config);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public ChannelBankConfig getChannelBankConfig()
+    {
+        return execute(new Task<ChannelBankConfig>()
+        {
+            @Override
+            ChannelBankConfig run(OctoQuadBase device)
+            {
+                return device.getChannelBankConfig();
+            }
+        });
+    }
+
+    @Override
+    public void setI2cRecoveryMode(final I2cRecoveryMode mode)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.setI2cRecoveryMode(mode);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public I2cRecoveryMode getI2cRecoveryMode()
+    {
+        return execute(new Task<I2cRecoveryMode>()
+        {
+            @Override
+            I2cRecoveryMode run(OctoQuadBase device)
+            {
+                return device.getI2cRecoveryMode();
+            }
+        });
+    }
+
+    @Override
+    public void saveParametersToFlash()
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.saveParametersToFlash();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public FlashSave saveParametersToFlashAsync()
+    {
+        final FlashSave save = execute(new Task<FlashSave>()
+        {
+            @Override
+            FlashSave run(OctoQuadBase device)
+            {
+                return device.saveParametersToFlashAsync();
+            }
+        });
+
+        // Checking on the save talks to the device, so it has to go through the executor too
+        return new FlashSave()
+        {
+            @Override
+            public boolean isDone()
+            {
+                return execute(new Task<Boolean>()
+                {
+                    @Override
+                    Boolean run(OctoQuadBase device)
+                    {
+                        return save.isDone();
+                    }
+                });
+            }
+
+            @Override
+            public void await()
+            {
+                execute(new Task<Void>()
+                {
+                    @Override
+                    Void run(OctoQuadBase device)
+                    {
+                        save.await();
+                        return null;
+                    }
+                });
+            }
+        };
+    }
+
+    @Override
+    public Parameters getParameters()
+    {
+        return execute(new Task<Parameters>()
+        {
+            @Override
+            Parameters run(OctoQuadBase device)
+            {
+                return device.getParameters();
+            }
+        });
+    }
+
+    @Override
+    public void resyncParameters()
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.resyncParameters();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void invalidateParameters()
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.invalidateParameters();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public int applyParameters(final Parameters target, final boolean saveToFlash)
+    {
+        return execute(new Task<Integer>()
+        {
+            @Override
+            Integer run(OctoQuadBase device)
+            {
+                return device.applyParameters(target, saveToFlash);
+            }
+        });
+    }
+
+    @Override
+    public void enableCachedEncoderReads(final long maxAge, final TimeUnit unit)
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.enableCachedEncoderReads(maxAge, unit);
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public void disableCachedEncoderReads()
+    {
+        execute(new Task<Void>()
+        {
+            @Override
+            Void run(OctoQuadBase device)
+            {
+                device.disableCachedEncoderReads();
+                return null;
+            }
+        });
+    }
+
+    @Override
+    public boolean isCachedEncoderReadsEnabled()
+    {
+        return execute(new Task<Boolean>()
+        {
+            @Override
+            Boolean run(OctoQuadBase device)
+            {
+                return device.isCachedEncoderReadsEnabled();
+            }
+        });
+    }
+
+    @Override
+    public long getEncoderDataAgeNanos()
+    {
+        return execute(new Task<Long>()
+        {
+            @Override
+            Long run(OctoQuadBase device)
+            {
+                return device.getEncoderDataAgeNanos();
+            }
+        });
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    /*
+     * Runs a task on the executor thread and waits for its result. A task
+     * submitted from the executor thread itself (e.g. by a listener) runs directly.
+     */
+    private <T> T execute(Task<T> task)
+    {
+        if(Thread.currentThread() == thread)
+        {
+            return task.run(device);
+        }
+
+        if(!running)
+        {
+            throw new IllegalStateException("OctoQuad bus executor has been shut down");
+        }
+
+        task.waiter = Thread.currentThread();
+        queue.offer(task);
+        LockSupport.unpark(thread);
+
+        // A pending interrupt makes every park return at once, so hold it back
+        // until the call has completed rather than spinning (e.g. while an opmode stops)
+        boolean interrupted = false;
+        try
+        {
+            while(!task.done)
+            {
+                LockSupport.parkNanos(this, SHUTDOWN_CHECK_NANOS);
+
+                if(Thread.interrupted())
+                {
+                    interrupted = true;
+                }
+
+                if(!task.done && !thread.isAlive() && queue.remove(task))
+                {
+                    throw new IllegalStateException("OctoQuad bus executor has been shut down");
+                }
+            }
+        }
+        finally
+        {
+            if(interrupted)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if(task.error instanceof RuntimeException)
+        {
+            throw (RuntimeException) task.error;
+        }
+        else if(task.error instanceof Error)
+        {
+            throw (Error) task.error;
+        }
+        else if(task.error != null)
+        {
+            throw new RuntimeException(task.error);
+        }
+
+        return task.result;
+    }
+
+    private void executorLoop()
+    {
+        long nextPollNanos = System.nanoTime();
+
+        while(true)
+        {
+            Task<?> task = queue.poll();
+
+            if(task != null)
+            {
+                runTask(task);
+                continue;
+            }
+
+            if(!running)
+            {
+                return;
+            }
+
+            long period = pollPeriodNanos;
+            if(period > 0)
+            {
+                long wait = nextPollNanos - System.nanoTime();
+                if(wait <= 0)
+                {
+                    try
+                    {
+                        bulkRead();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        lastPollError = e;
+                    }
+
+                    // Don't try to catch up with a burst of reads if the bus stalled
+                    nextPollNanos = Math.max(nextPollNanos + period, System.nanoTime());
+                    continue;
+                }
+
+                LockSupport.parkNanos(this, wait);
+            }
+            else
+            {
+                LockSupport.park(this);
+                nextPollNanos = System.nanoTime();
+            }
+        }
+    }
+
+    private long readSingle(int idx, int field)
+    {
+        if(idx < ENCODER_FIRST || idx > ENCODER_LAST)
+        {
+            throw new IllegalArgumentException(String.format("number %d is invalid; valid ranges are %d..%d", idx, ENCODER_FIRST, ENCODER_LAST));
+        }
+
+        long window = coalescingWindowNanos;
+        while(window > 0)
+        {
+            long version = snapshotVersion.get();
+            if(version == 0)
+            {
+                break;
+            }
+            else if((version & 1) != 0)
+            {
+                continue;
+            }
+
+            long requestNanos = snapshotData.get(SNAPSHOT_REQUEST_NANOS);
+            long value = snapshotData.get(field * NUM_ENCODERS + idx);
+
+            if(snapshotVersion.get() == version)
+            {
+                if(System.nanoTime() - requestNanos > window)
+                {
+                    break;
+                }
+
+                coalescedCount.incrementAndGet();
+                return value;
+            }
+        }
+
+        return execute(new SingleChannelRead(idx, field, singleReadSequence.incrementAndGet()));
+    }
+
+    private static long valueOf(TimestampedEncoderDataBlock sample, int idx, int field)
+    {
+        switch (field)
+        {
+            case POSITION:
+                return sample.positions[idx];
+            case VELOCITY:
+                return sample.velocities[idx];
+            default:
+                return sample.unwrappedPositions[idx];
+        }
+    }
+
+    /*
+     * A single-channel read with nothing like it waiting behind is just run on its
+     * own, which is the cheapest transaction, unless there's a coalescing window:
+     * then it's a bulk read, so that the reads which follow it within the window
+     * (typically the same loop reading its other channels) come from the snapshot.
+     * Otherwise one bulk read answers it and every other single-channel read
+     * submitted before that read started. Reads submitted later are left queued to
+     * start a flight of their own, so nobody is answered from a frame older than
+     * their call.
+     */
+    private void runSingleChannelReads(SingleChannelRead first)
+    {
+        if(!(queue.peek() instanceof SingleChannelRead) && coalescingWindowNanos == 0)
+        {
+            runPlainTask(first);
+            return;
+        }
+
+        long lastSequence = singleReadSequence.get();
+        TimestampedEncoderDataBlock sample = null;
+        Throwable error = null;
+
+        // Anything thrown goes back to the callers, so none of them is left waiting
+        try
+        {
+            sample = bulkRead();
+        }
+        catch (Throwable e)
+        {
+            error = e;
+        }
+
+        SingleChannelRead read = first;
+        while(true)
+        {
+            if(error != null)
+            {
+                read.error = error;
+            }
+            else
+            {
+                read.result = valueOf(sample, read.idx, read.field);
+            }
+
+            read.done = true;
+            LockSupport.unpark(read.waiter);
+
+            // Only this thread takes tasks off the queue, so the head stays put until polled
+            Task<?> next = queue.peek();
+            if(!(next instanceof SingleChannelRead) || ((SingleChannelRead) next).sequence > lastSequence)
+            {
+                return;
+            }
+
+            read = (SingleChannelRead) queue.poll();
+            coalescedCount.incrementAndGet();
+        }
+    }
+
+    private <T> void runTask(Task<T> task)
+    {
+        if(task instanceof SingleChannelRead)
+        {
+            runSingleChannelReads((SingleChannelRead) task);
+        }
+        else
+        {
+            runPlainTask(task);
+        }
+    }
+
+    private <T> void runPlainTask(Task<T> task)
+    {
+        try
+        {
+            task.result = task.run(device);
+        }
+        catch (Throwable e)
+        {
+            task.error = e;
+        }
+        finally
+        {
+            task.done = true;
+            LockSupport.unpark(task.waiter);
+        }
+    }
+
+    /*
+     * Reads a new sample and publishes it as the snapshot. The returned block is
+     * reused by the next bulk read, so it must only be used on the executor thread.
+     */
+    private TimestampedEncoderDataBlock bulkRead()
+    {
+        device.readAllEncoderDataTimestamped(bulkSample);
+
+        long version = snapshotVersion.get();
+        snapshotVersion.set(version + 1);
+        for(int i = 0; i < NUM_ENCODERS; i++)
+        {
+            snapshotData.set(POSITION * NUM_ENCODERS + i, bulkSample.positions[i]);
+            snapshotData.set(VELOCITY * NUM_ENCODERS + i, bulkSample.velocities[i]);
+            snapshotData.set(UNWRAPPED_POSITION * NUM_ENCODERS + i, bulkSample.unwrappedPositions[i]);
+        }
+        snapshotData.set(SNAPSHOT_REQUEST_NANOS, bulkSample.requestNanos);
+        snapshotData.set(SNAPSHOT_RESPONSE_NANOS, bulkSample.responseNanos);
+        snapshotVersion.set(version + 2);
+
+        return bulkSample;
+    }
+
+    private static void copy(TimestampedEncoderDataBlock sample, EncoderDataBlock out)
+    {
+        System.arraycopy(sample.positions, 0, out.positions, 0, NUM_ENCODERS);
+        System.arraycopy(sample.velocities, 0, out.velocities, 0, NUM_ENCODERS);
+        System.arraycopy(sample.unwrappedPositions, 0, out.unwrappedPositions, 0, NUM_ENCODERS);
+
+        if(out instanceof TimestampedEncoderDataBlock)
+        {
+            ((TimestampedEncoderDataBlock) out).requestNanos = sample.requestNanos;
+            ((TimestampedEncoderDataBlock) out).responseNanos = sample.responseNanos;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An {@link OctoQuadTransport} which passes everything through to another
+ * transport, measuring each transaction on the way: a latency histogram, counts
+ * of transactions, bytes and errors, and the slowest transaction, separately for
+ * reads and writes.
+ *
+ * Measuring is off until {@link #setEnabled(boolean)} is called, and costs two
+ * {@link System#nanoTime()} calls and a handful of array updates per transaction
+ * when on; nothing is allocated. {@link #snapshot(Snapshot)} can be called from any
+ * thread, and {@link #startCsvDump(File, long, TimeUnit)} writes a row per operation
+ * type at a fixed period from a background thread, for finding bus stalls after a match.
+ *
+ * The histogram buckets are powers of two in microseconds: bucket 0 counts
+ * transactions under 1us, and bucket b counts those from 2^(b-1) up to 2^b us,
+ * with the last bucket taking everything longer.
+ *
+ * Errors are transactions which threw. A transport which reports failures some
+ * other way isn't seen failing: the FTC SDK's I2cDeviceSynch, for one, returns
+ * zero-filled data from a failed read rather than throwing, so on a robot the
+ * error counts cover thrown failures only, and a stalled or disconnected bus
+ * shows up in the latencies instead.
+ */
+public class OctoQuadBusMetrics implements OctoQuadTransport
+{
+    public enum Op
+    {
+        READ,
+        WRITE
+    }
+
+    public static final int NUM_BUCKETS = 20;
+
+    private static final int NUM_OPS = Op.values().length;
+
+    private static final int COUNT = 0;
+    private static final int ERRORS = 1;
+    private static final int BYTES = 2;
+    private static final int TOTAL_NANOS = 3;
+    private static final int MAX_NANOS = 4;
+    private static final int NUM_STATS = 5;
+
+    /**
+     * The measurements at one instant
+     */
+    public static class Snapshot
+    {
+        /**
+         * {@link System#nanoTime()} when the snapshot was taken
+         */
+        public long nanos;
+
+        public final long[] count = new long[NUM_OPS];
+        /**
+         * Transactions which threw; see the class documentation for what isn't counted
+         */
+        public final long[] errors = new long[NUM_OPS];
+        public final long[] bytes = new long[NUM_OPS];
+        public final long[] totalNanos = new long[NUM_OPS];
+        public final long[] maxNanos = new long[NUM_OPS];
+        public final long[][] histogram = new long[NUM_OPS][NUM_BUCKETS];
+
+        /**
+         * @param op the operation type
+         * @return the mean transaction latency, in microseconds
+         */
+        public double getMeanMicros(Op op)
+        {
+            int i = op.ordinal();
+            return count[i] == 0 ? 0 : totalNanos[i] / 1000.0 / count[i];
+        }
+
+        /**
+         * @param op the operation type
+         * @param percentile the percentile, between 0 and 100
+         * @return an upper bound on the given percentile latency, in microseconds
+         *         (the top of the histogram bucket it falls in)
+         */
+        public long getPercentileMicros(Op op, double percentile)
+        {
+            return percentileMicros(histogram[op.ordinal()], count[op.ordinal()], percentile);
+        }
+    }
+
+    private final OctoQuadTransport transport;
+
+    // Row-major [op][stat] and [op][bucket]
+    private final AtomicLongArray stats = new AtomicLongArray(NUM_OPS * NUM_STATS);
+    private final AtomicLongArray histograms = new AtomicLongArray(NUM_OPS * NUM_BUCKETS);
+
+    private volatile boolean enabled = false;
+
+    private Thread dumpThread = null;
+    private volatile boolean dumping = false;
+    private volatile IOException dumpError = null;
+
+    public OctoQuadBusMetrics(OctoQuadTransport transport)
+    {
+        this.transport = transport;
+    }
+
+    /**
+     * @param enable whether to measure transactions
+     */
+    public void setEnabled(boolean enable)
+    {
+        enabled = enable;
+    }
+
+    /**
+     * @return whether transactions are being measured
+     */
+    public boolean isEnabled()
+    {
+        return enabled;
+    }
+
+    @Override
+    public long read(int addr, byte[] dst, int off, int len)
+    {
+        if(!enabled)
+        {
+            return transport.read(addr, dst, off, len);
+        }
+
+        long start = System.nanoTime();
+        try
+        {
+            long result = transport.read(addr, dst, off, len);
+            record(Op.READ, len, System.nanoTime() - start, false);
+            return result;
+        }
+        catch (RuntimeException e)
+        {
+            record(Op.READ, 0, System.nanoTime() - start, true);
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(int addr, byte[] src, int off, int len)
+    {
+        if(!enabled)
+        {
+            transport.write(addr, src, off, len);
+            return;
+        }
+
+        long start = System.nanoTime();
+        try
+        {
+            transport.write(addr, src, off, len);
+            record(Op.WRITE, len, System.nanoTime() - start, false);
+        }
+        catch (RuntimeException e)
+        {
+            record(Op.WRITE, 0, System.nanoTime() - start, true);
+            throw e;
+        }
+    }
+
+    @Override
+    public void setReadWindow(int addr, int len)
+    {
+        transport.setReadWindow(addr, len);
+    }
+
+    /**
+     * Take a snapshot of the measurements so far
+     * @return a new snapshot
+     */
+    public Snapshot snapshot()
+    {
+        Snapshot out = new Snapshot();
+        snapshot(out);
+        return out;
+    }
+
+    /**
+     * Take a snapshot of the measurements so far into an existing snapshot
+     * @param out the snapshot to fill
+     */
+    public void snapshot(Snapshot out)
+    {
+        out.nanos = System.nanoTime();
+
+        for(int op = 0; op < NUM_OPS; op++)
+        {
+            out.count[op] = stats.get(op * NUM_STATS + COUNT);
+            out.errors[op] = stats.get(op * NUM_STATS + ERRORS);
+            out.bytes[op] = stats.get(op * NUM_STATS + BYTES);
+            out.totalNanos[op] = stats.get(op * NUM_STATS + TOTAL_NANOS);
+            out.maxNanos[op] = stats.get(op * NUM_STATS + MAX_NANOS);
+
+            for(int b = 0; b < NUM_BUCKETS; b++)
+            {
+                out.histogram[op][b] = histograms.get(op * NUM_BUCKETS + b);
+            }
+        }
+    }
+
+    /**
+     * Start writing the measurements to a CSV file, one row per operation type
+     * each period. Each row covers just the transactions during that period:
+     * <pre>
+     * time_ms,op,count,errors,bytes,bytes_per_s,mean_us,p50_us,p99_us,max_us,bucket_0..bucket_19
+     * </pre>
+     * where max_us is the slowest transaction so far, not just within the period.
+     * Replaces any dump already running.
+     * @param file the file to write, which is overwritten
+     * @param period how often to write
+     * @param unit the unit of period
+     * @throws IOException if the file can't be opened
+     */
+    public synchronized void startCsvDump(File file, long period, TimeUnit unit) throws IOException
+    {
+        if(period <= 0)
+        {
+            throw new IllegalArgumentException("period <= 0");
+        }
+
+        stopCsvDump();
+
+        final PrintWriter writer = new PrintWriter(new FileWriter(file));
+        final long periodNanos = unit.toNanos(period);
+
+        writer.print("time_ms,op,count,errors,bytes,bytes_per_s,mean_us,p50_us,p99_us,max_us");
+        for(int b = 0; b < NUM_BUCKETS; b++)
+        {
+            writer.print(",bucket_" + b);
+        }
+        writer.println();
+
+        dumping = true;
+        dumpError = null;
+        dumpThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                dumpLoop(writer, periodNanos);
+            }
+        }, "OctoQuad bus metrics");
+        dumpThread.setDaemon(true);
+        dumpThread.start();
+    }
+
+    /**
+     * Stop writing the CSV file, writing one last row first.
+     * Has no effect if no dump is running.
+     */
+    public synchronized void stopCsvDump()
+    {
+        if(dumpThread == null)
+        {
+            return;
+        }
+
+        dumping = false;
+        LockSupport.unpark(dumpThread);
+
+        try
+        {
+            dumpThread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        dumpThread = null;
+    }
+
+    /**
+     * @return the error which stopped the last CSV dump, or null if none
+     */
+    public IOException getCsvDumpError()
+    {
+        return dumpError;
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    /*
+     * Transactions only come from one thread at a time, so the updates needn't be
+     * atomic; the atomic arrays are just so that snapshots see the latest values.
+     */
+    private void record(Op op, int len, long nanos, boolean error)
+    {
+        int base = op.ordinal() * NUM_STATS;
+
+        stats.lazySet(base + COUNT, stats.get(base + COUNT) + 1);
+        stats.lazySet(base + BYTES, stats.get(base + BYTES) + len);
+        stats.lazySet(base + TOTAL_NANOS, stats.get(base + TOTAL_NANOS) + nanos);
+
+        if(nanos > stats.get(base + MAX_NANOS))
+        {
+            stats.lazySet(base + MAX_NANOS, nanos);
+        }
+
+        if(error)
+        {
+            stats.lazySet(base + ERRORS, stats.get(base + ERRORS) + 1);
+        }
+
+        int bucket = op.ordinal() * NUM_BUCKETS + bucketFor(nanos);
+        histograms.lazySet(bucket, histograms.get(bucket) + 1);
+    }
+
+    private static int bucketFor(long nanos)
+    {
+        long micros = nanos / 1000;
+        return Math.min(NUM_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+    }
+
+    private static long percentileMicros(long[] histogram, long count, double percentile)
+    {
+        if(count == 0)
+        {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+
+        for(int b = 0; b < NUM_BUCKETS; b++)
+        {
+            seen += histogram[b];
+            if(seen >= rank)
+            {
+                return 1L << b;
+            }
+        }
+
+        return 1L << (NUM_BUCKETS - 1);
+    }
+
+    private void dumpLoop(PrintWriter writer, long periodNanos)
+    {
+        Snapshot previous = new Snapshot();
+        Snapshot current = new Snapshot();
+        long[] buckets = new long[NUM_BUCKETS];
+
+        snapshot(previous);
+        long startNanos = previous.nanos;
+        long nextNanos = startNanos + periodNanos;
+
+        try
+        {
+            boolean last = false;
+            while(!last)
+            {
+                long wait;
+                while(dumping && (wait = nextNanos - System.nanoTime()) > 0)
+                {
+                    LockSupport.parkNanos(wait);
+                }
+                nextNanos += periodNanos;
+                last = !dumping;
+
+                snapshot(current);
+                double seconds = (current.nanos - previous.nanos) / 1e9;
+
+                for(Op op : Op.values())
+                {
+                    int i = op.ordinal();
+                    long count = current.count[i] - previous.count[i];
+                    long bytes = current.bytes[i] - previous.bytes[i];
+                    long nanos = current.totalNanos[i] - previous.totalNanos[i];
+
+                    for(int b = 0; b < NUM_BUCKETS; b++)
+                    {
+                        buckets[b] = current.histogram[i][b] - previous.histogram[i][b];
+                    }
+
+                    writer.print((current.nanos - startNanos) / 1000000);
+                    writer.print(',');
+                    writer.print(op);
+                    writer.print(',');
+                    writer.print(count);
+                    writer.print(',');
+                    writer.print(current.errors[i] - previous.errors[i]);
+                    writer.print(',');
+                    writer.print(bytes);
+                    writer.print(',');
+                    writer.print(seconds > 0 ? Math.round(bytes / seconds) : 0);
+                    writer.print(',');
+                    writer.print(count == 0 ? 0 : nanos / 1000 / count);
+                    writer.print(',');
+                    writer.print(percentileMicros(buckets, count, 50));
+                    writer.print(',');
+                    writer.print(percentileMicros(buckets, count, 99));
+                    writer.print(',');
+                    writer.print(current.maxNanos[i] / 1000);
+                    for(int b = 0; b < NUM_BUCKETS; b++)
+                    {
+                        writer.print(',');
+                        writer.print(buckets[b]);
+                    }
+                    writer.println();
+                }
+
+                writer.flush();
+                if(writer.checkError())
+                {
+                    throw new IOException("error writing bus metrics CSV");
+                }
+
+                Snapshot swap = previous;
+                previous = current;
+                current = swap;
+            }
+        }
+        catch (IOException e)
+        {
+            dumpError = e;
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import java.nio.ByteBuffer;
+
+import static org.firstinspires.ftc.teamcode.OctoQuadProtocol.*;
+
+/**
+ * Encodes OctoQuad commands into, and decodes register frames from, caller-provided
+ * {@link ByteBuffer}s (heap or direct), without allocating or copying.
+ *
+ * Each encode method appends one command frame at the buffer's position and returns
+ * its length in bytes. A command frame is written to the device starting at
+ * {@link #COMMAND_REGISTER}; the OctoQuad executes one command per write, so several
+ * frames can be laid out back to back in one buffer and sent one slice at a time.
+ *
+ * The decode methods read at absolute indices and leave the buffer's position alone.
+ * Values are always decoded as {@link OctoQuadBase#OCTOQUAD_ENDIAN}, whatever the
+ * buffer's own byte order; a buffer already set to that order is the fast path.
+ *
+ * The codec doesn't range check arguments; that's up to the caller.
+ */
+public final class OctoQuadCodec
+{
+    /**
+     * Register address a command frame is written to
+     */
+    public static final int COMMAND_REGISTER = Register.COMMAND.addr;
+
+    /**
+     * The largest command frame: COMMAND plus all of COMMAND_DAT_0..COMMAND_DAT_6
+     */
+    public static final int COMMAND_FRAME_MAX = Register.COMMAND_DAT_6.addr - Register.COMMAND.addr + 1;
+
+    /**
+     * Register address of the first byte of a parameter read back with one of the encodeRead...() commands
+     */
+    public static final int PARAM_REGISTER = Register.COMMAND_DAT_0.addr;
+
+    /**
+     * Register address of the encoder block: all positions followed by all velocities
+     */
+    public static final int ENCODER_BLOCK_REGISTER = Register.ENCODER_0_POSITION.addr;
+
+    /**
+     * Length of the encoder block in bytes
+     */
+    public static final int ENCODER_BLOCK_SIZE = ENCODER_BLOCK_LENGTH;
+
+    /**
+     * Offset of the first velocity within the encoder block
+     */
+    public static final int ENCODER_BLOCK_VELOCITY_OFFSET = Register.ENCODER_0_VELOCITY.addr - Register.ENCODER_0_POSITION.addr;
+
+    private OctoQuadCodec() {}
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // COMMANDS
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    /**
+     * @param dst the buffer to encode into
+     * @param mask bit i set to reset encoder i
+     * @return the frame length
+     */
+    public static int encodeResetEncoders(ByteBuffer dst, int mask)
+    {
+        dst.put(CMD_RESET_ENCODERS).put((byte) mask);
+        return 2;
+    }
+
+    public static int encodeResetEverything(ByteBuffer dst)
+    {
+        dst.put(CMD_RESET_EVERYTHING);
+        return 1;
+    }
+
+    public static int encodeWriteParamsToFlash(ByteBuffer dst)
+    {
+        dst.put(CMD_WRITE_PARAMS_TO_FLASH);
+        return 1;
+    }
+
+    /**
+     * @param dst the buffer to encode into
+     * @param directions bit i set to reverse encoder i
+     * @return the frame length
+     */
+    public static int encodeSetEncoderDirections(ByteBuffer dst, int directions)
+    {
+        dst.put(CMD_SET_PARAM).put(PARAM_ENCODER_DIRECTIONS).put((byte) directions);
+        return 3;
+    }
+
+    public static int encodeSetI2cRecoveryMode(ByteBuffer dst, OctoQuadBase.I2cRecoveryMode mode)
+    {
+        dst.put(CMD_SET_PARAM).put(PARAM_I2C_RECOVERY_MODE).put(mode.bVal);
+        return 3;
+    }
+
+    public static int encodeSetChannelBankConfig(ByteBuffer dst, OctoQuadBase.ChannelBankConfig config)
+    {
+        dst.put(CMD_SET_PARAM).put(PARAM_CHANNEL_BANK_CONFIG).put(config.bVal);
+        return 3;
+    }
+
+    public static int encodeSetVelocitySampleInterval(ByteBuffer dst, int idx, int intvlms)
+    {
+        dst.put(CMD_SET_PARAM).put(PARAM_CHANNEL_VEL_INTVL).put((byte) idx).put((byte) intvlms);
+        return 4;
+    }
+
+    public static int encodeSetPulseWidthParams(ByteBuffer dst, int idx, int minLengthUs, int maxLengthUs)
+    {
+        dst.put(CMD_SET_PARAM).put(PARAM_CHANNEL_PULSE_WIDTH_MIN_MAX).put((byte) idx);
+        putInt16(dst, (short) minLengthUs);
+        putInt16(dst, (short) maxLengthUs);
+        return 7;
+    }
+
+    public static int encodeReadEncoderDirections(ByteBuffer dst)
+    {
+        return encodeReadParam(dst, PARAM_ENCODER_DIRECTIONS);
+    }
+
+    public static int encodeReadI2cRecoveryMode(ByteBuffer dst)
+    {
+        return encodeReadParam(dst, PARAM_I2C_RECOVERY_MODE);
+    }
+
+    public static int encodeReadChannelBankConfig(ByteBuffer dst)
+    {
+        return encodeReadParam(dst, PARAM_CHANNEL_BANK_CONFIG);
+    }
+
+    public static int encodeReadVelocitySampleInterval(ByteBuffer dst, int idx)
+    {
+        return encodeReadParam(dst, PARAM_CHANNEL_VEL_INTVL, idx);
+    }
+
+    public static int encodeReadPulseWidthParams(ByteBuffer dst, int idx)
+    {
+        return encodeReadParam(dst, PARAM_CHANNEL_PULSE_WIDTH_MIN_MAX, idx);
+    }
+
+    private static int encodeReadParam(ByteBuffer dst, byte param)
+    {
+        dst.put(CMD_READ_PARAM).put(param);
+        return 2;
+    }
+
+    private static int encodeReadParam(ByteBuffer dst, byte param, int idx)
+    {
+        dst.put(CMD_READ_PARAM).put(param).put((byte) idx);
+        return 3;
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // REGISTER FRAMES
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Decode consecutive position registers
+     * @param src the buffer holding the registers
+     * @param index the index in src of the first position register
+     * @param out where to store the positions
+     * @param outOffset the index in out to store the first position at
+     * @param count the number of positions to decode
+     */
+    public static void decodePositions(ByteBuffer src, int index, int[] out, int outOffset, int count)
+    {
+        for(int i = 0; i < count; i++)
+        {
+            out[outOffset + i] = getInt32(src, index + i*4);
+        }
+    }
+
+    /**
+     * Decode consecutive velocity registers
+     * @param src the buffer holding the registers
+     * @param index the index in src of the first velocity register
+     * @param out where to store the velocities
+     * @param outOffset the index in out to store the first velocity at
+     * @param count the number of velocities to decode
+     */
+    public static void decodeVelocities(ByteBuffer src, int index, short[] out, int outOffset, int count)
+    {
+        for(int i = 0; i < count; i++)
+        {
+            out[outOffset + i] = getInt16(src, index + i*2);
+        }
+    }
+
+    /**
+     * Decode a whole encoder block, as read from {@link #ENCODER_BLOCK_REGISTER}
+     * @param src the buffer holding the block
+     * @param index the index in src of the start of the block
+     * @param out the {@link OctoQuadBase.EncoderDataBlock} to fill
+     */
+    public static void decodeEncoderBlock(ByteBuffer src, int index, OctoQuadBase.EncoderDataBlock out)
+    {
+        decodePositions(src, index, out.positions, 0, OctoQuadBase.NUM_ENCODERS);
+        decodeVelocities(src, index + ENCODER_BLOCK_VELOCITY_OFFSET, out.velocities, 0, OctoQuadBase.NUM_ENCODERS);
+    }
+
+    /**
+     * @param src the buffer holding FIRMWARE_VERSION_MAJOR..FIRMWARE_VERSION_ENGINEERING
+     * @param index the index in src of FIRMWARE_VERSION_MAJOR
+     * @return the firmware version
+     */
+    public static OctoQuadBase.FirmwareVersion decodeFirmwareVersion(ByteBuffer src, int index)
+    {
+        return new OctoQuadBase.FirmwareVersion(src.get(index) & 0xFF, src.get(index+1) & 0xFF, src.get(index+2) & 0xFF);
+    }
+
+    /**
+     * @param src the buffer holding the parameter registers read back after {@link #encodeReadPulseWidthParams(ByteBuffer, int)}
+     * @param index the index in src of {@link #PARAM_REGISTER}
+     * @param out the {@link OctoQuadBase.ChannelPulseWidthParams} to fill
+     */
+    public static void decodePulseWidthParams(ByteBuffer src, int index, OctoQuadBase.ChannelPulseWidthParams out)
+    {
+        out.min_length_us = getInt16(src, index) & 0xFFFF;
+        out.max_length_us = getInt16(src, index+2) & 0xFFFF;
+    }
+
+    public static int getInt32(ByteBuffer src, int index)
+    {
+        int v = src.getInt(index);
+        return src.order() == OctoQuadBase.OCTOQUAD_ENDIAN ? v : Integer.reverseBytes(v);
+    }
+
+    public static short getInt16(ByteBuffer src, int index)
+    {
+        short v = src.getShort(index);
+        return src.order() == OctoQuadBase.OCTOQUAD_ENDIAN ? v : Short.reverseBytes(v);
+    }
+
+    private static void putInt16(ByteBuffer dst, short v)
+    {
+        dst.putShort(dst.order() == OctoQuadBase.OCTOQUAD_ENDIAN ? v : Short.reverseBytes(v));
+    }
+
+    /**
+     * Wrap a byte array for use with the codec, in the OctoQuad's byte order
+     * @param bytes the array to wrap
+     * @return a {@link ByteBuffer} backed by bytes
+     */
+    public static ByteBuffer wrap(byte[] bytes)
+    {
+        return ByteBuffer.wrap(bytes).order(OctoQuadBase.OCTOQUAD_ENDIAN);
+    }
+}
@@ -0,0 +1,1094 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.firstinspires.ftc.teamcode.OctoQuadProtocol.*;
+
+/**
+ * The OctoQuad driver itself, independent of the FTC SDK: it talks to the
+ * device through an {@link OctoQuadTransport}, so the same code runs on the
+ * robot and against a simulator on a desktop JVM.
+ *
+ * Commands are encoded into, and reads decoded out of, buffers owned by the
+ * driver using {@link OctoQuadCodec}, so the read paths which fill
+ * caller-owned arrays don't allocate.
+ *
+ * The driver is not thread-safe: those buffers, along with the rest of its
+ * state, are shared by every call, so concurrent calls corrupt each other.
+ * To use one OctoQuad from several threads, wrap it in an
+ * {@link OctoQuadBusExecutor} and make every call through that.
+ */
+public class OctoQuadDriver implements OctoQuadBase
+{
+    /*
+     * How long a flash save is given before the next command is sent. The
+     * firmware has no documented busy indication, so this is always waited out
+     * in full; it's the fixed delay the driver has always slept for.
+     */
+    private static final long FLASH_SAVE_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final OctoQuadTransport transport;
+
+    private final byte[] tx = new byte[OctoQuadCodec.COMMAND_FRAME_MAX];
+    private final byte[] rx = new byte[ENCODER_BLOCK_LENGTH];
+    private final byte[] encoderCache = new byte[ENCODER_BLOCK_LENGTH];
+    private final ByteBuffer txBuffer = OctoQuadCodec.wrap(tx);
+    private final ByteBuffer rxBuffer = OctoQuadCodec.wrap(rx);
+    private final ByteBuffer encoderCacheBuffer = OctoQuadCodec.wrap(encoderCache);
+
+    private final int[] lastRawPositions = new int[NUM_ENCODERS];
+    private final long[] unwrappedPositions = new long[NUM_ENCODERS];
+
+    private final Parameters parameters = new Parameters();
+    private boolean parametersValid = false;
+
+    private boolean cachedEncoderReads = false;
+    private long encoderCacheMaxAgeNanos = 0;
+    private boolean encoderCacheValid = false;
+    private long encoderDataRequestNanos = 0;
+    private long encoderDataNanos = 0;
+
+    private PendingFlashSave pendingFlashSave = null;
+
+    private boolean isInitialized = false;
+
+    public OctoQuadDriver(OctoQuadTransport transport)
+    {
+        this.transport = transport;
+    }
+
+    /**
+     * @return the transport this driver talks to the OctoQuad over
+     */
+    public OctoQuadTransport getTransport()
+    {
+        return transport;
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // PUBLIC API
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public byte getChipId()
+    {
+        return readRegister(Register.CHIP_ID);
+    }
+
+    @Override
+    public FirmwareVersion getFirmwareVersion()
+    {
+        ByteBuffer fw = readContiguousRegisters(Register.FIRMWARE_VERSION_MAJOR, Register.FIRMWARE_VERSION_ENGINEERING);
+        return OctoQuadCodec.decodeFirmwareVersion(fw, 0);
+    }
+
+    @Override
+    public int readSinglePosition(int idx)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
+
+        Register register = Register.all[Register.ENCODER_0_POSITION.ordinal()+idx];
+        int position = OctoQuadCodec.getInt32(readEncoderRegisters(register, register), encoderDataOffset(register));
+        unwrap(idx, position);
+        return position;
+    }
+
+    @Override
+    public void readAllPositions(int[] out)
+    {
+        verifyInitialization();
+
+        if(out.length != NUM_ENCODERS)
+        {
+            throw new IllegalArgumentException("out.length != 8");
+        }
+
+        ByteBuffer data = readEncoderRegisters(Register.ENCODER_0_POSITION, Register.ENCODER_7_POSITION);
+        OctoQuadCodec.decodePositions(data, encoderDataOffset(Register.ENCODER_0_POSITION), out, 0, NUM_ENCODERS);
+
+        for(int i = 0; i < NUM_ENCODERS; i++)
+        {
+            unwrap(i, out[i]);
+        }
+    }
+
+    @Override
+    public int[] readAllPositions()
+    {
+        verifyInitialization();
+
+        int[] block = new int[NUM_ENCODERS];
+        readAllPositions(block);
+        return block;
+    }
+
+    @Override
+    public int[] readPositionRange(int idxFirst, int idxLast)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idxFirst, ENCODER_FIRST, ENCODER_LAST);
+        throwIfRangeIsInvalid(idxLast, idxFirst, ENCODER_LAST);
+
+        int[] encoderCounts = new int[idxLast-idxFirst+1];
+        readPositionRange(idxFirst, idxLast, encoderCounts);
+        return encoderCounts;
+    }
+
+    @Override
+    public void readPositionRange(int idxFirst, int idxLast, int[] out)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idxFirst, ENCODER_FIRST, ENCODER_LAST);
+        throwIfRangeIsInvalid(idxLast, idxFirst, ENCODER_LAST);
+
+        int numEncodersRead = idxLast-idxFirst+1;
+
+        if(out.length < numEncodersRead)
+        {
+            throw new IllegalArgumentException("out.length < idxLast-idxFirst+1");
+        }
+
+        Register registerFirst = Register.all[Register.ENCODER_0_POSITION.ordinal()+idxFirst];
+        Register registerLast = Register.all[Register.ENCODER_0_POSITION.ordinal()+idxLast];
+
+        ByteBuffer data = readEncoderRegisters(registerFirst, registerLast);
+        OctoQuadCodec.decodePositions(data, encoderDataOffset(registerFirst), out, 0, numEncodersRead);
+
+        for(int i = 0; i < numEncodersRead; i++)
+        {
+            unwrap(idxFirst + i, out[i]);
+        }
+    }
+
+    @Override
+    public long readSingleUnwrappedPosition(int idx)
+    {
+        readSinglePosition(idx);
+        return unwrappedPositions[idx];
+    }
+
+    @Override
+    public void readAllUnwrappedPositions(long[] out)
+    {
+        verifyInitialization();
+
+        if(out.length != NUM_ENCODERS)
+        {
+            throw new IllegalArgumentException("out.length != 8");
+        }
+
+        ByteBuffer data = readEncoderRegisters(Register.ENCODER_0_POSITION, Register.ENCODER_7_POSITION);
+        int offset = encoderDataOffset(Register.ENCODER_0_POSITION);
+
+        for(int i = 0; i < NUM_ENCODERS; i++)
+        {
+            out[i] = unwrap(i, OctoQuadCodec.getInt32(data, offset + i*4));
+        }
+    }
+
+    @Override
+    public void resetSinglePosition(int idx)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
+
+        sendCommand(OctoQuadCodec.encodeResetEncoders(command(), 1 << idx));
+        resetUnwrapped(1 << idx);
+        encoderCacheValid = false;
+    }
+
+    @Override
+    public void resetAllPositions()
+    {
+        verifyInitialization();
+        sendCommand(OctoQuadCodec.encodeResetEncoders(command(), 0xFF));
+        resetUnwrapped(0xFF);
+        encoderCacheValid = false;
+    }
+
+    @Override
+    public void resetMultiplePositions(boolean[] resets)
+    {
+        verifyInitialization();
+
+        if(resets.length != NUM_ENCODERS)
+        {
+            throw new IllegalArgumentException("resets.length != 8");
+        }
+
+        byte dat = 0;
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            dat |= resets[i] ? (byte)(1 << i) : 0;
+        }
+
+        sendCommand(OctoQuadCodec.encodeResetEncoders(command(), dat));
+        resetUnwrapped(dat);
+        encoderCacheValid = false;
+    }
+
+    @Override
+    public void resetMultiplePositions(int... indices)
+    {
+        verifyInitialization();
+
+        for(int idx : indices)
+        {
+            throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
+        }
+
+        byte dat = 0;
+
+        for(int idx : indices)
+        {
+            dat |= 1 << idx;
+        }
+
+        sendCommand(OctoQuadCodec.encodeResetEncoders(command(), dat));
+        resetUnwrapped(dat);
+        encoderCacheValid = false;
+    }
+
+    @Override
+    public void setSingleEncoderDirection(int idx, boolean reverse)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
+
+        // The firmware only takes all the directions at once, so we need to know the others
+        Parameters current = parameters();
+
+        int directions = directionBits(current.reversed);
+
+        if(reverse)
+        {
+            directions |= 1 << idx;
+        }
+        else
+        {
+            directions &= ~(1 << idx);
+        }
+
+        sendCommand(OctoQuadCodec.encodeSetEncoderDirections(command(), directions));
+        current.reversed[idx] = reverse;
+    }
+
+    @Override
+    public boolean getSingleEncoderDirection(int idx)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
+
+        return parameters().reversed[idx];
+    }
+
+    @Override
+    public void setAllEncoderDirections(boolean[] reverse)
+    {
+        verifyInitialization();
+
+        if(reverse.length != NUM_ENCODERS)
+        {
+            throw new IllegalArgumentException("reverse.length != 8");
+        }
+
+        sendCommand(OctoQuadCodec.encodeSetEncoderDirections(command(), directionBits(reverse)));
+        System.arraycopy(reverse, 0, parameters.reversed, 0, NUM_ENCODERS);
+    }
+
+    @Override
+    public short readSingleVelocity(int idx)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
+
+        Register register = Register.all[Register.ENCODER_0_VELOCITY.ordinal()+idx];
+        return OctoQuadCodec.getInt16(readEncoderRegisters(register, register), encoderDataOffset(register));
+    }
+
+    @Override
+    public void readAllVelocities(short[] out)
+    {
+        verifyInitialization();
+
+        if(out.length != NUM_ENCODERS)
+        {
+            throw new IllegalArgumentException("out.length != 8");
+        }
+
+        ByteBuffer data = readEncoderRegisters(Register.ENCODER_0_VELOCITY, Register.ENCODER_7_VELOCITY);
+        OctoQuadCodec.decodeVelocities(data, encoderDataOffset(Register.ENCODER_0_VELOCITY), out, 0, NUM_ENCODERS);
+    }
+
+    @Override
+    public short[] readAllVelocities()
+    {
+        verifyInitialization();
+
+        short[] block = new short[NUM_ENCODERS];
+        readAllVelocities(block);
+        return block;
+    }
+
+    @Override
+    public short[] readVelocityRange(int idxFirst, int idxLast)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idxFirst, ENCODER_FIRST, ENCODER_LAST);
+        throwIfRangeIsInvalid(idxLast, idxFirst, ENCODER_LAST);
+
+        short[] velocities = new short[idxLast-idxFirst+1];
+        readVelocityRange(idxFirst, idxLast, velocities);
+        return velocities;
+    }
+
+    @Override
+    public void readVelocityRange(int idxFirst, int idxLast, short[] out)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idxFirst, ENCODER_FIRST, ENCODER_LAST);
+        throwIfRangeIsInvalid(idxLast, idxFirst, ENCODER_LAST);
+
+        int numVelocitiesRead = idxLast-idxFirst+1;
+
+        if(out.length < numVelocitiesRead)
+        {
+            throw new IllegalArgumentException("out.length < idxLast-idxFirst+1");
+        }
+
+        Register registerFirst = Register.all[Register.ENCODER_0_VELOCITY.ordinal()+idxFirst];
+        Register registerLast = Register.all[Register.ENCODER_0_VELOCITY.ordinal()+idxLast];
+
+        ByteBuffer data = readEncoderRegisters(registerFirst, registerLast);
+        OctoQuadCodec.decodeVelocities(data, encoderDataOffset(registerFirst), out, 0, numVelocitiesRead);
+    }
+
+    @Override
+    public void readAllEncoderData(EncoderDataBlock out)
+    {
+        verifyInitialization();
+
+        if(out.positions.length != NUM_ENCODERS)
+        {
+            throw new IllegalArgumentException("out.counts.length != 8");
+        }
+
+        if(out.velocities.length != NUM_ENCODERS)
+        {
+            throw new IllegalArgumentException("out.velocities.length != 8");
+        }
+
+        ByteBuffer data = readEncoderRegisters(Register.ENCODER_0_POSITION, Register.ENCODER_7_VELOCITY);
+        OctoQuadCodec.decodeEncoderBlock(data, encoderDataOffset(Register.ENCODER_0_POSITION), out);
+
+        for(int i = 0; i < NUM_ENCODERS; i++)
+        {
+            out.unwrappedPositions[i] = unwrap(i, out.positions[i]);
+        }
+    }
+
+    @Override
+    public void readAllEncoderDataTimestamped(TimestampedEncoderDataBlock out)
+    {
+        readAllEncoderData(out);
+
+        out.requestNanos = encoderDataRequestNanos;
+        out.responseNanos = encoderDataNanos;
+    }
+
+    @Override
+    public void readEncoderData(OctoQuadReadPlan plan, EncoderDataBlock out)
+    {
+        verifyInitialization();
+
+        ByteBuffer data;
+
+        if(cachedEncoderReads)
+        {
+            data = readEncoderRegisters(Register.ENCODER_0_POSITION, Register.ENCODER_7_VELOCITY);
+        }
+        else
+        {
+            // Each read lands at its own offset, so rx ends up laid out like the whole block
+            long requestNanos = System.nanoTime();
+            long responseNanos = 0;
+
+            for(int i = 0; i < plan.getReadCount(); i++)
+            {
+                int offset = plan.getReadOffset(i);
+                responseNanos = transport.read(Register.ENCODER_0_POSITION.addr + offset, rx, offset, plan.getReadLength(i));
+            }
+
+            noteEncoderDataTime(requestNanos, responseNanos);
+            data = rxBuffer;
+        }
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            if(plan.readsPosition(i))
+            {
+                out.positions[i] = OctoQuadCodec.getInt32(data, OctoQuadReadPlan.positionOffset(i));
+                out.unwrappedPositions[i] = unwrap(i, out.positions[i]);
+            }
+
+            if(plan.readsVelocity(i))
+            {
+                out.velocities[i] = OctoQuadCodec.getInt16(data, OctoQuadReadPlan.velocityOffset(i));
+            }
+        }
+
+        if(out instanceof TimestampedEncoderDataBlock)
+        {
+            ((TimestampedEncoderDataBlock) out).requestNanos = encoderDataRequestNanos;
+            ((TimestampedEncoderDataBlock) out).responseNanos = encoderDataNanos;
+        }
+    }
+
+    @Override
+    public EncoderDataBlock readAllEncoderData()
+    {
+        verifyInitialization();
+
+        EncoderDataBlock block = new EncoderDataBlock();
+        readAllEncoderData(block);
+
+        return block;
+    }
+
+    @Override
+    public void setSingleVelocitySampleInterval(int idx, int intvlms)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
+        throwIfRangeIsInvalid(intvlms, VELOCITY_MEASUREMENT_INTERVAL_MIN, VELOCITY_MEASUREMENT_INTERVAL_MAX);
+
+        sendCommand(OctoQuadCodec.encodeSetVelocitySampleInterval(command(), idx, intvlms));
+        parameters.velocitySampleIntervals[idx] = intvlms;
+    }
+
+    @Override
+    public void setAllVelocitySampleIntervals(int intvlms)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(intvlms, VELOCITY_MEASUREMENT_INTERVAL_MIN, VELOCITY_MEASUREMENT_INTERVAL_MAX);
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            sendCommand(OctoQuadCodec.encodeSetVelocitySampleInterval(command(), i, intvlms));
+            parameters.velocitySampleIntervals[i] = intvlms;
+        }
+    }
+
+    @Override
+    public void setAllVelocitySampleIntervals(int[] intvlms)
+    {
+        verifyInitialization();
+
+        if(intvlms.length != NUM_ENCODERS)
+        {
+            throw new IllegalArgumentException("intvls.length != 8");
+        }
+
+        for(int i : intvlms)
+        {
+            throwIfRangeIsInvalid(i, VELOCITY_MEASUREMENT_INTERVAL_MIN, VELOCITY_MEASUREMENT_INTERVAL_MAX);
+        }
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            sendCommand(OctoQuadCodec.encodeSetVelocitySampleInterval(command(), i, intvlms[i]));
+            parameters.velocitySampleIntervals[i] = intvlms[i];
+        }
+    }
+
+    @Override
+    public int getSingleVelocitySampleInterval(int idx)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
+
+        return parameters().velocitySampleIntervals[idx];
+    }
+
+    @Override
+    public int[] getAllVelocitySampleIntervals()
+    {
+        verifyInitialization();
+
+        int[] ret = new int[NUM_ENCODERS];
+        System.arraycopy(parameters().velocitySampleIntervals, 0, ret, 0, NUM_ENCODERS);
+        return ret;
+    }
+
+    @Override
+    public void setSingleChannelPulseWidthParams(int idx, ChannelPulseWidthParams params)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
+        throwIfRangeIsInvalid(params.min_length_us, PULSE_WIDTH_LENGTH_MIN, PULSE_WIDTH_LENGTH_MAX);
+        throwIfRangeIsInvalid(params.max_length_us, PULSE_WIDTH_LENGTH_MIN, PULSE_WIDTH_LENGTH_MAX);
+
+        if(params.max_length_us <= params.min_length_us)
+        {
+            throw new RuntimeException("params.max_length_us <= params.min_length_us");
+        }
+
+        sendCommand(OctoQuadCodec.encodeSetPulseWidthParams(command(), idx, params.min_length_us, params.max_length_us));
+        parameters.pulseWidthParams[idx].min_length_us = params.min_length_us;
+        parameters.pulseWidthParams[idx].max_length_us = params.max_length_us;
+    }
+
+    @Override
+    public ChannelPulseWidthParams getSingleChannelPulseWidthParams(int idx)
+    {
+        verifyInitialization();
+
+        throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
+
+        ChannelPulseWidthParams current = parameters().pulseWidthParams[idx];
+        return new ChannelPulseWidthParams(current.min_length_us, current.max_length_us);
+    }
+
+    @Override
+    public void resetEverything()
+    {
+        verifyInitialization();
+
+        sendCommand(OctoQuadCodec.encodeResetEverything(command()));
+        resetUnwrapped(0xFF);
+        encoderCacheValid = false;
+        parametersValid = false;
+    }
+
+    @Override
+    public void setChannelBankConfig(ChannelBankConfig config)
+    {
+        verifyInitialization();
+
+        sendCommand(OctoQuadCodec.encodeSetChannelBankConfig(command(), config));
+        parameters.channelBankConfig = config;
+    }
+
+    @Override
+    public ChannelBankConfig getChannelBankConfig()
+    {
+        verifyInitialization();
+
+        return parameters().channelBankConfig;
+    }
+
+    @Override
+    public void setI2cRecoveryMode(I2cRecoveryMode mode)
+    {
+        verifyInitialization();
+
+        sendCommand(OctoQuadCodec.encodeSetI2cRecoveryMode(command(), mode));
+        parameters.i2cRecoveryMode = mode;
+    }
+
+    @Override
+    public I2cRecoveryMode getI2cRecoveryMode()
+    {
+        verifyInitialization();
+
+        return parameters().i2cRecoveryMode;
+    }
+
+    @Override
+    public void saveParametersToFlash()
+    {
+        verifyInitialization();
+
+        saveParametersToFlashAsync().await();
+    }
+
+    @Override
+    public FlashSave saveParametersToFlashAsync()
+    {
+        verifyInitialization();
+
+        sendCommand(OctoQuadCodec.encodeWriteParamsToFlash(command()));
+        pendingFlashSave = new PendingFlashSave();
+
+        return pendingFlashSave;
+    }
+
+    @Override
+    public Parameters getParameters()
+    {
+        verifyInitialization();
+
+        return new Parameters(parameters());
+    }
+
+    @Override
+    public void resyncParameters()
+    {
+        verifyInitialization();
+
+        parametersValid = false;
+
+        int directions = readParam(OctoQuadCodec.encodeReadEncoderDirections(command()));
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            parameters.reversed[i] = (directions & (1 << i)) != 0;
+        }
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            parameters.velocitySampleIntervals[i] = readParam(OctoQuadCodec.encodeReadVelocitySampleInterval(command(), i));
+        }
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            sendCommand(OctoQuadCodec.encodeReadPulseWidthParams(command(), i));
+            ByteBuffer result = readContiguousRegisters(Register.COMMAND_DAT_0, Register.COMMAND_DAT_3);
+            OctoQuadCodec.decodePulseWidthParams(result, 0, parameters.pulseWidthParams[i]);
+        }
+
+        parameters.channelBankConfig = channelBankConfigFromByte(readParam(OctoQuadCodec.encodeReadChannelBankConfig(command())));
+        parameters.i2cRecoveryMode = i2cRecoveryModeFromByte(readParam(OctoQuadCodec.encodeReadI2cRecoveryMode(command())));
+
+        parametersValid = true;
+    }
+
+    @Override
+    public void invalidateParameters()
+    {
+        parametersValid = false;
+    }
+
+    @Override
+    public int applyParameters(Parameters target, boolean saveToFlash)
+    {
+        verifyInitialization();
+
+        throwIfParametersAreInvalid(target);
+
+        Parameters current = parameters();
+        int changes = 0;
+
+        if(!Arrays.equals(current.reversed, target.reversed))
+        {
+            sendCommand(OctoQuadCodec.encodeSetEncoderDirections(command(), directionBits(target.reversed)));
+            System.arraycopy(target.reversed, 0, current.reversed, 0, NUM_ENCODERS);
+            changes++;
+        }
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            if(current.velocitySampleIntervals[i] != target.velocitySampleIntervals[i])
+            {
+                sendCommand(OctoQuadCodec.encodeSetVelocitySampleInterval(command(), i, target.velocitySampleIntervals[i]));
+                current.velocitySampleIntervals[i] = target.velocitySampleIntervals[i];
+                changes++;
+            }
+        }
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            ChannelPulseWidthParams want = target.pulseWidthParams[i];
+            ChannelPulseWidthParams have = current.pulseWidthParams[i];
+
+            if(have.min_length_us != want.min_length_us || have.max_length_us != want.max_length_us)
+            {
+                sendCommand(OctoQuadCodec.encodeSetPulseWidthParams(command(), i, want.min_length_us, want.max_length_us));
+                have.min_length_us = want.min_length_us;
+                have.max_length_us = want.max_length_us;
+                changes++;
+            }
+        }
+
+        if(current.channelBankConfig != target.channelBankConfig)
+        {
+            sendCommand(OctoQuadCodec.encodeSetChannelBankConfig(command(), target.channelBankConfig));
+            current.channelBankConfig = target.channelBankConfig;
+            changes++;
+        }
+
+        if(current.i2cRecoveryMode != target.i2cRecoveryMode)
+        {
+            sendCommand(OctoQuadCodec.encodeSetI2cRecoveryMode(command(), target.i2cRecoveryMode));
+            current.i2cRecoveryMode = target.i2cRecoveryMode;
+            changes++;
+        }
+
+        if(changes != 0 && saveToFlash)
+        {
+            saveParametersToFlashAsync();
+        }
+
+        return changes;
+    }
+
+    @Override
+    public void enableCachedEncoderReads(long maxAge, TimeUnit unit)
+    {
+        verifyInitialization();
+
+        if(maxAge < 0)
+        {
+            throw new IllegalArgumentException("maxAge < 0");
+        }
+
+        if(!cachedEncoderReads)
+        {
+            transport.setReadWindow(Register.ENCODER_0_POSITION.addr, ENCODER_BLOCK_LENGTH);
+        }
+
+        encoderCacheMaxAgeNanos = unit.toNanos(maxAge);
+        encoderCacheValid = false;
+        cachedEncoderReads = true;
+    }
+
+    @Override
+    public void disableCachedEncoderReads()
+    {
+        if(!cachedEncoderReads)
+        {
+            return;
+        }
+
+        transport.setReadWindow(Register.ENCODER_0_POSITION.addr, 0);
+
+        cachedEncoderReads = false;
+        encoderCacheValid = false;
+    }
+
+    @Override
+    public boolean isCachedEncoderReadsEnabled()
+    {
+        return cachedEncoderReads;
+    }
+
+    @Override
+    public long getEncoderDataAgeNanos()
+    {
+        if(encoderDataNanos == 0)
+        {
+            return -1;
+        }
+
+        return System.nanoTime() - encoderDataNanos;
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Report a problem with the device which doesn't stop the driver from
+     * working. By default this goes to stderr; the FTC binding sends it
+     * to the driver station instead.
+     * @param format a {@link String#format(String, Object...)} format string
+     * @param args the format arguments
+     */
+    protected void warn(String format, Object... args)
+    {
+        System.err.println(String.format(format, args));
+    }
+
+    private void verifyInitialization()
+    {
+        if(!isInitialized)
+        {
+            byte chipId = getChipId();
+            if(chipId != OCTOQUAD_CHIP_ID)
+            {
+                warn("OctoQuad does not report correct CHIP_ID value; got 0x%X, expect 0x%X", chipId, OCTOQUAD_CHIP_ID);
+            }
+
+            FirmwareVersion fw = getFirmwareVersion();
+
+            if(fw.maj != SUPPORTED_FW_VERSION_MAJ)
+            {
+                warn("OctoQuad is running a different major firmware version than this driver was built for (current=%d; expect=%d)", fw.maj, SUPPORTED_FW_VERSION_MAJ);
+            }
+
+            isInitialized = true;
+        }
+    }
+
+    /*
+     * Feeds a raw position reading into the channel's 64-bit accumulator. The int
+     * subtraction gives the right delta even across a rollover, as long as the
+     * channel is read at least once per 2^31 counts.
+     */
+    private long unwrap(int idx, int raw)
+    {
+        unwrappedPositions[idx] += raw - lastRawPositions[idx];
+        lastRawPositions[idx] = raw;
+        return unwrappedPositions[idx];
+    }
+
+    /*
+     * The firmware resets a position to 0, so the accumulator starts over from there too
+     */
+    private void resetUnwrapped(int mask)
+    {
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            if((mask & (1 << i)) != 0)
+            {
+                lastRawPositions[i] = 0;
+                unwrappedPositions[i] = 0;
+            }
+        }
+    }
+
+    /*
+     * Returns the parameter shadow, fetching it from the device first if need be
+     */
+    private Parameters parameters()
+    {
+        if(!parametersValid)
+        {
+            resyncParameters();
+        }
+
+        return parameters;
+    }
+
+    /*
+     * Sends a read parameter command and returns the single byte parameter value
+     */
+    private int readParam(int commandLength)
+    {
+        sendCommand(commandLength);
+        return readRegister(Register.COMMAND_DAT_0) & 0xFF;
+    }
+
+    private static void throwIfParametersAreInvalid(Parameters params)
+    {
+        if(params.reversed.length != NUM_ENCODERS
+                || params.velocitySampleIntervals.length != NUM_ENCODERS
+                || params.pulseWidthParams.length != NUM_ENCODERS)
+        {
+            throw new IllegalArgumentException("parameter arrays must have length 8");
+        }
+
+        if(params.channelBankConfig == null || params.i2cRecoveryMode == null)
+        {
+            throw new IllegalArgumentException("channelBankConfig and i2cRecoveryMode must be set");
+        }
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            throwIfRangeIsInvalid(params.velocitySampleIntervals[i], VELOCITY_MEASUREMENT_INTERVAL_MIN, VELOCITY_MEASUREMENT_INTERVAL_MAX);
+            throwIfRangeIsInvalid(params.pulseWidthParams[i].min_length_us, PULSE_WIDTH_LENGTH_MIN, PULSE_WIDTH_LENGTH_MAX);
+            throwIfRangeIsInvalid(params.pulseWidthParams[i].max_length_us, PULSE_WIDTH_LENGTH_MIN, PULSE_WIDTH_LENGTH_MAX);
+
+            if(params.pulseWidthParams[i].max_length_us <= params.pulseWidthParams[i].min_length_us)
+            {
+                throw new IllegalArgumentException("pulseWidthParams[" + i + "].max_length_us <= min_length_us");
+            }
+        }
+    }
+
+    private static int directionBits(boolean[] reversed)
+    {
+        int directions = 0;
+
+        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
+        {
+            if(reversed[i])
+            {
+                directions |= 1 << i;
+            }
+        }
+
+        return directions;
+    }
+
+    private static ChannelBankConfig channelBankConfigFromByte(int b)
+    {
+        for(ChannelBankConfig c : ChannelBankConfig.values())
+        {
+            if(c.bVal == (byte) b)
+            {
+                return c;
+            }
+        }
+
+        return ChannelBankConfig.ALL_QUADRATURE;
+    }
+
+    private static I2cRecoveryMode i2cRecoveryModeFromByte(int b)
+    {
+        for(I2cRecoveryMode m : I2cRecoveryMode.values())
+        {
+            if(m.bVal == (byte) b)
+            {
+                return m;
+            }
+        }
+
+        return I2cRecoveryMode.NONE;
+    }
+
+    private static void throwIfRangeIsInvalid(int number, int min, int max)
+    {
+        if(number < min || number > max)
+        {
+            throw new IllegalArgumentException(String.format("number %d is invalid; valid ranges are %d..%d", number, min, max));
+        }
+    }
+
+    /*
+     * Reads encoder registers first..last. In cached mode this returns the whole
+     * cached encoder block (see encoderDataOffset() for where first sits within it),
+     * otherwise the receive buffer holding exactly first..last.
+     */
+    private ByteBuffer readEncoderRegisters(Register first, Register last)
+    {
+        if(!cachedEncoderReads)
+        {
+            long requestNanos = System.nanoTime();
+            long responseNanos = transport.read(first.addr, rx, 0, last.addr + last.length - first.addr);
+            noteEncoderDataTime(requestNanos, responseNanos);
+            return rxBuffer;
+        }
+
+        if(!encoderCacheValid || System.nanoTime() - encoderDataNanos > encoderCacheMaxAgeNanos)
+        {
+            long requestNanos = System.nanoTime();
+            long responseNanos = transport.read(Register.ENCODER_0_POSITION.addr, encoderCache, 0, ENCODER_BLOCK_LENGTH);
+            noteEncoderDataTime(requestNanos, responseNanos);
+            encoderCacheValid = true;
+        }
+
+        return encoderCacheBuffer;
+    }
+
+    private void noteEncoderDataTime(long requestNanos, long responseNanos)
+    {
+        encoderDataNanos = responseNanos != 0 ? responseNanos : System.nanoTime();
+
+        // A transport serving the read from its own read window cache may
+        // report data that was captured before we even asked for it
+        encoderDataRequestNanos = Math.min(requestNanos, encoderDataNanos);
+    }
+
+    private int encoderDataOffset(Register first)
+    {
+        return cachedEncoderReads ? first.addr - Register.ENCODER_0_POSITION.addr : 0;
+    }
+
+    private byte readRegister(Register reg)
+    {
+        transport.read(reg.addr, rx, 0, reg.length);
+        return rx[0];
+    }
+
+    /*
+     * Returns the receive buffer, holding first..last from offset 0
+     */
+    private ByteBuffer readContiguousRegisters(Register first, Register last)
+    {
+        int addrStart = first.addr;
+        int addrEnd = last.addr + last.length;
+        int bytesToRead = addrEnd-addrStart;
+
+        transport.read(addrStart, rx, 0, bytesToRead);
+        return rxBuffer;
+    }
+
+    /*
+     * Returns the transmit buffer, cleared, for the next command frame to be encoded into
+     */
+    private ByteBuffer command()
+    {
+        txBuffer.clear();
+        return txBuffer;
+    }
+
+    private void sendCommand(int length)
+    {
+        if(pendingFlashSave != null)
+        {
+            // The firmware ignores commands while it's writing flash
+            pendingFlashSave.await();
+        }
+
+        transport.write(Register.COMMAND.addr, tx, 0, length);
+    }
+
+    private class PendingFlashSave implements FlashSave
+    {
+        private final long doneNanos = System.nanoTime() + FLASH_SAVE_TIMEOUT_NANOS;
+        private boolean done = false;
+
+        @Override
+        public boolean isDone()
+        {
+            if(!done && System.nanoTime() - doneNanos >= 0)
+            {
+                done = true;
+
+                if(pendingFlashSave == this)
+                {
+                    pendingFlashSave = null;
+                }
+            }
+
+            return done;
+        }
+
+        @Override
+        public void await()
+        {
+            long wait;
+            while(!isDone() && (wait = doneNanos - System.nanoTime()) > 0)
+            {
+                // Give up waiting if interrupted (e.g. the opmode is stopping), as the old sleep did
+                if(Thread.interrupted())
+                {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+
+                LockSupport.parkNanos(wait);
+            }
+        }
+    }
+}
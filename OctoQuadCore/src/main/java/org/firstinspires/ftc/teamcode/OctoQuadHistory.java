@@ -0,0 +1,258 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size history of one OctoQuad's recent samples, so that latency
+ * compensated code can ask where an encoder was at a given moment, e.g. when
+ * a camera frame was captured.
+ *
+ * Samples are kept in primitive ring buffers with the oldest overwritten once
+ * full. {@link #positionAt(int, long)} and {@link #velocityAt(int, long)} find
+ * the samples either side of the requested time by binary search and interpolate
+ * linearly between them; times after the newest sample are extrapolated from the
+ * last two samples, up to the maximum extrapolation, and times before the oldest
+ * sample get the oldest sample's value. Positions are the unwrapped positions, and
+ * velocities are in the same units as {@link OctoQuadBase.EncoderDataBlock#velocities}.
+ *
+ * Add the history to an {@link OctoQuadSampler} to fill it on the sampler thread,
+ * or call {@link #update(OctoQuadBase.TimestampedEncoderDataBlock)} from the loop.
+ * There must be only one updating thread, but any number of threads may query
+ * concurrently without locking; a query which overlaps the overwriting of the
+ * samples it used simply tries again.
+ */
+public class OctoQuadHistory implements OctoQuadSampler.Listener
+{
+    private final int capacity;
+    private final AtomicLongArray sampleNanos;
+    private final AtomicLongArray positions;
+    private final AtomicIntegerArray velocities;
+
+    /*
+     * The number of samples ever added. Sample n is in slot n % capacity, and
+     * while sample n is being written, sample n - capacity is being overwritten.
+     */
+    private final AtomicLong count = new AtomicLong(0);
+
+    private volatile long maxExtrapolationNanos = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * @param capacity the number of samples to keep
+     */
+    public OctoQuadHistory(int capacity)
+    {
+        if(capacity < 2)
+        {
+            throw new IllegalArgumentException("capacity < 2");
+        }
+
+        this.capacity = capacity;
+        sampleNanos = new AtomicLongArray(capacity);
+        positions = new AtomicLongArray(capacity * OctoQuadBase.NUM_ENCODERS);
+        velocities = new AtomicIntegerArray(capacity * OctoQuadBase.NUM_ENCODERS);
+    }
+
+    /**
+     * Set how far past the newest sample queries may be extrapolated (default 50ms).
+     * Later times get the value extrapolated to this limit.
+     * @param max the maximum extrapolation
+     * @param unit the unit of max
+     */
+    public void setMaxExtrapolation(long max, TimeUnit unit)
+    {
+        if(max < 0)
+        {
+            throw new IllegalArgumentException("max < 0");
+        }
+
+        maxExtrapolationNanos = unit.toNanos(max);
+    }
+
+    @Override
+    public void onSample(OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        update(sample);
+    }
+
+    /**
+     * Add a sample, timestamped with {@link OctoQuadBase.TimestampedEncoderDataBlock#getSampleNanos()}.
+     * Samples which are no newer than the newest one already held (e.g. the same
+     * sample handed back again by a cached read) are ignored.
+     * @param sample the new sample
+     */
+    public void update(OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        long n = count.get();
+        long nanos = sample.getSampleNanos();
+
+        if(n != 0 && nanos - sampleNanos.get(slot(n - 1)) <= 0)
+        {
+            return;
+        }
+
+        int slot = slot(n);
+        sampleNanos.lazySet(slot, nanos);
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            positions.lazySet(slot * OctoQuadBase.NUM_ENCODERS + i, sample.unwrappedPositions[i]);
+            velocities.lazySet(slot * OctoQuadBase.NUM_ENCODERS + i, sample.velocities[i]);
+        }
+
+        count.set(n + 1);
+    }
+
+    /**
+     * @return the number of samples currently held
+     */
+    public int size()
+    {
+        return (int) Math.min(count.get(), capacity);
+    }
+
+    /**
+     * @return the time of the newest sample held
+     */
+    public long getNewestNanos()
+    {
+        long n = throwIfEmpty();
+        return sampleNanos.get(slot(n - 1));
+    }
+
+    /**
+     * @param idx the channel
+     * @param nanos the {@link System#nanoTime()} of interest
+     * @return the channel's unwrapped position at that time
+     */
+    public double positionAt(int idx, long nanos)
+    {
+        return valueAt(idx, nanos, true);
+    }
+
+    /**
+     * @param idx the channel
+     * @param nanos the {@link System#nanoTime()} of interest
+     * @return the channel's velocity at that time
+     */
+    public double velocityAt(int idx, long nanos)
+    {
+        return valueAt(idx, nanos, false);
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    private double valueAt(int idx, long nanos, boolean position)
+    {
+        if(idx < OctoQuadBase.ENCODER_FIRST || idx > OctoQuadBase.ENCODER_LAST)
+        {
+            throw new IllegalArgumentException("channel out of range");
+        }
+
+        while(true)
+        {
+            long n = throwIfEmpty();
+
+            // Leave out the oldest sample, which the next update will overwrite
+            long oldest = Math.max(0, n - capacity + 1);
+            long newest = n - 1;
+
+            double result;
+            long lowestUsed;
+
+            if(oldest == newest)
+            {
+                result = value(idx, newest, position);
+                lowestUsed = newest;
+            }
+            else if(nanos - sampleNanos.get(slot(oldest)) <= 0)
+            {
+                result = value(idx, oldest, position);
+                lowestUsed = oldest;
+            }
+            else
+            {
+                // The last sample at or before nanos, or the one before newest to extrapolate
+                long lo = oldest;
+                long hi = newest - 1;
+                while(lo < hi)
+                {
+                    long mid = (lo + hi + 1) >>> 1;
+                    if(sampleNanos.get(slot(mid)) - nanos <= 0)
+                    {
+                        lo = mid;
+                    }
+                    else
+                    {
+                        hi = mid - 1;
+                    }
+                }
+
+                long t0 = sampleNanos.get(slot(lo));
+                long t1 = sampleNanos.get(slot(lo + 1));
+                long t = Math.min(nanos, sampleNanos.get(slot(newest)) + maxExtrapolationNanos);
+
+                double v0 = value(idx, lo, position);
+                double v1 = value(idx, lo + 1, position);
+
+                result = t1 == t0 ? v1 : v0 + (v1 - v0) * (t - t0) / (double) (t1 - t0);
+                lowestUsed = lo;
+            }
+
+            // Only trust the result if none of the samples used were overwritten meanwhile
+            if(lowestUsed >= count.get() - capacity + 1)
+            {
+                return result;
+            }
+        }
+    }
+
+    private double value(int idx, long sample, boolean position)
+    {
+        int i = slot(sample) * OctoQuadBase.NUM_ENCODERS + idx;
+        return position ? positions.get(i) : velocities.get(i);
+    }
+
+    private int slot(long sample)
+    {
+        return (int) (sample % capacity);
+    }
+
+    private long throwIfEmpty()
+    {
+        long n = count.get();
+
+        if(n == 0)
+        {
+            throw new IllegalStateException("no samples yet");
+        }
+
+        return n;
+    }
+}
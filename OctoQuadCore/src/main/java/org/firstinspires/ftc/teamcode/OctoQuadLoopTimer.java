@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Measures the timing of an encoder-driven loop from the samples it reads: the
+ * distribution of intervals between samples, rather than just the mean, and how
+ * often the loop misses a target period.
+ *
+ * Each {@link OctoQuadBase.TimestampedEncoderDataBlock} records when its read was
+ * requested and when the response arrived, so every interval splits into bus time
+ * (waiting for the read) and caller time (everything the loop did between reads).
+ * Every missed deadline is put down to whichever of the two was larger.
+ *
+ * Call {@link #update(OctoQuadBase.TimestampedEncoderDataBlock)} with every sample
+ * read with {@link OctoQuadBase#readAllEncoderDataTimestamped(OctoQuadBase.TimestampedEncoderDataBlock)},
+ * or add the timer to an {@link OctoQuadSampler} to time the sampler itself. An
+ * update is a few additions and one histogram increment, with no allocation.
+ * Updates must only come from one thread; the getters may be called from any thread.
+ *
+ * Intervals are binned into 100us buckets up to 100ms, so percentiles are
+ * accurate to 100us; the maximum is exact.
+ */
+public class OctoQuadLoopTimer implements OctoQuadSampler.Listener
+{
+    private static final long BUCKET_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final int NUM_BUCKETS = 1000;
+
+    private static final int SAMPLES = 0;
+    private static final int TOTAL_NANOS = 1;
+    private static final int MAX_NANOS = 2;
+    private static final int MISSED = 3;
+    private static final int MISSED_BUS = 4;
+    private static final int MISSED_CALLER = 5;
+    private static final int OVERRUN_BUS_NANOS = 6;
+    private static final int OVERRUN_CALLER_NANOS = 7;
+    private static final int BUS_NANOS = 8;
+    private static final int NUM_STATS = 9;
+
+    private final AtomicLongArray stats = new AtomicLongArray(NUM_STATS);
+    private final AtomicLongArray histogram = new AtomicLongArray(NUM_BUCKETS + 1);
+
+    private volatile long targetPeriodNanos;
+    private volatile boolean resetRequested = false;
+    private long lastResponseNanos = 0;
+
+    /**
+     * @param targetPeriod the loop period to check samples against
+     * @param unit the unit of targetPeriod
+     */
+    public OctoQuadLoopTimer(long targetPeriod, TimeUnit unit)
+    {
+        setTargetPeriod(targetPeriod, unit);
+    }
+
+    /**
+     * @param targetPeriod the loop period to check samples against
+     * @param unit the unit of targetPeriod
+     */
+    public void setTargetPeriod(long targetPeriod, TimeUnit unit)
+    {
+        if(targetPeriod <= 0)
+        {
+            throw new IllegalArgumentException("targetPeriod <= 0");
+        }
+
+        targetPeriodNanos = unit.toNanos(targetPeriod);
+    }
+
+    @Override
+    public void onSample(OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        update(sample);
+    }
+
+    /**
+     * Record a new sample
+     * @param sample the sample the loop just read
+     */
+    public void update(OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        if(resetRequested)
+        {
+            resetRequested = false;
+            for(int i = 0; i < NUM_STATS; i++)
+            {
+                stats.lazySet(i, 0);
+            }
+            for(int i = 0; i <= NUM_BUCKETS; i++)
+            {
+                histogram.lazySet(i, 0);
+            }
+            lastResponseNanos = 0;
+        }
+
+        long previous = lastResponseNanos;
+
+        // A cached read can hand back the same sample again
+        if(previous != 0 && sample.responseNanos == previous)
+        {
+            return;
+        }
+
+        lastResponseNanos = sample.responseNanos;
+
+        // The first sample only starts the clock
+        if(previous == 0)
+        {
+            return;
+        }
+
+        long interval = sample.responseNanos - previous;
+        long busNanos = sample.responseNanos - Math.max(sample.requestNanos, previous);
+        long callerNanos = interval - busNanos;
+
+        add(SAMPLES, 1);
+        add(TOTAL_NANOS, interval);
+        add(BUS_NANOS, busNanos);
+
+        if(interval > stats.get(MAX_NANOS))
+        {
+            stats.lazySet(MAX_NANOS, interval);
+        }
+
+        int bucket = (int) Math.min(NUM_BUCKETS, interval / BUCKET_NANOS);
+        histogram.lazySet(bucket, histogram.get(bucket) + 1);
+
+        long overrun = interval - targetPeriodNanos;
+        if(overrun > 0)
+        {
+            add(MISSED, 1);
+
+            if(busNanos > callerNanos)
+            {
+                add(MISSED_BUS, 1);
+                add(OVERRUN_BUS_NANOS, overrun);
+            }
+            else
+            {
+                add(MISSED_CALLER, 1);
+                add(OVERRUN_CALLER_NANOS, overrun);
+            }
+        }
+    }
+
+    /**
+     * Clear all the measurements. Takes effect on the next update,
+     * so may be called from any thread.
+     */
+    public void reset()
+    {
+        resetRequested = true;
+    }
+
+    /**
+     * @return the number of intervals measured
+     */
+    public long getIntervalCount()
+    {
+        return stats.get(SAMPLES);
+    }
+
+    /**
+     * @return the mean interval between samples, in microseconds
+     */
+    public double getMeanIntervalMicros()
+    {
+        long samples = stats.get(SAMPLES);
+        return samples == 0 ? 0 : stats.get(TOTAL_NANOS) / 1000.0 / samples;
+    }
+
+    /**
+     * @return the mean share of each interval spent waiting on the bus, between 0 and 1
+     */
+    public double getBusFraction()
+    {
+        long total = stats.get(TOTAL_NANOS);
+        return total == 0 ? 0 : (double) stats.get(BUS_NANOS) / total;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the given percentile interval between samples, in microseconds,
+     *         to the nearest 100us bucket above (or the maximum, if over 100ms)
+     */
+    public long getIntervalPercentileMicros(double percentile)
+    {
+        long samples = stats.get(SAMPLES);
+        if(samples == 0)
+        {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(samples * percentile / 100.0));
+        long seen = 0;
+
+        for(int b = 0; b < NUM_BUCKETS; b++)
+        {
+            seen += histogram.get(b);
+            if(seen >= rank)
+            {
+                return (b + 1) * BUCKET_NANOS / 1000;
+            }
+        }
+
+        return getMaxIntervalMicros();
+    }
+
+    /**
+     * @return the longest interval between samples, in microseconds
+     */
+    public long getMaxIntervalMicros()
+    {
+        return stats.get(MAX_NANOS) / 1000;
+    }
+
+    /**
+     * @return the number of intervals longer than the target period
+     */
+    public long getMissedDeadlines()
+    {
+        return stats.get(MISSED);
+    }
+
+    /**
+     * @return the number of missed deadlines where more of the interval was spent on the bus
+     */
+    public long getMissedDeadlinesFromBus()
+    {
+        return stats.get(MISSED_BUS);
+    }
+
+    /**
+     * @return the number of missed deadlines where more of the interval was spent in the caller
+     */
+    public long getMissedDeadlinesFromCaller()
+    {
+        return stats.get(MISSED_CALLER);
+    }
+
+    /**
+     * @return the total time by which deadlines put down to the bus were missed, in microseconds
+     */
+    public long getBusOverrunMicros()
+    {
+        return stats.get(OVERRUN_BUS_NANOS) / 1000;
+    }
+
+    /**
+     * @return the total time by which deadlines put down to the caller were missed, in microseconds
+     */
+    public long getCallerOverrunMicros()
+    {
+        return stats.get(OVERRUN_CALLER_NANOS) / 1000;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("p50=%.1fms p99=%.1fms max=%.1fms missed=%d (bus %d, caller %d)",
+                getIntervalPercentileMicros(50) / 1000.0,
+                getIntervalPercentileMicros(99) / 1000.0,
+                getMaxIntervalMicros() / 1000.0,
+                getMissedDeadlines(),
+                getMissedDeadlinesFromBus(),
+                getMissedDeadlinesFromCaller());
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    /*
+     * Updates only come from one thread, so this needn't be atomic; the atomic
+     * array is just so that the getters see the latest values.
+     */
+    private void add(int stat, long value)
+    {
+        stats.lazySet(stat, stats.get(stat) + value);
+    }
+}
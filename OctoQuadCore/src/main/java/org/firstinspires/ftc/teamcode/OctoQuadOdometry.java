@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Dead-wheel odometry integrated on every bulk sample. Add it to an
+ * {@link OctoQuadSampler} and the pose is updated on the sampler thread at the
+ * full sample rate, however slow the opmode loop is.
+ *
+ * The robot frame has x forward and y to the left, and heading is counter-clockwise
+ * in radians. Each {@link Wheel} gives a channel, where the wheel sits on the robot,
+ * the direction it measures, and its ticks per distance unit; the pose comes out in
+ * the same distance unit. Three wheels determine the heading themselves, while two
+ * wheels need a {@link HeadingSource} such as an IMU.
+ *
+ * Every update turns the wheels' unwrapped position deltas into a robot-relative
+ * motion, and integrates it assuming constant velocity over the sample (i.e. along
+ * an arc rather than a straight line). Updates don't allocate: the pose is
+ * published as primitive fields behind a version stamp, so {@link #getPose()} and
+ * {@link #readPose(double[])} may be called from any thread without locking.
+ * Updates must only come from one thread.
+ *
+ * Resetting the encoder positions while integrating looks like a sudden jump;
+ * call {@link #setPose(Pose)} after doing so.
+ */
+public class OctoQuadOdometry implements OctoQuadSampler.Listener
+{
+    /**
+     * A dead wheel's place on the robot
+     */
+    public static class Wheel
+    {
+        public final int channel;
+        public final double x;
+        public final double y;
+        public final double direction;
+        public final double ticksPerUnit;
+
+        /**
+         * @param channel the OctoQuad channel the wheel's encoder is connected to
+         * @param x the wheel's forward offset from the robot's center of rotation
+         * @param y the wheel's leftward offset from the robot's center of rotation
+         * @param direction the direction of travel which increases the count, in radians
+         *                  from the robot's forward axis (0 for forward, pi/2 for left)
+         * @param ticksPerUnit encoder counts per distance unit travelled by the wheel
+         */
+        public Wheel(int channel, double x, double y, double direction, double ticksPerUnit)
+        {
+            if(channel < 0 || channel >= OctoQuadBase.NUM_ENCODERS)
+            {
+                throw new IllegalArgumentException("channel out of range");
+            }
+            if(ticksPerUnit == 0)
+            {
+                throw new IllegalArgumentException("ticksPerUnit == 0");
+            }
+
+            this.channel = channel;
+            this.x = x;
+            this.y = y;
+            this.direction = direction;
+            this.ticksPerUnit = ticksPerUnit;
+        }
+    }
+
+    /**
+     * Supplies the robot's heading for two-wheel odometry.
+     * Called on the updating thread with every sample.
+     */
+    public interface HeadingSource
+    {
+        /**
+         * @return the robot's heading, counter-clockwise in radians
+         */
+        double getHeading();
+    }
+
+    /**
+     * A field-relative robot pose
+     */
+    public static class Pose
+    {
+        public final double x;
+        public final double y;
+        public final double heading;
+
+        /**
+         * The {@link System#nanoTime()} at which the sample this pose was integrated
+         * from was received, or 0 for a pose which was set rather than integrated
+         */
+        public final long nanos;
+
+        public Pose(double x, double y, double heading)
+        {
+            this(x, y, heading, 0);
+        }
+
+        public Pose(double x, double y, double heading, long nanos)
+        {
+            this.x = x;
+            this.y = y;
+            this.heading = heading;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("(%.3f, %.3f, %.1f deg)", x, y, Math.toDegrees(heading));
+        }
+    }
+
+    private final int[] channels;
+    private final double[] unitsPerTick;
+    private final HeadingSource headingSource;
+
+    /*
+     * Row-major inverse of the matrix mapping robot-relative motion (dx, dy, dHeading)
+     * to wheel travel, or for two wheels, (dx, dy) to wheel travel once the heading
+     * change has been subtracted out using headingTerms.
+     */
+    private final double[] inverse;
+    private final double[] headingTerms;
+
+    private final long[] lastPositions;
+    private final double[] travel;
+    private boolean latched = false;
+
+    // Only touched by the updating thread
+    private double x = 0;
+    private double y = 0;
+    private double heading = 0;
+    private double headingOffset = 0;
+
+    private static final int POSE_X = 0;
+    private static final int POSE_Y = 1;
+    private static final int POSE_HEADING = 2;
+    private static final int POSE_NANOS = 3;
+
+    /*
+     * The published pose, as double bits plus the sample time. The version is odd
+     * while an update is writing it, so readers retry until they see the same even
+     * version either side of their read.
+     */
+    private final AtomicLong poseVersion = new AtomicLong(0);
+    private final AtomicLongArray poseBits = new AtomicLongArray(4);
+    private final AtomicReference<Pose> pendingPose = new AtomicReference<Pose>(null);
+
+    /**
+     * Three-wheel odometry with two parallel wheels and one perpendicular wheel
+     * @param leftChannel the channel of the left parallel wheel
+     * @param rightChannel the channel of the right parallel wheel
+     * @param perpendicularChannel the channel of the perpendicular wheel
+     * @param trackWidth the distance between the parallel wheels
+     * @param perpendicularOffset the perpendicular wheel's forward offset from the center of rotation
+     * @param ticksPerUnit encoder counts per distance unit, the same for all wheels
+     * @return the odometry
+     */
+    public static OctoQuadOdometry threeWheel(int leftChannel, int rightChannel, int perpendicularChannel,
+                                              double trackWidth, double perpendicularOffset, double ticksPerUnit)
+    {
+        return new OctoQuadOdometry(new Wheel[] {
+                new Wheel(leftChannel, 0, trackWidth / 2, 0, ticksPerUnit),
+                new Wheel(rightChannel, 0, -trackWidth / 2, 0, ticksPerUnit),
+                new Wheel(perpendicularChannel, perpendicularOffset, 0, Math.PI / 2, ticksPerUnit)
+        });
+    }
+
+    /**
+     * Two-wheel odometry with one parallel wheel, one perpendicular wheel and an external heading
+     * @param parallelChannel the channel of the parallel wheel
+     * @param perpendicularChannel the channel of the perpendicular wheel
+     * @param parallelOffset the parallel wheel's leftward offset from the center of rotation
+     * @param perpendicularOffset the perpendicular wheel's forward offset from the center of rotation
+     * @param ticksPerUnit encoder counts per distance unit, the same for both wheels
+     * @param headingSource where to get the robot's heading from
+     * @return the odometry
+     */
+    public static OctoQuadOdometry twoWheel(int parallelChannel, int perpendicularChannel,
+                                            double parallelOffset, double perpendicularOffset,
+                                            double ticksPerUnit, HeadingSource headingSource)
+    {
+        return new OctoQuadOdometry(new Wheel[] {
+                new Wheel(parallelChannel, 0, parallelOffset, 0, ticksPerUnit),
+                new Wheel(perpendicularChannel, perpendicularOffset, 0, Math.PI / 2, ticksPerUnit)
+        }, headingSource);
+    }
+
+    /**
+     * Three-wheel odometry with any wheel layout
+     * @param wheels the three wheels
+     */
+    public OctoQuadOdometry(Wheel[] wheels)
+    {
+        this(wheels, null);
+    }
+
+    /**
+     * Odometry with any wheel layout
+     * @param wheels three wheels, or two wheels if headingSource is given
+     * @param headingSource where to get the robot's heading from, or null to use three wheels
+     */
+    public OctoQuadOdometry(Wheel[] wheels, HeadingSource headingSource)
+    {
+        int n = headingSource == null ? 3 : 2;
+
+        if(wheels.length != n)
+        {
+            throw new IllegalArgumentException(headingSource == null
+                    ? "three wheels are needed without a heading source"
+                    : "two wheels are needed with a heading source");
+        }
+
+        this.headingSource = headingSource;
+        channels = new int[n];
+        unitsPerTick = new double[n];
+        lastPositions = new long[n];
+        travel = new double[n];
+        headingTerms = new double[n];
+
+        double[] matrix = new double[n * n];
+
+        for(int i = 0; i < n; i++)
+        {
+            Wheel wheel = wheels[i];
+            double cos = Math.cos(wheel.direction);
+            double sin = Math.sin(wheel.direction);
+
+            channels[i] = wheel.channel;
+            unitsPerTick[i] = 1.0 / wheel.ticksPerUnit;
+            headingTerms[i] = wheel.x * sin - wheel.y * cos;
+
+            matrix[i * n] = cos;
+            matrix[i * n + 1] = sin;
+            if(n == 3)
+            {
+                matrix[i * n + 2] = headingTerms[i];
+            }
+        }
+
+        inverse = n == 3 ? invert3(matrix) : invert2(matrix);
+
+        if(headingSource != null)
+        {
+            headingOffset = -headingSource.getHeading();
+        }
+    }
+
+    @Override
+    public void onSample(OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        update(sample, sample.responseNanos);
+    }
+
+    /**
+     * Process a new sample
+     * @param sample the latest encoder data
+     */
+    public void update(OctoQuadBase.EncoderDataBlock sample)
+    {
+        update(sample, System.nanoTime());
+    }
+
+    /**
+     * @return the most recently integrated pose
+     */
+    public Pose getPose()
+    {
+        double[] xyh = new double[3];
+        long nanos = readPose(xyh);
+        return new Pose(xyh[0], xyh[1], xyh[2], nanos);
+    }
+
+    /**
+     * Read the most recently integrated pose without allocating
+     * @param out array of at least 3 to fill with x, y and heading
+     * @return the {@link System#nanoTime()} at which the sample the pose was integrated
+     *         from was received, or 0 if it was set rather than integrated
+     */
+    public long readPose(double[] out)
+    {
+        if(out.length < 3)
+        {
+            throw new IllegalArgumentException("out.length < 3");
+        }
+
+        while(true)
+        {
+            long version = poseVersion.get();
+            if((version & 1) != 0)
+            {
+                continue;
+            }
+
+            out[0] = Double.longBitsToDouble(poseBits.get(POSE_X));
+            out[1] = Double.longBitsToDouble(poseBits.get(POSE_Y));
+            out[2] = Double.longBitsToDouble(poseBits.get(POSE_HEADING));
+            long nanos = poseBits.get(POSE_NANOS);
+
+            if(poseVersion.get() == version)
+            {
+                return nanos;
+            }
+        }
+    }
+
+    /**
+     * Set the current pose, e.g. at the start of an opmode. Integration continues
+     * from this pose on the next update, so it may be called from any thread.
+     * @param newPose the robot's pose
+     */
+    public void setPose(Pose newPose)
+    {
+        pendingPose.set(newPose);
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    private void update(OctoQuadBase.EncoderDataBlock sample, long nanos)
+    {
+        Pose requested = pendingPose.getAndSet(null);
+        if(requested != null)
+        {
+            x = requested.x;
+            y = requested.y;
+            heading = requested.heading;
+            if(headingSource != null)
+            {
+                headingOffset = requested.heading - headingSource.getHeading();
+            }
+            latched = false;
+        }
+
+        for(int i = 0; i < channels.length; i++)
+        {
+            long position = sample.unwrappedPositions[channels[i]];
+            travel[i] = (position - lastPositions[i]) * unitsPerTick[i];
+            lastPositions[i] = position;
+        }
+
+        if(!latched)
+        {
+            latched = true;
+            publish(nanos);
+            return;
+        }
+
+        double dx;
+        double dy;
+        double dHeading;
+
+        if(headingSource == null)
+        {
+            dx = inverse[0] * travel[0] + inverse[1] * travel[1] + inverse[2] * travel[2];
+            dy = inverse[3] * travel[0] + inverse[4] * travel[1] + inverse[5] * travel[2];
+            dHeading = inverse[6] * travel[0] + inverse[7] * travel[1] + inverse[8] * travel[2];
+        }
+        else
+        {
+            double newHeading = headingSource.getHeading() + headingOffset;
+            dHeading = normalize(newHeading - heading);
+
+            double t0 = travel[0] - headingTerms[0] * dHeading;
+            double t1 = travel[1] - headingTerms[1] * dHeading;
+            dx = inverse[0] * t0 + inverse[1] * t1;
+            dy = inverse[2] * t0 + inverse[3] * t1;
+        }
+
+        // Constant velocity over the sample means the robot moved along an arc
+        double sinTerm;
+        double cosTerm;
+        if(Math.abs(dHeading) < 1e-6)
+        {
+            sinTerm = 1 - dHeading * dHeading / 6;
+            cosTerm = dHeading / 2;
+        }
+        else
+        {
+            sinTerm = Math.sin(dHeading) / dHeading;
+            cosTerm = (1 - Math.cos(dHeading)) / dHeading;
+        }
+
+        double arcX = dx * sinTerm - dy * cosTerm;
+        double arcY = dx * cosTerm + dy * sinTerm;
+
+        double cos = Math.cos(heading);
+        double sin = Math.sin(heading);
+        x += arcX * cos - arcY * sin;
+        y += arcX * sin + arcY * cos;
+        heading += dHeading;
+
+        publish(nanos);
+    }
+
+    private void publish(long nanos)
+    {
+        long version = poseVersion.get();
+        poseVersion.set(version + 1);
+        poseBits.set(POSE_X, Double.doubleToRawLongBits(x));
+        poseBits.set(POSE_Y, Double.doubleToRawLongBits(y));
+        poseBits.set(POSE_HEADING, Double.doubleToRawLongBits(normalize(heading)));
+        poseBits.set(POSE_NANOS, nanos);
+        poseVersion.set(version + 2);
+    }
+
+    private static double normalize(double angle)
+    {
+        angle %= 2 * Math.PI;
+        if(angle > Math.PI)
+        {
+            angle -= 2 * Math.PI;
+        }
+        else if(angle <= -Math.PI)
+        {
+            angle += 2 * Math.PI;
+        }
+        return angle;
+    }
+
+    private static double[] invert2(double[] m)
+    {
+        double det = m[0] * m[3] - m[1] * m[2];
+        throwIfSingular(det);
+
+        return new double[] {
+                m[3] / det, -m[1] / det,
+                -m[2] / det, m[0] / det
+        };
+    }
+
+    private static double[] invert3(double[] m)
+    {
+        double c00 = m[4] * m[8] - m[5] * m[7];
+        double c01 = m[5] * m[6] - m[3] * m[8];
+        double c02 = m[3] * m[7] - m[4] * m[6];
+
+        double det = m[0] * c00 + m[1] * c01 + m[2] * c02;
+        throwIfSingular(det);
+
+        return new double[] {
+                c00 / det, (m[2] * m[7] - m[1] * m[8]) / det, (m[1] * m[5] - m[2] * m[4]) / det,
+                c01 / det, (m[0] * m[8] - m[2] * m[6]) / det, (m[2] * m[3] - m[0] * m[5]) / det,
+                c02 / det, (m[1] * m[6] - m[0] * m[7]) / det, (m[0] * m[4] - m[1] * m[3]) / det
+        };
+    }
+
+    private static void throwIfSingular(double det)
+    {
+        if(Math.abs(det) < 1e-9)
+        {
+            throw new IllegalArgumentException("wheel layout can't determine the robot's motion");
+        }
+    }
+}
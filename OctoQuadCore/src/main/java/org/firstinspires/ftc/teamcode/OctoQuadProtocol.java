@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+/**
+ * The OctoQuad's register map and command set, as implemented by the firmware
+ */
+final class OctoQuadProtocol
+{
+    static final byte CMD_SET_PARAM = 1;
+    static final byte CMD_READ_PARAM = 2;
+    static final byte CMD_WRITE_PARAMS_TO_FLASH = 3;
+
+    static final byte CMD_RESET_EVERYTHING = 20;
+    static final byte CMD_RESET_ENCODERS = 21;
+
+    static final byte PARAM_ENCODER_DIRECTIONS = 0;
+    static final byte PARAM_I2C_RECOVERY_MODE = 1;
+    static final byte PARAM_CHANNEL_BANK_CONFIG = 2;
+    static final byte PARAM_CHANNEL_VEL_INTVL = 3;
+    static final byte PARAM_CHANNEL_PULSE_WIDTH_MIN_MAX = 4;
+
+    static final int ENCODER_BLOCK_LENGTH = 48; // ENCODER_0_POSITION..ENCODER_7_VELOCITY
+
+    private OctoQuadProtocol() {}
+
+    enum RegisterType
+    {
+        uint8_t(1),
+        int32_t(4),
+        int16_t(2);
+
+        public final int length;
+
+        RegisterType(int length)
+        {
+            this.length = length;
+        }
+    }
+
+    enum Register
+    {
+        CHIP_ID                           (0x00, RegisterType.uint8_t),
+        FIRMWARE_VERSION_MAJOR            (0x01, RegisterType.uint8_t),
+        FIRMWARE_VERSION_MINOR            (0x02, RegisterType.uint8_t),
+        FIRMWARE_VERSION_ENGINEERING      (0x03, RegisterType.uint8_t),
+        COMMAND                           (0x04, RegisterType.uint8_t),
+        COMMAND_DAT_0                     (0x05, RegisterType.uint8_t),
+        COMMAND_DAT_1                     (0x06, RegisterType.uint8_t),
+        COMMAND_DAT_2                     (0x07, RegisterType.uint8_t),
+        COMMAND_DAT_3                     (0x08, RegisterType.uint8_t),
+        COMMAND_DAT_4                     (0x09, RegisterType.uint8_t),
+        COMMAND_DAT_5                     (0x0A, RegisterType.uint8_t),
+        COMMAND_DAT_6                     (0x0B, RegisterType.uint8_t),
+
+        ENCODER_0_POSITION                (0x0C, RegisterType.int32_t),
+        ENCODER_1_POSITION                (0x10, RegisterType.int32_t),
+        ENCODER_2_POSITION                (0x14, RegisterType.int32_t),
+        ENCODER_3_POSITION                (0x18, RegisterType.int32_t),
+        ENCODER_4_POSITION                (0x1C, RegisterType.int32_t),
+        ENCODER_5_POSITION                (0x20, RegisterType.int32_t),
+        ENCODER_6_POSITION                (0x24, RegisterType.int32_t),
+        ENCODER_7_POSITION                (0x28, RegisterType.int32_t),
+
+        ENCODER_0_VELOCITY                (0x2C, RegisterType.int16_t),
+        ENCODER_1_VELOCITY                (0x2E, RegisterType.int16_t),
+        ENCODER_2_VELOCITY                (0x30, RegisterType.int16_t),
+        ENCODER_3_VELOCITY                (0x32, RegisterType.int16_t),
+        ENCODER_4_VELOCITY                (0x34, RegisterType.int16_t),
+        ENCODER_5_VELOCITY                (0x36, RegisterType.int16_t),
+        ENCODER_6_VELOCITY                (0x38, RegisterType.int16_t),
+        ENCODER_7_VELOCITY                (0x3A, RegisterType.int16_t);
+
+        public final byte addr;
+        public final int length;
+
+        Register(int addr, RegisterType type)
+        {
+            this.addr = (byte) addr;
+            this.length = type.length;
+        }
+
+        public static final Register[] all = Register.values();
+    }
+}
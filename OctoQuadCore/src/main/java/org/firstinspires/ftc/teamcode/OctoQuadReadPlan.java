@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+/**
+ * The cheapest way to read a chosen set of encoder positions and velocities.
+ *
+ * The encoder block is 8 int32 positions followed by 8 int16 velocities, and
+ * every I2C read costs a fixed transaction overhead plus a time per byte. A plan
+ * works out, once, which contiguous spans of the block to read so that the total
+ * cost is lowest: e.g. with the default 100 kHz costs, positions 0, 1 and 7 plus
+ * velocity 1 are read as two spans, positions 0-1 and position 7 through velocity 1.
+ *
+ * Execute a plan as often as needed with
+ * {@link OctoQuadBase#readEncoderData(OctoQuadReadPlan, OctoQuadBase.EncoderDataBlock)},
+ * which doesn't allocate.
+ */
+public final class OctoQuadReadPlan
+{
+    private static final int POSITION_SIZE = 4;
+    private static final int VELOCITY_SIZE = 2;
+
+    private final int positionMask;
+    private final int velocityMask;
+    private final int[] readOffsets;
+    private final int[] readLengths;
+    private final long costNanos;
+
+    /**
+     * Plan reads using the default bus cost model ({@link OctoQuadBusCostModel#HUB_100K})
+     * @param positionChannels the channels whose positions are wanted
+     * @param velocityChannels the channels whose velocities are wanted
+     */
+    public OctoQuadReadPlan(int[] positionChannels, int[] velocityChannels)
+    {
+        this(positionChannels, velocityChannels, OctoQuadBusCostModel.HUB_100K);
+    }
+
+    /**
+     * Plan reads using a given bus cost model
+     * @param positionChannels the channels whose positions are wanted
+     * @param velocityChannels the channels whose velocities are wanted
+     * @param busCost the cost of a read transaction
+     */
+    public OctoQuadReadPlan(int[] positionChannels, int[] velocityChannels, OctoQuadBusCostModel busCost)
+    {
+        positionMask = maskOf(positionChannels);
+        velocityMask = maskOf(velocityChannels);
+
+        if(positionMask == 0 && velocityMask == 0)
+        {
+            throw new IllegalArgumentException("nothing to read");
+        }
+
+        // The wanted spans of the block, in address order
+        int[] starts = new int[2 * OctoQuadBase.NUM_ENCODERS];
+        int[] ends = new int[2 * OctoQuadBase.NUM_ENCODERS];
+        int n = 0;
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            if((positionMask & (1 << i)) != 0)
+            {
+                starts[n] = positionOffset(i);
+                ends[n++] = positionOffset(i) + POSITION_SIZE;
+            }
+        }
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            if((velocityMask & (1 << i)) != 0)
+            {
+                starts[n] = velocityOffset(i);
+                ends[n++] = velocityOffset(i) + VELOCITY_SIZE;
+            }
+        }
+
+        /*
+         * best[k] is the lowest cost of reading the first k spans, where the last
+         * read covers spans from[k]..k-1. With at most 16 spans, trying every
+         * split point is trivial.
+         */
+        long[] best = new long[n + 1];
+        int[] from = new int[n + 1];
+
+        for(int k = 1; k <= n; k++)
+        {
+            best[k] = Long.MAX_VALUE;
+
+            for(int j = 0; j < k; j++)
+            {
+                long cost = best[j] + busCost.nanosFor(ends[k - 1] - starts[j]);
+                if(cost < best[k])
+                {
+                    best[k] = cost;
+                    from[k] = j;
+                }
+            }
+        }
+
+        int reads = 0;
+        for(int k = n; k > 0; k = from[k])
+        {
+            reads++;
+        }
+
+        readOffsets = new int[reads];
+        readLengths = new int[reads];
+
+        for(int k = n; k > 0; k = from[k])
+        {
+            reads--;
+            readOffsets[reads] = starts[from[k]];
+            readLengths[reads] = ends[k - 1] - starts[from[k]];
+        }
+
+        costNanos = best[n];
+    }
+
+    /**
+     * @return the number of reads in the plan
+     */
+    public int getReadCount()
+    {
+        return readOffsets.length;
+    }
+
+    /**
+     * @param read the read in question
+     * @return its start, as a byte offset from {@link OctoQuadCodec#ENCODER_BLOCK_REGISTER}
+     */
+    public int getReadOffset(int read)
+    {
+        return readOffsets[read];
+    }
+
+    /**
+     * @param read the read in question
+     * @return its length in bytes
+     */
+    public int getReadLength(int read)
+    {
+        return readLengths[read];
+    }
+
+    /**
+     * @return the estimated bus time of executing the plan, according to its cost model
+     */
+    public long getCostNanos()
+    {
+        return costNanos;
+    }
+
+    /**
+     * @param idx the channel
+     * @return whether the plan reads this channel's position
+     */
+    public boolean readsPosition(int idx)
+    {
+        return (positionMask & (1 << idx)) != 0;
+    }
+
+    /**
+     * @param idx the channel
+     * @return whether the plan reads this channel's velocity
+     */
+    public boolean readsVelocity(int idx)
+    {
+        return (velocityMask & (1 << idx)) != 0;
+    }
+
+    /**
+     * @param idx the channel
+     * @return the byte offset of the channel's position within the encoder block
+     */
+    static int positionOffset(int idx)
+    {
+        return idx * POSITION_SIZE;
+    }
+
+    /**
+     * @param idx the channel
+     * @return the byte offset of the channel's velocity within the encoder block
+     */
+    static int velocityOffset(int idx)
+    {
+        return OctoQuadCodec.ENCODER_BLOCK_VELOCITY_OFFSET + idx * VELOCITY_SIZE;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder("OctoQuadReadPlan[");
+
+        for(int i = 0; i < readOffsets.length; i++)
+        {
+            if(i != 0)
+            {
+                sb.append(", ");
+            }
+            sb.append(readOffsets[i]).append('+').append(readLengths[i]);
+        }
+
+        return sb.append("; ").append(costNanos / 1000).append("us]").toString();
+    }
+
+    private static int maskOf(int[] channels)
+    {
+        int mask = 0;
+
+        for(int idx : channels)
+        {
+            if(idx < OctoQuadBase.ENCODER_FIRST || idx > OctoQuadBase.ENCODER_LAST)
+            {
+                throw new IllegalArgumentException("channel " + idx + " out of range");
+            }
+
+            mask |= 1 << idx;
+        }
+
+        return mask;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every encoder sample into a memory-mapped ring file, as fixed-width
+ * binary records, for analysis after a match. Once the file is full the oldest
+ * records are overwritten.
+ *
+ * Recording a sample only copies it into a preallocated hand-off queue, so it
+ * can be done on the sampling path (e.g. as an {@link OctoQuadSampler} listener)
+ * without slowing it down; a dedicated writer thread moves queued samples into
+ * the file. If the writer falls so far behind that the queue fills, new samples
+ * are dropped and counted rather than making the sampling path wait.
+ *
+ * The file is little-endian: a {@link #HEADER_SIZE} byte header holding
+ * {@link #MAGIC}, the format version, the record size, the ring capacity and
+ * the total number of records written, followed by the ring of
+ * {@link #RECORD_SIZE} byte records. Record n (counting from 0) is in slot
+ * n % capacity, and holds n, the sample's request and response nanoTimes, the
+ * device id, the 8 positions and the 8 velocities.
+ */
+public class OctoQuadRecorder implements OctoQuadSampler.Listener, Closeable
+{
+    public static final long MAGIC = 0x3130474E4952514FL; // "OQRING01"
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int RECORD_SIZE = 80;
+
+    static final int HEADER_VERSION = 8;
+    static final int HEADER_RECORD_SIZE = 12;
+    static final int HEADER_CAPACITY = 16;
+    static final int HEADER_COUNT = 24;
+
+    static final int RECORD_SEQUENCE = 0;
+    static final int RECORD_REQUEST_NANOS = 8;
+    static final int RECORD_RESPONSE_NANOS = 16;
+    static final int RECORD_DEVICE_ID = 24;
+    static final int RECORD_POSITIONS = 28;
+    static final int RECORD_VELOCITIES = 60;
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    private static final long WRITER_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer map;
+    private final long capacity;
+    private final int deviceId;
+
+    /*
+     * Single producer, single consumer hand-off queue, with each field of the
+     * queued samples in its own primitive array.
+     */
+    private final int queueCapacity;
+    private final long[] queuedRequestNanos;
+    private final long[] queuedResponseNanos;
+    private final int[] queuedDeviceIds;
+    private final int[] queuedPositions;
+    private final short[] queuedVelocities;
+    private final AtomicLong queueHead = new AtomicLong(0); // next to write to the file
+    private final AtomicLong queueTail = new AtomicLong(0); // next free slot
+
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile long droppedCount = 0;
+    private volatile long recordedCount = 0;
+
+    /**
+     * Create a recorder with the default hand-off queue size, and start its writer thread
+     * @param file the file to record to, which is overwritten
+     * @param capacity the number of records the ring holds
+     * @param deviceId the device id to record samples under
+     * @throws IOException if the file can't be created and mapped
+     */
+    public OctoQuadRecorder(File file, int capacity, int deviceId) throws IOException
+    {
+        this(file, capacity, deviceId, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Create a recorder, and start its writer thread
+     * @param file the file to record to, which is overwritten
+     * @param capacity the number of records the ring holds
+     * @param deviceId the device id to record samples under
+     * @param queueCapacity the number of samples which may be waiting for the writer
+     * @throws IOException if the file can't be created and mapped
+     */
+    public OctoQuadRecorder(File file, int capacity, int deviceId, int queueCapacity) throws IOException
+    {
+        if(capacity <= 0 || queueCapacity <= 0)
+        {
+            throw new IllegalArgumentException("capacity <= 0");
+        }
+
+        this.capacity = capacity;
+        this.deviceId = deviceId;
+        this.queueCapacity = queueCapacity;
+
+        queuedRequestNanos = new long[queueCapacity];
+        queuedResponseNanos = new long[queueCapacity];
+        queuedDeviceIds = new int[queueCapacity];
+        queuedPositions = new int[queueCapacity * OctoQuadBase.NUM_ENCODERS];
+        queuedVelocities = new short[queueCapacity * OctoQuadBase.NUM_ENCODERS];
+
+        long size = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        if(size > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("capacity too large to map");
+        }
+
+        this.file = new RandomAccessFile(file, "rw");
+        try
+        {
+            this.file.setLength(0);
+            this.file.setLength(size);
+            map = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        catch (IOException e)
+        {
+            this.file.close();
+            throw e;
+        }
+
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        map.putLong(0, MAGIC);
+        map.putInt(HEADER_VERSION, VERSION);
+        map.putInt(HEADER_RECORD_SIZE, RECORD_SIZE);
+        map.putLong(HEADER_CAPACITY, capacity);
+        map.putLong(HEADER_COUNT, 0);
+
+        writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writerLoop();
+            }
+        }, "OctoQuad recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void onSample(OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        record(deviceId, sample);
+    }
+
+    /**
+     * Queue a sample for recording under this recorder's device id.
+     * Samples must only be recorded from one thread.
+     * @param sample the sample to record
+     * @return false if the queue was full and the sample was dropped
+     */
+    public boolean record(OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        return record(deviceId, sample);
+    }
+
+    /**
+     * Queue a sample for recording under a given device id, e.g. when recording
+     * several devices into one file. Samples must only be recorded from one thread.
+     * @param deviceId the device id to record the sample under
+     * @param sample the sample to record
+     * @return false if the queue was full and the sample was dropped
+     */
+    public boolean record(int deviceId, OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        long tail = queueTail.get();
+
+        if(!running || tail - queueHead.get() >= queueCapacity)
+        {
+            droppedCount++;
+            return false;
+        }
+
+        int slot = (int) (tail % queueCapacity);
+        queuedRequestNanos[slot] = sample.requestNanos;
+        queuedResponseNanos[slot] = sample.responseNanos;
+        queuedDeviceIds[slot] = deviceId;
+        System.arraycopy(sample.positions, 0, queuedPositions, slot * OctoQuadBase.NUM_ENCODERS, OctoQuadBase.NUM_ENCODERS);
+        System.arraycopy(sample.velocities, 0, queuedVelocities, slot * OctoQuadBase.NUM_ENCODERS, OctoQuadBase.NUM_ENCODERS);
+
+        queueTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * @return the number of samples written to the file so far
+     */
+    public long getRecordedCount()
+    {
+        return recordedCount;
+    }
+
+    /**
+     * @return the number of samples dropped because the queue was full
+     */
+    public long getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    /**
+     * Write out any queued samples, stop the writer thread, flush the file to disk and close it
+     * @throws IOException if the file can't be closed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if(!running)
+        {
+            return;
+        }
+
+        running = false;
+        LockSupport.unpark(writer);
+
+        try
+        {
+            writer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        map.force();
+        file.close();
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    private void writerLoop()
+    {
+        while(true)
+        {
+            // Read running first, so the final pass picks up everything queued before close()
+            boolean stopping = !running;
+            long head = queueHead.get();
+            long tail = queueTail.get();
+
+            if(head == tail)
+            {
+                if(stopping)
+                {
+                    return;
+                }
+
+                LockSupport.parkNanos(WRITER_IDLE_NANOS);
+                continue;
+            }
+
+            long count = recordedCount;
+
+            for(; head != tail; head++)
+            {
+                writeRecord(count++, (int) (head % queueCapacity));
+            }
+
+            queueHead.lazySet(head);
+            map.putLong(HEADER_COUNT, count);
+            recordedCount = count;
+        }
+    }
+
+    private void writeRecord(long sequence, int slot)
+    {
+        int offset = (int) (HEADER_SIZE + (sequence % capacity) * RECORD_SIZE);
+
+        map.putLong(offset + RECORD_SEQUENCE, sequence);
+        map.putLong(offset + RECORD_REQUEST_NANOS, queuedRequestNanos[slot]);
+        map.putLong(offset + RECORD_RESPONSE_NANOS, queuedResponseNanos[slot]);
+        map.putInt(offset + RECORD_DEVICE_ID, queuedDeviceIds[slot]);
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            map.putInt(offset + RECORD_POSITIONS + i * 4, queuedPositions[slot * OctoQuadBase.NUM_ENCODERS + i]);
+            map.putShort(offset + RECORD_VELOCITIES + i * 2, queuedVelocities[slot * OctoQuadBase.NUM_ENCODERS + i]);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * An {@link OctoQuadTransport} which plays back a recording made by
+ * {@link OctoQuadRecorder}, so that code using the OctoQuad can be rerun against
+ * what happened on the field. Wrapped in a {@link SimulatedI2cDeviceSynch} it
+ * stands in for the real device under {@link OctoQuad}:
+ *
+ * <pre>
+ * OctoQuadReplayTransport replay = new OctoQuadReplayTransport(new File("match.oqr"), 0);
+ * OctoQuad octoquad = new OctoQuad(new SimulatedI2cDeviceSynch(replay), true);
+ * </pre>
+ *
+ * Reads of the encoder registers are answered from the recorded samples; everything
+ * else (chip id, firmware version, parameters and commands) is handled by an
+ * {@link OctoQuadSimulator}, so commands such as position resets have no effect
+ * on the replayed data.
+ *
+ * By default samples are replayed in real time, from the first encoder read on: each
+ * read sees the latest sample recorded at or before the equivalent moment of the
+ * recording. {@link #setSpeed(double)} speeds this up or slows it down. In step mode
+ * every read of the encoder registers advances exactly one sample instead, so a
+ * run sees the same sequence of data however fast it goes, for deterministic
+ * faster-than-real-time regression runs.
+ */
+public class OctoQuadReplayTransport implements OctoQuadTransport
+{
+    private final OctoQuadSimulator simulator = new OctoQuadSimulator();
+
+    private final long[] responseNanos;
+    private final int[] positions;
+    private final short[] velocities;
+    private final int count;
+
+    private final byte[] block = new byte[OctoQuadCodec.ENCODER_BLOCK_SIZE];
+    private final ByteBuffer blockBuffer = OctoQuadCodec.wrap(block);
+
+    private double speed = 1.0;
+    private boolean stepMode = false;
+    private long startNanos = 0;
+    private boolean started = false;
+    private int current = -1;
+
+    /**
+     * Load the samples of one device from a recording
+     * @param file a file written by {@link OctoQuadRecorder}
+     * @param deviceId the device id whose samples to replay
+     * @throws IOException if the file can't be read or isn't a recording
+     */
+    public OctoQuadReplayTransport(File file, int deviceId) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+        try
+        {
+            ByteBuffer data = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            data.order(ByteOrder.LITTLE_ENDIAN);
+
+            if(data.limit() < OctoQuadRecorder.HEADER_SIZE
+                    || data.getLong(0) != OctoQuadRecorder.MAGIC
+                    || data.getInt(OctoQuadRecorder.HEADER_VERSION) != OctoQuadRecorder.VERSION
+                    || data.getInt(OctoQuadRecorder.HEADER_RECORD_SIZE) != OctoQuadRecorder.RECORD_SIZE)
+            {
+                throw new IOException(file + " is not an OctoQuad recording");
+            }
+
+            long capacity = data.getLong(OctoQuadRecorder.HEADER_CAPACITY);
+            long written = data.getLong(OctoQuadRecorder.HEADER_COUNT);
+
+            if(capacity <= 0 || data.limit() < OctoQuadRecorder.HEADER_SIZE + capacity * OctoQuadRecorder.RECORD_SIZE)
+            {
+                throw new IOException(file + " is truncated");
+            }
+
+            // Once the ring has wrapped, the oldest surviving record is the one after the newest
+            long first = Math.max(0, written - capacity);
+            int max = (int) (written - first);
+
+            long[] allResponseNanos = new long[max];
+            int[] allPositions = new int[max * OctoQuadBase.NUM_ENCODERS];
+            short[] allVelocities = new short[max * OctoQuadBase.NUM_ENCODERS];
+            int n = 0;
+
+            for(long seq = first; seq < written; seq++)
+            {
+                int offset = (int) (OctoQuadRecorder.HEADER_SIZE + (seq % capacity) * OctoQuadRecorder.RECORD_SIZE);
+
+                if(data.getLong(offset + OctoQuadRecorder.RECORD_SEQUENCE) != seq
+                        || data.getInt(offset + OctoQuadRecorder.RECORD_DEVICE_ID) != deviceId)
+                {
+                    continue;
+                }
+
+                allResponseNanos[n] = data.getLong(offset + OctoQuadRecorder.RECORD_RESPONSE_NANOS);
+                for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+                {
+                    allPositions[n * OctoQuadBase.NUM_ENCODERS + i] = data.getInt(offset + OctoQuadRecorder.RECORD_POSITIONS + i * 4);
+                    allVelocities[n * OctoQuadBase.NUM_ENCODERS + i] = data.getShort(offset + OctoQuadRecorder.RECORD_VELOCITIES + i * 2);
+                }
+                n++;
+            }
+
+            if(n == 0)
+            {
+                throw new IOException(file + " has no samples for device " + deviceId);
+            }
+
+            count = n;
+            responseNanos = allResponseNanos;
+            positions = allPositions;
+            velocities = allVelocities;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * @param speed how many times faster than real time to replay (default 1)
+     */
+    public synchronized void setSpeed(double speed)
+    {
+        if(!(speed > 0))
+        {
+            throw new IllegalArgumentException("speed <= 0");
+        }
+
+        // Carry on from the same point in the recording at the new speed
+        if(started && !stepMode)
+        {
+            long now = System.nanoTime();
+            startNanos = now - (long) ((now - startNanos) * this.speed / speed);
+        }
+
+        this.speed = speed;
+    }
+
+    /**
+     * @param enable whether each read of the encoder registers should advance exactly one sample
+     */
+    public synchronized void setStepMode(boolean enable)
+    {
+        stepMode = enable;
+        started = false;
+    }
+
+    /**
+     * Go back to the start of the recording. In timed mode the clock restarts at the next encoder read.
+     */
+    public synchronized void restart()
+    {
+        current = -1;
+        started = false;
+    }
+
+    /**
+     * @return the number of samples in the recording for this device
+     */
+    public int getSampleCount()
+    {
+        return count;
+    }
+
+    /**
+     * @return the index of the sample being replayed, or -1 before the first encoder read
+     */
+    public synchronized int getCurrentSample()
+    {
+        return current;
+    }
+
+    /**
+     * @return whether the last sample has been reached
+     */
+    public synchronized boolean isFinished()
+    {
+        return current == count - 1;
+    }
+
+    @Override
+    public synchronized long read(int addr, byte[] dst, int off, int len)
+    {
+        long received = simulator.read(addr, dst, off, len);
+
+        int blockStart = Math.max(addr, OctoQuadCodec.ENCODER_BLOCK_REGISTER);
+        int blockEnd = Math.min(addr + len, OctoQuadCodec.ENCODER_BLOCK_REGISTER + OctoQuadCodec.ENCODER_BLOCK_SIZE);
+
+        if(blockStart < blockEnd)
+        {
+            advance();
+            System.arraycopy(block, blockStart - OctoQuadCodec.ENCODER_BLOCK_REGISTER, dst, off + blockStart - addr, blockEnd - blockStart);
+        }
+
+        return received;
+    }
+
+    @Override
+    public synchronized void write(int addr, byte[] src, int off, int len)
+    {
+        simulator.write(addr, src, off, len);
+    }
+
+    @Override
+    public void setReadWindow(int addr, int len)
+    {
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    private void advance()
+    {
+        int next;
+
+        if(stepMode)
+        {
+            next = Math.min(current + 1, count - 1);
+        }
+        else
+        {
+            long now = System.nanoTime();
+            if(!started)
+            {
+                started = true;
+                startNanos = now - (current < 0 ? 0 : (long) ((responseNanos[current] - responseNanos[0]) / speed));
+            }
+
+            long recordingNanos = responseNanos[0] + (long) ((now - startNanos) * speed);
+
+            next = Math.max(current, 0);
+            while(next + 1 < count && responseNanos[next + 1] - recordingNanos <= 0)
+            {
+                next++;
+            }
+        }
+
+        if(next != current)
+        {
+            current = next;
+
+            for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+            {
+                blockBuffer.putInt(i * 4, positions[current * OctoQuadBase.NUM_ENCODERS + i]);
+                blockBuffer.putShort(OctoQuadCodec.ENCODER_BLOCK_VELOCITY_OFFSET + i * 2, velocities[current * OctoQuadBase.NUM_ENCODERS + i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Continuously bulk reads all encoder data from an OctoQuad on a background
+ * thread, so that the opmode loop can pick up the latest sample without waiting
+ * on an I2C round trip.
+ *
+ * Each sample is a {@link OctoQuadBase.TimestampedEncoderDataBlock}, so consumers
+ * know when the data was captured as well as when they picked it up.
+ *
+ * Samples are handed over through a triple buffer: the sampler thread always owns
+ * one buffer to write into, the consumer always owns one buffer to read from, and
+ * the third holds the most recently published sample. Publishing and picking up a
+ * sample is a single atomic swap, so neither side ever blocks or takes a lock, and
+ * the consumer always sees a consistent 8-channel block.
+ *
+ * The triple buffer supports exactly one consumer thread; {@link #getLatest()} and
+ * {@link #readLatest(OctoQuadBase.EncoderDataBlock)} must not be called concurrently.
+ *
+ * The sampler thread calls the device without any locking, so while the sampler
+ * is running nothing else may use the device unless it is an {@link OctoQuadBusExecutor}.
+ *
+ * {@link Listener}s can be added to process every sample on the sampler thread as
+ * soon as it has been read, so their results are ready before the consumer asks.
+ */
+public class OctoQuadSampler
+{
+    private static final int INDEX_MASK = 0x3;
+    private static final int FRESH = 0x4;
+
+    /*
+     * Back off after a failed read, doubling the delay on consecutive failures,
+     * so a disconnected device doesn't have the sampler spinning on the bus
+     */
+    private static final long MIN_ERROR_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long MAX_ERROR_BACKOFF_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /**
+     * Processes samples on the sampler thread
+     */
+    public interface Listener
+    {
+        /**
+         * Called on the sampler thread with every new sample, just before it is published.
+         * This holds up the next read, so it should be quick, and it must not keep a
+         * reference to the sample after returning.
+         * @param sample the new sample
+         */
+        void onSample(OctoQuadBase.TimestampedEncoderDataBlock sample);
+    }
+
+    private final OctoQuadBase octoquad;
+    private final OctoQuadBase.TimestampedEncoderDataBlock[] buffers = new OctoQuadBase.TimestampedEncoderDataBlock[3];
+
+    /*
+     * Index of the most recently published buffer, plus the FRESH flag
+     * if the consumer has not yet picked it up.
+     */
+    private final AtomicInteger published = new AtomicInteger(1);
+    private int backIdx = 0;  // only touched by the sampler thread
+    private int frontIdx = 2; // only touched by the consumer thread
+
+    private volatile boolean running = false;
+    private volatile long samplePeriodNanos = 0;
+    private volatile long sampleCount = 0;
+    private volatile long errorCount = 0;
+    private volatile RuntimeException lastError = null;
+    private volatile Listener[] listeners = new Listener[0];
+    private Thread thread = null;
+
+    public OctoQuadSampler(OctoQuadBase octoquad)
+    {
+        this.octoquad = octoquad;
+
+        for(int i = 0; i < buffers.length; i++)
+        {
+            buffers[i] = new OctoQuadBase.TimestampedEncoderDataBlock();
+        }
+    }
+
+    /**
+     * Set the minimum time between the start of consecutive bulk reads.
+     * By default (0) the sampler reads back-to-back as fast as the bus allows.
+     * @param period the minimum sample period
+     * @param unit the unit of period
+     */
+    public void setSamplePeriod(long period, TimeUnit unit)
+    {
+        if(period < 0)
+        {
+            throw new IllegalArgumentException("period < 0");
+        }
+
+        samplePeriodNanos = unit.toNanos(period);
+    }
+
+    /**
+     * Add a listener to be called with every new sample on the sampler thread.
+     * May be called while the sampler is running.
+     * @param listener the listener to add
+     */
+    public synchronized void addListener(Listener listener)
+    {
+        Listener[] updated = new Listener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        listeners = updated;
+    }
+
+    /**
+     * Remove a listener added with {@link #addListener(Listener)}
+     * @param listener the listener to remove
+     */
+    public synchronized void removeListener(Listener listener)
+    {
+        for(int i = 0; i < listeners.length; i++)
+        {
+            if(listeners[i] == listener)
+            {
+                Listener[] updated = new Listener[listeners.length - 1];
+                System.arraycopy(listeners, 0, updated, 0, i);
+                System.arraycopy(listeners, i + 1, updated, i, listeners.length - i - 1);
+                listeners = updated;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Start the background sampling thread. Has no effect if already running.
+     */
+    public synchronized void start()
+    {
+        if(running)
+        {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                sampleLoop();
+            }
+        }, "OctoQuad sampler");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop the background sampling thread and wait for it to exit.
+     * The last published sample remains available.
+     */
+    public synchronized void stop()
+    {
+        if(!running)
+        {
+            return;
+        }
+
+        running = false;
+        thread.interrupt();
+
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+
+        thread = null;
+    }
+
+    /**
+     * @return whether the background sampling thread is running
+     */
+    public boolean isRunning()
+    {
+        return running;
+    }
+
+    /**
+     * @return whether a sample has been published which the consumer has not yet picked up
+     */
+    public boolean hasFreshSample()
+    {
+        return (published.get() & FRESH) != 0;
+    }
+
+    /**
+     * Get the most recently published sample. This never blocks.
+     * The returned block is owned by the consumer until the next call
+     * to this method or {@link #readLatest(OctoQuadBase.EncoderDataBlock)};
+     * the sampler thread will not write to it in the meantime.
+     * @return the most recently published sample (all zero if none yet)
+     */
+    public OctoQuadBase.TimestampedEncoderDataBlock getLatest()
+    {
+        if((published.get() & FRESH) != 0)
+        {
+            frontIdx = published.getAndSet(frontIdx) & INDEX_MASK;
+        }
+
+        return buffers[frontIdx];
+    }
+
+    /**
+     * Copy the most recently published sample into an existing {@link OctoQuadBase.EncoderDataBlock}.
+     * The timestamps are copied too if out is a {@link OctoQuadBase.TimestampedEncoderDataBlock}.
+     * This never blocks.
+     * @param out the {@link OctoQuadBase.EncoderDataBlock} object to fill with the latest data
+     * @return whether the data is new since the last call
+     */
+    public boolean readLatest(OctoQuadBase.EncoderDataBlock out)
+    {
+        boolean fresh = hasFreshSample();
+        OctoQuadBase.TimestampedEncoderDataBlock latest = getLatest();
+
+        System.arraycopy(latest.positions, 0, out.positions, 0, OctoQuadBase.NUM_ENCODERS);
+        System.arraycopy(latest.velocities, 0, out.velocities, 0, OctoQuadBase.NUM_ENCODERS);
+        System.arraycopy(latest.unwrappedPositions, 0, out.unwrappedPositions, 0, OctoQuadBase.NUM_ENCODERS);
+
+        if(out instanceof OctoQuadBase.TimestampedEncoderDataBlock)
+        {
+            ((OctoQuadBase.TimestampedEncoderDataBlock) out).requestNanos = latest.requestNanos;
+            ((OctoQuadBase.TimestampedEncoderDataBlock) out).responseNanos = latest.responseNanos;
+        }
+
+        return fresh;
+    }
+
+    /**
+     * @return the number of samples published since this sampler was created
+     */
+    public long getSampleCount()
+    {
+        return sampleCount;
+    }
+
+    /**
+     * @return the number of bulk reads or listener calls which threw an exception.
+     * After a failed bulk read the sampler waits at least a sample period before
+     * trying again, backing off up to 100ms while reads keep failing.
+     */
+    public long getErrorCount()
+    {
+        return errorCount;
+    }
+
+    /**
+     * @return the most recent exception thrown by a bulk read or listener, or null if none
+     */
+    public RuntimeException getLastError()
+    {
+        return lastError;
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    private void sampleLoop()
+    {
+        long nextSampleTime = System.nanoTime();
+        long errorBackoff = 0;
+
+        while(running)
+        {
+            long period = samplePeriodNanos;
+
+            if(period > 0)
+            {
+                long wait;
+                while(running && (wait = nextSampleTime - System.nanoTime()) > 0)
+                {
+                    LockSupport.parkNanos(wait);
+                }
+                nextSampleTime += period;
+
+                // Don't try to catch up with a burst of reads if the bus stalled
+                if(System.nanoTime() - nextSampleTime > period)
+                {
+                    nextSampleTime = System.nanoTime();
+                }
+            }
+
+            if(!running)
+            {
+                break;
+            }
+
+            try
+            {
+                octoquad.readAllEncoderDataTimestamped(buffers[backIdx]);
+            }
+            catch (RuntimeException e)
+            {
+                lastError = e;
+                errorCount++;
+
+                // Wait out at least one sample period before trying again
+                errorBackoff = Math.min(Math.max(errorBackoff * 2, MIN_ERROR_BACKOFF_NANOS), MAX_ERROR_BACKOFF_NANOS);
+                long retryTime = System.nanoTime() + Math.max(errorBackoff, period);
+                long wait;
+                while(running && (wait = retryTime - System.nanoTime()) > 0)
+                {
+                    LockSupport.parkNanos(wait);
+                }
+                nextSampleTime = System.nanoTime();
+                continue;
+            }
+
+            errorBackoff = 0;
+            notifyListeners(buffers[backIdx]);
+            publish();
+        }
+    }
+
+    private void notifyListeners(OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        for(Listener listener : listeners)
+        {
+            try
+            {
+                listener.onSample(sample);
+            }
+            catch (RuntimeException e)
+            {
+                lastError = e;
+                errorCount++;
+            }
+        }
+    }
+
+    private void publish()
+    {
+        backIdx = published.getAndSet(backIdx | FRESH) & INDEX_MASK;
+        sampleCount++;
+    }
+}
@@ -0,0 +1,683 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.Arrays;
+
+/**
+ * An in-memory model of the OctoQuad firmware: the register map, the command
+ * protocol and the encoder inputs. It has no dependency on the FTC SDK, so it
+ * can be used to exercise and benchmark the driver on a plain JVM. It is an
+ * {@link OctoQuadTransport}, so it can be handed straight to {@link OctoQuadDriver};
+ * wrap it in a {@link SimulatedI2cDeviceSynch} to hand it to {@link OctoQuad}.
+ *
+ * Each channel is driven by a {@link Signal}, which is interpreted as a
+ * quadrature count or as a pulse width in microseconds depending on the channel
+ * bank configuration. The simulated firmware clears the COMMAND register once
+ * it has finished executing a command. A flash save takes effect at once: the
+ * real firmware gives no indication of when it has finished writing flash, so
+ * the simulator doesn't model one either.
+ *
+ * Every transaction can optionally be delayed according to an {@link OctoQuadBusCostModel},
+ * and time can either follow the host clock or be stepped manually.
+ */
+public class OctoQuadSimulator implements OctoQuadTransport
+{
+    public static final int FIRMWARE_VERSION_MINOR = 0;
+    public static final int FIRMWARE_VERSION_ENGINEERING = 0;
+
+    private static final int REGISTER_FILE_SIZE = 0x3C;
+    private static final int DEFAULT_VELOCITY_INTERVAL_MS = 50;
+    private static final int DEFAULT_PULSE_WIDTH_MIN_US = 1;
+    private static final int DEFAULT_PULSE_WIDTH_MAX_US = 1024;
+
+    /**
+     * The input signal on one channel, as a function of time
+     */
+    public interface Signal
+    {
+        /**
+         * @param nanos simulation time in nanoseconds
+         * @return the quadrature count (for a quadrature channel) or
+         *         pulse width in microseconds (for a pulse width channel) at that time
+         */
+        double valueAt(long nanos);
+    }
+
+    private static class Parameters
+    {
+        byte directions = 0;
+        byte i2cRecoveryMode = 0;
+        byte channelBankConfig = OctoQuadBase.ChannelBankConfig.ALL_QUADRATURE.bVal;
+        final int[] velocityIntervals = new int[OctoQuadBase.NUM_ENCODERS];
+        final int[] pulseWidthMin = new int[OctoQuadBase.NUM_ENCODERS];
+        final int[] pulseWidthMax = new int[OctoQuadBase.NUM_ENCODERS];
+
+        Parameters()
+        {
+            Arrays.fill(velocityIntervals, DEFAULT_VELOCITY_INTERVAL_MS);
+            Arrays.fill(pulseWidthMin, DEFAULT_PULSE_WIDTH_MIN_US);
+            Arrays.fill(pulseWidthMax, DEFAULT_PULSE_WIDTH_MAX_US);
+        }
+
+        void copyFrom(Parameters other)
+        {
+            directions = other.directions;
+            i2cRecoveryMode = other.i2cRecoveryMode;
+            channelBankConfig = other.channelBankConfig;
+            System.arraycopy(other.velocityIntervals, 0, velocityIntervals, 0, OctoQuadBase.NUM_ENCODERS);
+            System.arraycopy(other.pulseWidthMin, 0, pulseWidthMin, 0, OctoQuadBase.NUM_ENCODERS);
+            System.arraycopy(other.pulseWidthMax, 0, pulseWidthMax, 0, OctoQuadBase.NUM_ENCODERS);
+        }
+    }
+
+    private final byte[] registers = new byte[REGISTER_FILE_SIZE];
+    private final Parameters params = new Parameters();
+    private final Parameters flash = new Parameters();
+    private final Signal[] signals = new Signal[OctoQuadBase.NUM_ENCODERS];
+
+    /*
+     * A channel's count is countBase + sign * (floor(signal) - signalBase). The bases are
+     * re-anchored whenever the count is reset or the direction flips, so that the count
+     * carries on smoothly from where it was.
+     */
+    private final long[] countBase = new long[OctoQuadBase.NUM_ENCODERS];
+    private final long[] signalBase = new long[OctoQuadBase.NUM_ENCODERS];
+
+    private OctoQuadBusCostModel busCostModel = OctoQuadBusCostModel.NONE;
+    private boolean manualClock = false;
+    private long manualNanos = 0;
+    private final long epochNanos = System.nanoTime();
+
+    private long readCount = 0;
+    private long writeCount = 0;
+    private long bytesRead = 0;
+    private long bytesWritten = 0;
+
+    public OctoQuadSimulator()
+    {
+        registers[OctoQuadProtocol.Register.CHIP_ID.addr] = OctoQuadBase.OCTOQUAD_CHIP_ID;
+        registers[OctoQuadProtocol.Register.FIRMWARE_VERSION_MAJOR.addr] = OctoQuadBase.SUPPORTED_FW_VERSION_MAJ;
+        registers[OctoQuadProtocol.Register.FIRMWARE_VERSION_MINOR.addr] = FIRMWARE_VERSION_MINOR;
+        registers[OctoQuadProtocol.Register.FIRMWARE_VERSION_ENGINEERING.addr] = FIRMWARE_VERSION_ENGINEERING;
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            signals[i] = stationary(0);
+        }
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // SIGNAL GENERATORS
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    /**
+     * @param value the constant count or pulse width
+     * @return a signal which never changes
+     */
+    public static Signal stationary(final double value)
+    {
+        return new Signal()
+        {
+            @Override
+            public double valueAt(long nanos)
+            {
+                return value;
+            }
+        };
+    }
+
+    /**
+     * @param countsPerSecond the quadrature count rate
+     * @return a quadrature signal turning at a constant rate
+     */
+    public static Signal constantVelocity(final double countsPerSecond)
+    {
+        return new Signal()
+        {
+            @Override
+            public double valueAt(long nanos)
+            {
+                return countsPerSecond * nanos / 1e9;
+            }
+        };
+    }
+
+    /**
+     * @param amplitudeCounts the peak count either side of zero
+     * @param periodSeconds the period of one full oscillation
+     * @return a quadrature signal oscillating back and forth, like a swinging arm
+     */
+    public static Signal sinusoid(final double amplitudeCounts, final double periodSeconds)
+    {
+        return new Signal()
+        {
+            @Override
+            public double valueAt(long nanos)
+            {
+                return amplitudeCounts * Math.sin(2 * Math.PI * (nanos / 1e9) / periodSeconds);
+            }
+        };
+    }
+
+    /**
+     * @param revsPerSecond how fast the encoder shaft turns
+     * @param minLengthUs the pulse width reported at 0 degrees
+     * @param maxLengthUs the pulse width reported just short of 360 degrees
+     * @return a pulse width signal from an absolute encoder turning at a constant rate
+     */
+    public static Signal rotatingAbsoluteEncoder(final double revsPerSecond, final int minLengthUs, final int maxLengthUs)
+    {
+        return new Signal()
+        {
+            @Override
+            public double valueAt(long nanos)
+            {
+                double revs = revsPerSecond * nanos / 1e9;
+                double fraction = revs - Math.floor(revs);
+                return minLengthUs + fraction * (maxLengthUs - minLengthUs);
+            }
+        };
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // SIMULATION CONTROL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Set the input signal for a channel. The channel's count is re-anchored so
+     * that it carries on from its current value rather than jumping.
+     * @param idx the channel
+     * @param signal the new input signal
+     */
+    public synchronized void setSignal(int idx, Signal signal)
+    {
+        checkChannel(idx);
+
+        long now = now();
+        countBase[idx] = count(idx, now);
+        signals[idx] = signal;
+        signalBase[idx] = (long) Math.floor(signal.valueAt(now));
+    }
+
+    public synchronized void setBusCostModel(OctoQuadBusCostModel busCostModel)
+    {
+        this.busCostModel = busCostModel;
+    }
+
+    /**
+     * Stop following the host clock, and fix simulation time at the given value
+     * until it is changed again with this method or {@link #advanceTime(long)}.
+     * @param nanos the new simulation time
+     */
+    public synchronized void setTime(long nanos)
+    {
+        manualClock = true;
+        manualNanos = nanos;
+    }
+
+    /**
+     * Step simulation time forward, switching to a manual clock if necessary
+     * @param nanos how far to step
+     */
+    public synchronized void advanceTime(long nanos)
+    {
+        if(!manualClock)
+        {
+            setTime(now());
+        }
+
+        manualNanos += nanos;
+    }
+
+    /**
+     * @return the current simulation time in nanoseconds
+     */
+    public synchronized long now()
+    {
+        return manualClock ? manualNanos : System.nanoTime() - epochNanos;
+    }
+
+    public synchronized long getReadCount()
+    {
+        return readCount;
+    }
+
+    public synchronized long getWriteCount()
+    {
+        return writeCount;
+    }
+
+    public synchronized long getBytesRead()
+    {
+        return bytesRead;
+    }
+
+    public synchronized long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    public synchronized void resetCounters()
+    {
+        readCount = 0;
+        writeCount = 0;
+        bytesRead = 0;
+        bytesWritten = 0;
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // BUS INTERFACE
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Perform a register read, as the OctoQuad would answer it
+     * @param addr the first register address
+     * @param len the number of bytes to read
+     * @return the register contents
+     */
+    public byte[] read(int addr, int len)
+    {
+        byte[] out = new byte[len];
+        read(addr, out, 0, len);
+        return out;
+    }
+
+    @Override
+    public synchronized long read(int addr, byte[] dst, int off, int len)
+    {
+        if(addr < 0 || len < 0)
+        {
+            throw new IllegalArgumentException("addr < 0 || len < 0");
+        }
+
+        delay(len + 1);
+
+        long now = now();
+
+        if(addr + len > OctoQuadProtocol.Register.ENCODER_0_POSITION.addr)
+        {
+            updateEncoderRegisters(now);
+        }
+
+        // Registers past the end of the register file read as 0
+        int valid = addr < REGISTER_FILE_SIZE ? Math.min(len, REGISTER_FILE_SIZE - addr) : 0;
+        if(valid > 0)
+        {
+            System.arraycopy(registers, addr, dst, off, valid);
+        }
+        Arrays.fill(dst, off + valid, off + len, (byte) 0);
+
+        readCount++;
+        bytesRead += len;
+
+        return System.nanoTime();
+    }
+
+    /**
+     * Perform a register write, as the OctoQuad would handle it. Only the
+     * command registers are writable; a write which covers the COMMAND
+     * register executes the command.
+     * @param addr the first register address
+     * @param data the bytes to write
+     */
+    public void write(int addr, byte[] data)
+    {
+        write(addr, data, 0, data.length);
+    }
+
+    @Override
+    public synchronized void write(int addr, byte[] src, int off, int len)
+    {
+        if(addr < 0)
+        {
+            throw new IllegalArgumentException("addr < 0");
+        }
+
+        delay(len + 1);
+
+        long now = now();
+
+        writeCount++;
+        bytesWritten += len;
+
+        for(int i = 0; i < len; i++)
+        {
+            int reg = addr + i;
+
+            if(reg >= OctoQuadProtocol.Register.COMMAND.addr && reg <= OctoQuadProtocol.Register.COMMAND_DAT_6.addr)
+            {
+                registers[reg] = src[off + i];
+            }
+        }
+
+        int cmdAddr = OctoQuadProtocol.Register.COMMAND.addr;
+
+        if(addr <= cmdAddr && addr + len > cmdAddr)
+        {
+            executeCommand(now);
+        }
+    }
+
+    /**
+     * The simulator has no bus to keep busy, so read windows are ignored
+     */
+    @Override
+    public void setReadWindow(int addr, int len)
+    {
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // INTERNAL
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    private void executeCommand(long now)
+    {
+        byte cmd = registers[OctoQuadProtocol.Register.COMMAND.addr];
+
+        switch(cmd)
+        {
+            case OctoQuadProtocol.CMD_SET_PARAM:
+                setParam();
+                break;
+
+            case OctoQuadProtocol.CMD_READ_PARAM:
+                readParam();
+                break;
+
+            case OctoQuadProtocol.CMD_WRITE_PARAMS_TO_FLASH:
+                flash.copyFrom(params);
+                break;
+
+            case OctoQuadProtocol.CMD_RESET_EVERYTHING:
+                params.copyFrom(flash);
+                for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+                {
+                    resetCount(i, now);
+                }
+                break;
+
+            case OctoQuadProtocol.CMD_RESET_ENCODERS:
+                byte mask = registers[OctoQuadProtocol.Register.COMMAND_DAT_0.addr];
+                for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+                {
+                    if((mask & (1 << i)) != 0)
+                    {
+                        resetCount(i, now);
+                    }
+                }
+                break;
+
+            default:
+                break;
+        }
+
+        registers[OctoQuadProtocol.Register.COMMAND.addr] = 0;
+    }
+
+    private void setParam()
+    {
+        byte param = dat(0);
+
+        switch(param)
+        {
+            case OctoQuadProtocol.PARAM_ENCODER_DIRECTIONS:
+                setDirections(dat(1));
+                break;
+
+            case OctoQuadProtocol.PARAM_I2C_RECOVERY_MODE:
+                params.i2cRecoveryMode = dat(1);
+                break;
+
+            case OctoQuadProtocol.PARAM_CHANNEL_BANK_CONFIG:
+                params.channelBankConfig = dat(1);
+                break;
+
+            case OctoQuadProtocol.PARAM_CHANNEL_VEL_INTVL:
+                if(isChannel(dat(1)) && (dat(2) & 0xFF) >= OctoQuadBase.VELOCITY_MEASUREMENT_INTERVAL_MIN)
+                {
+                    params.velocityIntervals[dat(1)] = dat(2) & 0xFF;
+                }
+                break;
+
+            case OctoQuadProtocol.PARAM_CHANNEL_PULSE_WIDTH_MIN_MAX:
+                if(isChannel(dat(1)))
+                {
+                    params.pulseWidthMin[dat(1)] = (dat(2) & 0xFF) | (dat(3) & 0xFF) << 8;
+                    params.pulseWidthMax[dat(1)] = (dat(4) & 0xFF) | (dat(5) & 0xFF) << 8;
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void readParam()
+    {
+        byte param = dat(0);
+        byte channel = dat(1);
+
+        switch(param)
+        {
+            case OctoQuadProtocol.PARAM_ENCODER_DIRECTIONS:
+                setDat(0, params.directions);
+                break;
+
+            case OctoQuadProtocol.PARAM_I2C_RECOVERY_MODE:
+                setDat(0, params.i2cRecoveryMode);
+                break;
+
+            case OctoQuadProtocol.PARAM_CHANNEL_BANK_CONFIG:
+                setDat(0, params.channelBankConfig);
+                break;
+
+            case OctoQuadProtocol.PARAM_CHANNEL_VEL_INTVL:
+                if(isChannel(channel))
+                {
+                    setDat(0, (byte) params.velocityIntervals[channel]);
+                }
+                break;
+
+            case OctoQuadProtocol.PARAM_CHANNEL_PULSE_WIDTH_MIN_MAX:
+                if(isChannel(channel))
+                {
+                    setDat(0, (byte) params.pulseWidthMin[channel]);
+                    setDat(1, (byte) (params.pulseWidthMin[channel] >> 8));
+                    setDat(2, (byte) params.pulseWidthMax[channel]);
+                    setDat(3, (byte) (params.pulseWidthMax[channel] >> 8));
+                }
+                break;
+
+            default:
+                break;
+        }
+    }
+
+    private void setDirections(byte directions)
+    {
+        long now = now();
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            // Re-anchor so the count continues from where it is, in the new direction
+            countBase[i] = count(i, now);
+            signalBase[i] = (long) Math.floor(signals[i].valueAt(now));
+        }
+
+        params.directions = directions;
+    }
+
+    private void resetCount(int idx, long now)
+    {
+        countBase[idx] = 0;
+        signalBase[idx] = (long) Math.floor(signals[idx].valueAt(now));
+    }
+
+    private void updateEncoderRegisters(long now)
+    {
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            int position;
+            int velocity;
+
+            if(isPulseWidthChannel(i))
+            {
+                position = pulseWidth(i, now);
+                velocity = pulseWidthVelocity(i, now);
+            }
+            else
+            {
+                position = (int) count(i, now);
+                velocity = quadratureVelocity(i, now);
+            }
+
+            velocity = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, velocity));
+
+            putInt(OctoQuadProtocol.Register.ENCODER_0_POSITION.addr + i*4, position);
+            putShort(OctoQuadProtocol.Register.ENCODER_0_VELOCITY.addr + i*2, (short) velocity);
+        }
+    }
+
+    private long count(int idx, long now)
+    {
+        long sign = (params.directions & (1 << idx)) != 0 ? -1 : 1;
+        return countBase[idx] + sign * ((long) Math.floor(signals[idx].valueAt(now)) - signalBase[idx]);
+    }
+
+    /*
+     * Velocity is the count accumulated over the most recently completed
+     * sample interval, as the firmware reports it
+     */
+    private int quadratureVelocity(int idx, long now)
+    {
+        long intervalNanos = params.velocityIntervals[idx] * 1000000L;
+        long end = intervalStart(now, intervalNanos);
+        return (int) (count(idx, end) - count(idx, end - intervalNanos));
+    }
+
+    private static long intervalStart(long now, long intervalNanos)
+    {
+        return now - ((now % intervalNanos) + intervalNanos) % intervalNanos;
+    }
+
+    private int pulseWidth(int idx, long now)
+    {
+        return (int) Math.max(0, Math.min(OctoQuadBase.PULSE_WIDTH_LENGTH_MAX, Math.round(signals[idx].valueAt(now))));
+    }
+
+    /*
+     * The firmware uses the channel's min/max pulse width to unwrap the
+     * jump when an absolute encoder passes through zero
+     */
+    private int pulseWidthVelocity(int idx, long now)
+    {
+        long intervalNanos = params.velocityIntervals[idx] * 1000000L;
+        long end = intervalStart(now, intervalNanos);
+        int delta = pulseWidth(idx, end) - pulseWidth(idx, end - intervalNanos);
+        int range = params.pulseWidthMax[idx] - params.pulseWidthMin[idx];
+
+        if(range > 0)
+        {
+            if(delta > range / 2)
+            {
+                delta -= range;
+            }
+            else if(delta < -range / 2)
+            {
+                delta += range;
+            }
+        }
+
+        return delta;
+    }
+
+    private boolean isPulseWidthChannel(int idx)
+    {
+        if(params.channelBankConfig == OctoQuadBase.ChannelBankConfig.ALL_PULSE_WIDTH.bVal)
+        {
+            return true;
+        }
+
+        return params.channelBankConfig == OctoQuadBase.ChannelBankConfig.BANK1_QUADRATURE_BANK2_PULSE_WIDTH.bVal && idx >= 4;
+    }
+
+    private void delay(int numBytes)
+    {
+        long nanos = busCostModel.nanosFor(numBytes);
+
+        if(nanos <= 0)
+        {
+            return;
+        }
+
+        if(manualClock)
+        {
+            manualNanos += nanos;
+            return;
+        }
+
+        // Spin rather than sleep; a sleep can't hit sub-millisecond latencies accurately
+        long deadline = System.nanoTime() + nanos;
+        while(System.nanoTime() - deadline < 0)
+        {
+            // spin
+        }
+    }
+
+    private byte dat(int i)
+    {
+        return registers[OctoQuadProtocol.Register.COMMAND_DAT_0.addr + i];
+    }
+
+    private void setDat(int i, byte value)
+    {
+        registers[OctoQuadProtocol.Register.COMMAND_DAT_0.addr + i] = value;
+    }
+
+    private static boolean isChannel(int idx)
+    {
+        return idx >= OctoQuadBase.ENCODER_FIRST && idx <= OctoQuadBase.ENCODER_LAST;
+    }
+
+    private static void checkChannel(int idx)
+    {
+        if(!isChannel(idx))
+        {
+            throw new IllegalArgumentException("idx out of range");
+        }
+    }
+
+    private void putInt(int addr, int value)
+    {
+        registers[addr] = (byte) value;
+        registers[addr+1] = (byte) (value >> 8);
+        registers[addr+2] = (byte) (value >> 16);
+        registers[addr+3] = (byte) (value >> 24);
+    }
+
+    private void putShort(int addr, short value)
+    {
+        registers[addr] = (byte) value;
+        registers[addr+1] = (byte) (value >> 8);
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+/**
+ * The bus an {@link OctoQuadDriver} talks to the OctoQuad over. On a robot this
+ * is an I2C device client; off the robot it can be a simulator or a log replay.
+ *
+ * Transports only move bytes to and from register addresses; they know nothing
+ * about what the registers mean. A transport is only ever used by one thread at a time.
+ */
+public interface OctoQuadTransport
+{
+    /**
+     * Read a contiguous block of registers into a caller-provided buffer
+     * @param addr the first register address
+     * @param dst the buffer to read into
+     * @param off the offset in dst at which to store the first byte
+     * @param len the number of bytes to read
+     * @return the host {@link System#nanoTime()} at which the data was received
+     */
+    long read(int addr, byte[] dst, int off, int len);
+
+    /**
+     * Write a contiguous block of registers
+     * @param addr the first register address
+     * @param src the buffer holding the data to write
+     * @param off the offset in src of the first byte to write
+     * @param len the number of bytes to write
+     */
+    void write(int addr, byte[] src, int off, int len);
+
+    /**
+     * Hint that the given register range is about to be read repeatedly,
+     * so that transports which can keep a range refreshed in the background
+     * may do so. Transports which can't may ignore this.
+     * @param addr the first register address
+     * @param len the number of bytes, or 0 to withdraw the hint
+     */
+    void setReadWindow(int addr, int len);
+}
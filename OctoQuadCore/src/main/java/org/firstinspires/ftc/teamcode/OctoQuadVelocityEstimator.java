@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.Arrays;
+
+/**
+ * Estimates position, velocity and acceleration for each channel from consecutive
+ * timestamped bulk reads, with an alpha-beta-gamma filter on the unwrapped positions
+ * ({@link OctoQuadBase.EncoderDataBlock#unwrappedPositions}), so a position passing
+ * the int32 range doesn't upset it.
+ *
+ * Compared with the OctoQuad's velocity registers, the estimate is in counts per
+ * second rather than counts per sample interval, isn't clipped at the int16 range,
+ * and follows the position samples rather than lagging by half a sample interval.
+ * The hardware velocity can optionally be blended in, which helps at low speeds where
+ * the position only moves by a count or two between reads.
+ *
+ * Feed it every sample with {@link #update(OctoQuadBase.TimestampedEncoderDataBlock)},
+ * e.g. from {@link OctoQuadSampler#readLatest(OctoQuadBase.EncoderDataBlock)}. Samples
+ * with the same timestamp as the last one (such as a repeated cached read) are ignored.
+ * Updates don't allocate. Only meaningful for quadrature channels.
+ */
+public class OctoQuadVelocityEstimator
+{
+    public static final double DEFAULT_ALPHA = 0.5;
+    public static final double DEFAULT_BETA = 0.15;
+    public static final double DEFAULT_GAMMA = 0.005;
+
+    private static final int DEFAULT_VELOCITY_INTERVAL_MS = 50;
+
+    private double alpha;
+    private double beta;
+    private double gamma;
+    private double hardwareVelocityWeight = 0;
+
+    private final int[] velocityIntervalsMs = new int[OctoQuadBase.NUM_ENCODERS];
+
+    private final double[] position = new double[OctoQuadBase.NUM_ENCODERS];
+    private final double[] velocity = new double[OctoQuadBase.NUM_ENCODERS];
+    private final double[] acceleration = new double[OctoQuadBase.NUM_ENCODERS];
+
+    private long lastSampleNanos = 0;
+    private boolean initialized = false;
+
+    public OctoQuadVelocityEstimator()
+    {
+        this(DEFAULT_ALPHA, DEFAULT_BETA, DEFAULT_GAMMA);
+    }
+
+    public OctoQuadVelocityEstimator(double alpha, double beta, double gamma)
+    {
+        setGains(alpha, beta, gamma);
+        Arrays.fill(velocityIntervalsMs, DEFAULT_VELOCITY_INTERVAL_MS);
+    }
+
+    /**
+     * Set the filter gains. Larger gains follow the samples more closely;
+     * smaller gains smooth out more quantization noise at the cost of lag.
+     * @param alpha position gain, 0..1
+     * @param beta velocity gain, 0..2
+     * @param gamma acceleration gain, 0 to estimate velocity only
+     */
+    public void setGains(double alpha, double beta, double gamma)
+    {
+        if(alpha <= 0 || alpha > 1 || beta < 0 || beta > 2 || gamma < 0)
+        {
+            throw new IllegalArgumentException("gains out of range");
+        }
+
+        this.alpha = alpha;
+        this.beta = beta;
+        this.gamma = gamma;
+    }
+
+    /**
+     * Set how much of the hardware velocity to blend into the estimate on each update.
+     * Clipped hardware velocities are never used.
+     * @param weight 0 (default) to ignore the hardware velocity, up to 1 to use it as is
+     */
+    public void setHardwareVelocityWeight(double weight)
+    {
+        if(weight < 0 || weight > 1)
+        {
+            throw new IllegalArgumentException("weight must be 0..1");
+        }
+
+        hardwareVelocityWeight = weight;
+    }
+
+    /**
+     * Tell the estimator the velocity sample interval a channel is set to,
+     * so the hardware velocity can be converted to counts per second.
+     * Defaults to the firmware default of 50ms.
+     * @param idx the channel
+     * @param intvlms the sample interval in milliseconds
+     */
+    public void setVelocitySampleInterval(int idx, int intvlms)
+    {
+        if(intvlms < OctoQuadBase.VELOCITY_MEASUREMENT_INTERVAL_MIN || intvlms > OctoQuadBase.VELOCITY_MEASUREMENT_INTERVAL_MAX)
+        {
+            throw new IllegalArgumentException("invalid velocity sample interval");
+        }
+
+        velocityIntervalsMs[idx] = intvlms;
+    }
+
+    /**
+     * @param intvlms the velocity sample interval of every channel, in milliseconds
+     * @see #setVelocitySampleInterval(int, int)
+     */
+    public void setVelocitySampleIntervals(int[] intvlms)
+    {
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            setVelocitySampleInterval(i, intvlms[i]);
+        }
+    }
+
+    /**
+     * Forget all state; the next sample starts the estimate afresh.
+     * Call this after resetting encoder positions.
+     */
+    public void reset()
+    {
+        initialized = false;
+    }
+
+    /**
+     * Update every channel's estimate with a new sample
+     * @param sample the new sample
+     */
+    public void update(OctoQuadBase.TimestampedEncoderDataBlock sample)
+    {
+        long sampleNanos = sample.getSampleNanos();
+
+        if(!initialized)
+        {
+            for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+            {
+                position[i] = sample.unwrappedPositions[i];
+                velocity[i] = isClipped(sample.velocities[i]) ? 0 : hardwareVelocity(i, sample.velocities[i]);
+                acceleration[i] = 0;
+            }
+
+            lastSampleNanos = sampleNanos;
+            initialized = true;
+            return;
+        }
+
+        long dtNanos = sampleNanos - lastSampleNanos;
+
+        if(dtNanos <= 0)
+        {
+            return;
+        }
+
+        lastSampleNanos = sampleNanos;
+        double dt = dtNanos * 1e-9;
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            double predictedPosition = position[i] + velocity[i]*dt + 0.5*acceleration[i]*dt*dt;
+            double predictedVelocity = velocity[i] + acceleration[i]*dt;
+            double residual = sample.unwrappedPositions[i] - predictedPosition;
+
+            position[i] = predictedPosition + alpha*residual;
+            velocity[i] = predictedVelocity + (beta/dt)*residual;
+            acceleration[i] += (2*gamma/(dt*dt))*residual;
+
+            if(hardwareVelocityWeight > 0 && !isClipped(sample.velocities[i]))
+            {
+                velocity[i] += hardwareVelocityWeight * (hardwareVelocity(i, sample.velocities[i]) - velocity[i]);
+            }
+        }
+    }
+
+    /**
+     * @param idx the channel
+     * @return the filtered position in counts, unwrapped past the int32 range
+     */
+    public double getPosition(int idx)
+    {
+        return position[idx];
+    }
+
+    /**
+     * @param idx the channel
+     * @return the estimated velocity in counts per second
+     */
+    public double getVelocity(int idx)
+    {
+        return velocity[idx];
+    }
+
+    /**
+     * @param idx the channel
+     * @return the estimated acceleration in counts per second squared
+     */
+    public double getAcceleration(int idx)
+    {
+        return acceleration[idx];
+    }
+
+    /**
+     * @return the sample time of the last sample used, in {@link System#nanoTime()} terms
+     */
+    public long getLastSampleNanos()
+    {
+        return lastSampleNanos;
+    }
+
+    private double hardwareVelocity(int idx, short raw)
+    {
+        return raw * 1000.0 / velocityIntervalsMs[idx];
+    }
+
+    private static boolean isClipped(short raw)
+    {
+        return raw == Short.MAX_VALUE || raw == Short.MIN_VALUE;
+    }
+}
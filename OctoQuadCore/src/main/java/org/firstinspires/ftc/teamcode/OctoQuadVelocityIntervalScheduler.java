@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Automatically adjusts each channel's velocity sample interval to keep its
+ * velocity register well inside the int16 range: the interval is shortened as
+ * a channel approaches overflow, and lengthened again (for better resolution)
+ * once it's slow. Velocities are reported normalized to counts per second,
+ * whatever interval is currently active.
+ *
+ * Call {@link #update(OctoQuadBase.EncoderDataBlock)} with every sample from the
+ * control loop. At most one interval is changed per call, and no more often than
+ * the minimum write period, so the scheduler never takes a meaningful share of
+ * the bus away from the reads. Only meant for quadrature channels; disable any
+ * pulse width channels with {@link #setChannelEnabled(int, boolean)}.
+ *
+ * The scheduler writes parameters from whichever thread calls update, so that must
+ * be the only thread using the device, unless the device is an {@link OctoQuadBusExecutor}.
+ */
+public class OctoQuadVelocityIntervalScheduler
+{
+    private static final double FULL_SCALE = Short.MAX_VALUE;
+
+    /*
+     * Shorten above HIGH, lengthen below LOW, and aim for TARGET when doing
+     * either. Lengthening at most doubles the interval, so a channel can't
+     * bounce straight from LOW to above HIGH.
+     */
+    private static final double HIGH = 0.75;
+    private static final double TARGET = 0.5;
+    private static final double LOW = 0.125;
+
+    private final OctoQuadBase octoquad;
+
+    private final boolean[] enabled = new boolean[OctoQuadBase.NUM_ENCODERS];
+    private final int[] intervalsMs = new int[OctoQuadBase.NUM_ENCODERS];
+    private final double[] velocities = new double[OctoQuadBase.NUM_ENCODERS];
+    private final long[] holdUntilNanos = new long[OctoQuadBase.NUM_ENCODERS];
+
+    private int minIntervalMs = OctoQuadBase.VELOCITY_MEASUREMENT_INTERVAL_MIN;
+    private int maxIntervalMs = 100;
+    private long minWritePeriodNanos = TimeUnit.MILLISECONDS.toNanos(20);
+    private long lastWriteNanos = 0;
+    private boolean written = false;
+
+    public OctoQuadVelocityIntervalScheduler(OctoQuadBase octoquad)
+    {
+        this.octoquad = octoquad;
+
+        Arrays.fill(enabled, true);
+        Arrays.fill(holdUntilNanos, System.nanoTime());
+        System.arraycopy(octoquad.getAllVelocitySampleIntervals(), 0, intervalsMs, 0, OctoQuadBase.NUM_ENCODERS);
+    }
+
+    /**
+     * @param idx the channel
+     * @param enable whether the scheduler should manage this channel's interval
+     */
+    public void setChannelEnabled(int idx, boolean enable)
+    {
+        enabled[idx] = enable;
+    }
+
+    /**
+     * Set the range the scheduler may move intervals within.
+     * Longer intervals give finer velocity resolution, but more lag.
+     * @param minMs the shortest interval to use (default 1ms)
+     * @param maxMs the longest interval to use (default 100ms)
+     */
+    public void setIntervalLimits(int minMs, int maxMs)
+    {
+        if(minMs < OctoQuadBase.VELOCITY_MEASUREMENT_INTERVAL_MIN || maxMs > OctoQuadBase.VELOCITY_MEASUREMENT_INTERVAL_MAX || minMs > maxMs)
+        {
+            throw new IllegalArgumentException("invalid interval limits");
+        }
+
+        minIntervalMs = minMs;
+        maxIntervalMs = maxMs;
+    }
+
+    /**
+     * Set the minimum time between two interval changes (default 20ms)
+     * @param period the minimum time between parameter writes
+     * @param unit the unit of period
+     */
+    public void setMinWritePeriod(long period, TimeUnit unit)
+    {
+        if(period < 0)
+        {
+            throw new IllegalArgumentException("period < 0");
+        }
+
+        minWritePeriodNanos = unit.toNanos(period);
+    }
+
+    /**
+     * Process a new sample: normalize its velocities, and change at most one
+     * channel's sample interval if one needs it and the write period allows.
+     * @param sample the latest encoder data
+     * @return whether an interval was changed
+     */
+    public boolean update(OctoQuadBase.EncoderDataBlock sample)
+    {
+        long now = System.nanoTime();
+
+        int mostUrgent = -1;
+        double mostUrgentScore = 0;
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            double fraction = Math.abs(sample.velocities[i]) / FULL_SCALE;
+
+            // Just after an interval change the register may still hold a velocity
+            // measured over the old interval, so keep the last value until it can't
+            if(now - holdUntilNanos[i] >= 0)
+            {
+                velocities[i] = sample.velocities[i] * 1000.0 / intervalsMs[i];
+            }
+            else
+            {
+                continue;
+            }
+
+            if(!enabled[i])
+            {
+                continue;
+            }
+
+            // Getting close to overflow is more urgent than a loss of resolution
+            double score = 0;
+
+            if(fraction > HIGH && intervalsMs[i] > minIntervalMs)
+            {
+                score = 1 + fraction;
+            }
+            else if(fraction < LOW && intervalsMs[i] < maxIntervalMs)
+            {
+                score = LOW - fraction;
+            }
+
+            if(score > mostUrgentScore)
+            {
+                mostUrgent = i;
+                mostUrgentScore = score;
+            }
+        }
+
+        if(mostUrgent < 0 || (written && now - lastWriteNanos < minWritePeriodNanos))
+        {
+            return false;
+        }
+
+        int oldInterval = intervalsMs[mostUrgent];
+        int newInterval = nextInterval(oldInterval, Math.abs(sample.velocities[mostUrgent]) / FULL_SCALE);
+
+        if(newInterval == oldInterval)
+        {
+            return false;
+        }
+
+        octoquad.setSingleVelocitySampleInterval(mostUrgent, newInterval);
+
+        intervalsMs[mostUrgent] = newInterval;
+        holdUntilNanos[mostUrgent] = now + TimeUnit.MILLISECONDS.toNanos(oldInterval + newInterval);
+        lastWriteNanos = now;
+        written = true;
+
+        return true;
+    }
+
+    /**
+     * @param idx the channel
+     * @return the velocity from the last sample, in counts per second
+     */
+    public double getVelocity(int idx)
+    {
+        return velocities[idx];
+    }
+
+    /**
+     * @param out the array to fill with every channel's velocity in counts per second
+     */
+    public void getVelocities(double[] out)
+    {
+        System.arraycopy(velocities, 0, out, 0, OctoQuadBase.NUM_ENCODERS);
+    }
+
+    /**
+     * @param idx the channel
+     * @return the velocity sample interval currently in use on that channel, in milliseconds
+     */
+    public int getVelocitySampleInterval(int idx)
+    {
+        return intervalsMs[idx];
+    }
+
+    private int nextInterval(int current, double fraction)
+    {
+        int next;
+
+        if(fraction > HIGH)
+        {
+            next = (int) (current * TARGET / fraction);
+
+            // A clipped reading only tells us the real speed is higher still
+            if(fraction >= 1)
+            {
+                next = Math.min(next, current / 2);
+            }
+        }
+        else
+        {
+            next = fraction > 0 ? (int) (current * TARGET / fraction) : Integer.MAX_VALUE;
+            next = Math.min(next, current * 2);
+        }
+
+        return Math.max(minIntervalMs, Math.min(maxIntervalMs, next));
+    }
+}
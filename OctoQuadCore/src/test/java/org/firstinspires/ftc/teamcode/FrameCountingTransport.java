@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A transport for tests which answers encoder reads with a generated frame: every
+ * position in frame n is n, and every velocity is n & 0x7FFF, so a block mixing
+ * two frames is easy to spot. Everything else goes to an {@link OctoQuadSimulator}.
+ * Reads can be made to throw, and overlapping transactions are counted.
+ */
+class FrameCountingTransport implements OctoQuadTransport
+{
+    final OctoQuadSimulator simulator = new OctoQuadSimulator();
+
+    private final byte[] frame = new byte[OctoQuadCodec.ENCODER_BLOCK_SIZE];
+    private final ByteBuffer frameBuffer = OctoQuadCodec.wrap(frame);
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+
+    volatile int frameCount = 0;
+    volatile int overlapCount = 0;
+    volatile Throwable failure = null;
+    volatile long readDelayNanos = 0;
+
+    @Override
+    public long read(int addr, byte[] dst, int off, int len)
+    {
+        enter();
+        try
+        {
+            Throwable t = failure;
+            if(t instanceof RuntimeException)
+            {
+                throw (RuntimeException) t;
+            }
+            else if(t instanceof Error)
+            {
+                throw (Error) t;
+            }
+
+            long delay = readDelayNanos;
+            if(delay > 0)
+            {
+                long end = System.nanoTime() + delay;
+                while(System.nanoTime() - end < 0)
+                {
+                    Thread.yield();
+                }
+            }
+
+            int first = OctoQuadCodec.ENCODER_BLOCK_REGISTER;
+            if(addr < first || addr + len > first + frame.length)
+            {
+                return simulator.read(addr, dst, off, len);
+            }
+
+            int n = ++frameCount;
+            for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+            {
+                frameBuffer.putInt(4 * i, n);
+                frameBuffer.putShort(OctoQuadCodec.ENCODER_BLOCK_VELOCITY_OFFSET + 2 * i, (short) (n & 0x7FFF));
+            }
+
+            System.arraycopy(frame, addr - first, dst, off, len);
+            return System.nanoTime();
+        }
+        finally
+        {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void write(int addr, byte[] src, int off, int len)
+    {
+        enter();
+        try
+        {
+            simulator.write(addr, src, off, len);
+        }
+        finally
+        {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    @Override
+    public void setReadWindow(int addr, int len)
+    {
+    }
+
+    private void enter()
+    {
+        if(inFlight.incrementAndGet() > 1)
+        {
+            overlapCount++;
+        }
+    }
+}
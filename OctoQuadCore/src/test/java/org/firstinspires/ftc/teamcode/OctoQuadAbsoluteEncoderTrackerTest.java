@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OctoQuadAbsoluteEncoderTrackerTest
+{
+    private static final int MIN_US = 1;
+    private static final int MAX_US = 1025;
+    private static final long STEP_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final OctoQuadBase.EncoderDataBlock block = new OctoQuadBase.EncoderDataBlock();
+    private final OctoQuadAbsoluteEncoderTracker tracker = new OctoQuadAbsoluteEncoderTracker();
+
+    public OctoQuadAbsoluteEncoderTrackerTest()
+    {
+        tracker.setChannel(0, new OctoQuadBase.ChannelPulseWidthParams(MIN_US, MAX_US));
+    }
+
+    @Test
+    public void countsTurnsForwards()
+    {
+        // 2 rev/s at 10ms per update is 0.02 rev per step
+        run(OctoQuadSimulator.rotatingAbsoluteEncoder(2, MIN_US, MAX_US), 255);
+
+        assertEquals(5, tracker.getTurns(0));
+        assertEquals(5.1, tracker.getRevolutions(0), 0.002);
+        assertEquals(0.1 * 2 * Math.PI, tracker.getAngle(0), 0.01);
+        assertEquals(0, tracker.getRejectedCount(0));
+    }
+
+    @Test
+    public void countsTurnsBackwards()
+    {
+        run(OctoQuadSimulator.rotatingAbsoluteEncoder(-2, MIN_US, MAX_US), 255);
+
+        assertEquals(-6, tracker.getTurns(0));
+        assertEquals(-5.1, tracker.getRevolutions(0), 0.002);
+        assertEquals(-5.1 * 2 * Math.PI, tracker.getMultiTurnAngle(0), 0.01);
+        assertEquals(0, tracker.getRejectedCount(0));
+    }
+
+    @Test
+    public void turnsBackAndForthAcrossTheWrap()
+    {
+        // Up to 1.5 turns and back down to -0.5, crossing the wrap each way
+        for(int i = 0; i <= 75; i++)
+        {
+            update(position((i * 0.02) % 1.0));
+        }
+        for(int i = 75; i >= -25; i--)
+        {
+            update(position(((i * 0.02) % 1.0 + 1.0) % 1.0));
+        }
+
+        assertEquals(-1, tracker.getTurns(0));
+        assertEquals(-0.5, tracker.getRevolutions(0), 0.002);
+    }
+
+    @Test
+    public void rejectsAGlitchLargerThanTheMaxStep()
+    {
+        update(position(0.1));
+        update(position(0.12));
+        update(position(0.5));
+        update(position(0.14));
+
+        assertEquals(1, tracker.getRejectedCount(0));
+        assertEquals(0.14, tracker.getRevolutions(0), 0.002);
+    }
+
+    @Test
+    public void followsAJumpWhichPersists()
+    {
+        tracker.setMaxConsecutiveJumps(3);
+
+        update(position(0.1));
+        for(int i = 0; i < 3; i++)
+        {
+            update(position(0.45));
+            assertEquals(0.1, tracker.getRevolutions(0), 0.002);
+        }
+
+        update(position(0.45));
+        assertEquals(0.45, tracker.getRevolutions(0), 0.002);
+        assertEquals(3, tracker.getRejectedCount(0));
+    }
+
+    @Test
+    public void clampsSlightlyOutOfRangeAndRejectsFarOutOfRange()
+    {
+        // The tolerance is 1/20 of the range either side
+        update(position(0.9));
+        update(MAX_US + 10);
+        assertEquals(1.0, tracker.getRevolutions(0), 0.002);
+        assertEquals(0, tracker.getRejectedCount(0));
+
+        update(0);
+        assertEquals(1, tracker.getTurns(0));
+
+        update(MAX_US + 200);
+        update(-500);
+        assertEquals(2, tracker.getRejectedCount(0));
+        assertEquals(1.0, tracker.getRevolutions(0), 0.002);
+    }
+
+    @Test
+    public void resetTurnsKeepsTheAngle()
+    {
+        run(OctoQuadSimulator.rotatingAbsoluteEncoder(2, MIN_US, MAX_US), 130);
+        assertEquals(2, tracker.getTurns(0));
+
+        tracker.resetTurns(0);
+        assertEquals(2, tracker.getTurns(0));
+
+        update(position(0.6));
+        assertEquals(0, tracker.getTurns(0));
+        assertEquals(0.6, tracker.getRevolutions(0), 0.002);
+    }
+
+    @Test
+    public void tracksThePulseWidthChannelsOfADevice()
+    {
+        OctoQuadSimulator simulator = new OctoQuadSimulator();
+        OctoQuadDriver octoquad = new OctoQuadDriver(simulator);
+        octoquad.setChannelBankConfig(OctoQuadBase.ChannelBankConfig.BANK1_QUADRATURE_BANK2_PULSE_WIDTH);
+        for(int ch = 4; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            octoquad.setSingleChannelPulseWidthParams(ch, new OctoQuadBase.ChannelPulseWidthParams(MIN_US, MAX_US));
+            simulator.setSignal(ch, OctoQuadSimulator.rotatingAbsoluteEncoder(ch - 5.5, MIN_US, MAX_US));
+        }
+
+        OctoQuadAbsoluteEncoderTracker deviceTracker = new OctoQuadAbsoluteEncoderTracker(octoquad);
+        simulator.setTime(0);
+        for(int i = 0; i <= 100; i++)
+        {
+            octoquad.readAllEncoderData(block);
+            deviceTracker.update(block);
+            simulator.advanceTime(STEP_NANOS);
+        }
+
+        // 1s at -1.5, -0.5, 0.5 and 1.5 rev/s
+        assertEquals(-1.5, deviceTracker.getRevolutions(4), 0.01);
+        assertEquals(-0.5, deviceTracker.getRevolutions(5), 0.01);
+        assertEquals(0.5, deviceTracker.getRevolutions(6), 0.01);
+        assertEquals(1.5, deviceTracker.getRevolutions(7), 0.01);
+        assertEquals(0, deviceTracker.getRevolutions(0), 0);
+    }
+
+    private void run(OctoQuadSimulator.Signal signal, int steps)
+    {
+        for(int i = 0; i <= steps; i++)
+        {
+            update(signal.valueAt(i * STEP_NANOS));
+        }
+    }
+
+    private static double position(double fraction)
+    {
+        return MIN_US + fraction * (MAX_US - MIN_US);
+    }
+
+    private void update(double lengthUs)
+    {
+        block.positions[0] = (int) Math.round(lengthUs);
+        tracker.update(block);
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OctoQuadAggregatorTest
+{
+    private final FrameCountingTransport first = new FrameCountingTransport();
+    private final FrameCountingTransport second = new FrameCountingTransport();
+    private final OctoQuadAggregator aggregator = new OctoQuadAggregator(new OctoQuadDriver(first), new OctoQuadDriver(second));
+
+    @After
+    public void tearDown()
+    {
+        aggregator.stop();
+    }
+
+    /*
+     * The devices read once per cycle each, so every snapshot must hold the same
+     * frame number for all 16 channels.
+     */
+    @Test
+    public void devicesStayInLockstep()
+    {
+        aggregator.start();
+        waitForCycles(10);
+
+        int last = 0;
+        for(int i = 0; i < 100000; i++)
+        {
+            OctoQuadAggregator.Snapshot snapshot = aggregator.getLatest();
+            int frame = snapshot.positions[0];
+
+            for(int ch = 0; ch < 2 * OctoQuadBase.NUM_ENCODERS; ch++)
+            {
+                assertEquals(frame, snapshot.positions[ch]);
+            }
+
+            assertTrue("snapshots went backwards", frame >= last);
+            last = frame;
+        }
+
+        // Stopping may cut the last cycle short after only one device has read
+        aggregator.stop();
+        assertTrue(Math.abs(first.frameCount - second.frameCount) <= 1);
+        assertEquals(0, aggregator.getErrorCount());
+        assertEquals(0, first.overlapCount + second.overlapCount);
+    }
+
+    @Test
+    public void cycleTakesAsLongAsTheSlowestBus()
+    {
+        second.readDelayNanos = TimeUnit.MILLISECONDS.toNanos(2);
+
+        aggregator.start();
+        waitForCycles(20);
+        aggregator.stop();
+
+        OctoQuadAggregator.Snapshot snapshot = aggregator.getLatest();
+        assertTrue(snapshot.cycleNanos >= TimeUnit.MILLISECONDS.toNanos(2));
+        assertTrue(snapshot.getDeviceSkewNanos(1) >= snapshot.getDeviceSkewNanos(0));
+    }
+
+    @Test
+    public void stopsWhileADeviceIsFailing()
+    {
+        aggregator.start();
+        waitForCycles(1);
+
+        second.failure = new RuntimeException("nack");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(aggregator.getErrorCount() == 0)
+        {
+            assertTrue("timed out waiting for an error", System.nanoTime() - deadline < 0);
+            Thread.yield();
+        }
+
+        aggregator.stop();
+        assertFalse(aggregator.isRunning());
+        assertEquals("nack", aggregator.getLastError().getMessage());
+    }
+
+    private void waitForCycles(long count)
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while(aggregator.getCycleCount() < count)
+        {
+            assertTrue("timed out waiting for cycles", System.nanoTime() - deadline < 0);
+            Thread.yield();
+        }
+    }
+}
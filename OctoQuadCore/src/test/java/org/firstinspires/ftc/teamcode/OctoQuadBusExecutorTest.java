@@ -0,0 +1,344 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OctoQuadBusExecutorTest
+{
+    private static final int THREADS = 8;
+
+    private final FrameCountingTransport transport = new FrameCountingTransport();
+    private final OctoQuadBusExecutor executor = new OctoQuadBusExecutor(new OctoQuadDriver(transport));
+
+    @After
+    public void tearDown()
+    {
+        executor.shutdown();
+    }
+
+    @Test
+    public void serializesCallsFromManyThreads() throws InterruptedException
+    {
+        final AtomicInteger calls = new AtomicInteger(0);
+
+        runConcurrently(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                int[] positions = new int[OctoQuadBase.NUM_ENCODERS];
+                OctoQuadBase.EncoderDataBlock block = new OctoQuadBase.EncoderDataBlock();
+
+                for(int i = 0; i < 200; i++)
+                {
+                    executor.readAllPositions(positions);
+                    executor.readAllEncoderData(block);
+                    executor.setSingleVelocitySampleInterval(i % OctoQuadBase.NUM_ENCODERS, 10 + i % 50);
+                    executor.readSingleVelocity(i % OctoQuadBase.NUM_ENCODERS);
+
+                    for(int ch = 1; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+                    {
+                        assertEquals(block.positions[0], block.positions[ch]);
+                    }
+
+                    calls.addAndGet(4);
+                }
+            }
+        });
+
+        assertEquals(THREADS * 800, calls.get());
+        assertEquals(0, transport.overlapCount);
+    }
+
+    @Test
+    public void coalescesWaitingSingleChannelReads() throws InterruptedException
+    {
+        transport.readDelayNanos = TimeUnit.MICROSECONDS.toNanos(200);
+
+        runConcurrently(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(int i = 0; i < 100; i++)
+                {
+                    executor.readSinglePosition(i % OctoQuadBase.NUM_ENCODERS);
+                }
+            }
+        });
+
+        assertTrue(executor.getCoalescedCount() > 0);
+        assertEquals(THREADS * 100, transport.frameCount + executor.getCoalescedCount());
+    }
+
+    /*
+     * Frames are numbered in the order they're read, so a single-channel read must
+     * never be answered with a frame numbered below the last one read before the call.
+     */
+    @Test
+    public void neverAnswersFromAFrameOlderThanTheCall() throws InterruptedException
+    {
+        transport.readDelayNanos = TimeUnit.MICROSECONDS.toNanos(100);
+        final AtomicReference<String> failure = new AtomicReference<String>(null);
+
+        runConcurrently(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(int i = 0; i < 200; i++)
+                {
+                    int before = transport.frameCount;
+                    int frame = executor.readSinglePosition(i % OctoQuadBase.NUM_ENCODERS);
+
+                    if(frame <= before)
+                    {
+                        failure.compareAndSet(null, "frame " + frame + " read after frame " + before);
+                    }
+                }
+            }
+        });
+
+        assertEquals(null, failure.get());
+    }
+
+    @Test
+    public void coalescingWindowAnswersFromTheSnapshot()
+    {
+        executor.setCoalescingWindow(1, TimeUnit.SECONDS);
+        executor.readAllEncoderData(new OctoQuadBase.EncoderDataBlock());
+        int frames = transport.frameCount;
+
+        for(int i = 0; i < 100; i++)
+        {
+            assertEquals(frames, executor.readSinglePosition(i % OctoQuadBase.NUM_ENCODERS));
+        }
+
+        assertEquals(frames, transport.frameCount);
+        assertEquals(100, executor.getCoalescedCount());
+    }
+
+    @Test
+    public void loopReadingEveryChannelCostsOneTransaction()
+    {
+        executor.setCoalescingWindow(50, TimeUnit.MILLISECONDS);
+        int frames = transport.frameCount;
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            assertEquals(frames + 1, executor.readSinglePosition(i));
+        }
+
+        assertEquals(frames + 1, transport.frameCount);
+        assertEquals(OctoQuadBase.NUM_ENCODERS - 1, executor.getCoalescedCount());
+    }
+
+    @Test
+    public void pollingKeepsTheSnapshotFresh() throws InterruptedException
+    {
+        OctoQuadBase.TimestampedEncoderDataBlock snapshot = new OctoQuadBase.TimestampedEncoderDataBlock();
+        assertFalse(executor.readSnapshot(snapshot));
+
+        executor.setPollPeriod(2, TimeUnit.MILLISECONDS);
+        Thread.sleep(50);
+
+        assertTrue(executor.readSnapshot(snapshot));
+        assertTrue(snapshot.positions[0] > 5);
+        for(int ch = 1; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            assertEquals(snapshot.positions[0], snapshot.positions[ch]);
+        }
+        assertTrue(System.nanoTime() - snapshot.requestNanos < TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void pollingDoesNotAllocate() throws InterruptedException
+    {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        long executorThreadId = -1;
+        for(Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if(thread.getName().equals("OctoQuad bus executor"))
+            {
+                executorThreadId = thread.getId();
+            }
+        }
+        assumeTrue(executorThreadId != -1);
+
+        executor.setPollPeriod(100, TimeUnit.MICROSECONDS);
+        Thread.sleep(500);
+
+        int frames = transport.frameCount;
+        long before = threadBean.getThreadAllocatedBytes(executorThreadId);
+        Thread.sleep(100);
+        long after = threadBean.getThreadAllocatedBytes(executorThreadId);
+
+        assertTrue(transport.frameCount - frames > 50);
+        assertEquals(0, after - before);
+    }
+
+    @Test
+    public void interruptedCallerWaitsWithoutSpinning()
+    {
+        transport.readDelayNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        long cpuBefore = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+
+        Thread.currentThread().interrupt();
+        executor.readAllPositions();
+
+        assertTrue(Thread.interrupted());
+        long cpuNanos = ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime() - cpuBefore;
+        assertTrue("cpu ms: " + cpuNanos / 1e6, cpuNanos < TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void errorsReachTheCaller()
+    {
+        RuntimeException nack = new RuntimeException("nack");
+        transport.failure = nack;
+
+        try
+        {
+            executor.readAllPositions();
+            fail();
+        }
+        catch (RuntimeException e)
+        {
+            assertSame(nack, e);
+        }
+
+        transport.failure = null;
+        executor.readAllPositions();
+    }
+
+    @Test
+    public void errorsDontKillTheExecutor() throws InterruptedException
+    {
+        AssertionError error = new AssertionError("boom");
+        transport.failure = error;
+
+        for(int i = 0; i < 2; i++)
+        {
+            try
+            {
+                executor.readAllPositions();
+                fail();
+            }
+            catch (AssertionError e)
+            {
+                assertSame(error, e);
+            }
+        }
+
+        // A flight of coalesced reads gets the error too, rather than hanging
+        final AtomicInteger errors = new AtomicInteger(0);
+        runConcurrently(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(int i = 0; i < 20; i++)
+                {
+                    try
+                    {
+                        executor.readSinglePosition(0);
+                    }
+                    catch (AssertionError e)
+                    {
+                        errors.incrementAndGet();
+                    }
+                }
+            }
+        });
+        assertEquals(THREADS * 20, errors.get());
+
+        transport.failure = null;
+        executor.readAllPositions();
+    }
+
+    @Test
+    public void callsAfterShutdownThrow()
+    {
+        executor.readAllPositions();
+        executor.shutdown();
+
+        try
+        {
+            executor.readAllPositions();
+            fail();
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+    }
+
+    private static void runConcurrently(Runnable body) throws InterruptedException
+    {
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>(null);
+        Thread[] threads = new Thread[THREADS];
+
+        for(int i = 0; i < threads.length; i++)
+        {
+            threads[i] = new Thread(body);
+            threads[i].setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler()
+            {
+                @Override
+                public void uncaughtException(Thread t, Throwable e)
+                {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[i].start();
+        }
+
+        for(Thread thread : threads)
+        {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+            assertTrue("thread hung", !thread.isAlive());
+        }
+
+        if(failure.get() != null)
+        {
+            throw new AssertionError(failure.get());
+        }
+    }
+}
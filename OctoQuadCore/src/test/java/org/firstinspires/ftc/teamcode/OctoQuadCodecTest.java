@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class OctoQuadCodecTest
+{
+    private static final int[] POSITIONS = {0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 123456789, -987654321, 0x01020304};
+    private static final short[] VELOCITIES = {0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE, 1234, -4321, 0x0102};
+
+    @Test
+    public void decodesAnEncoderBlockFromAnyBuffer()
+    {
+        // Little-endian block at index 5, as it might sit in a larger receive buffer
+        byte[] bytes = new byte[5 + OctoQuadCodec.ENCODER_BLOCK_SIZE];
+        ByteBuffer le = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            le.putInt(5 + 4 * i, POSITIONS[i]);
+            le.putShort(5 + OctoQuadCodec.ENCODER_BLOCK_VELOCITY_OFFSET + 2 * i, VELOCITIES[i]);
+        }
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).clear();
+
+        ByteBuffer[] buffers = {
+                OctoQuadCodec.wrap(bytes),
+                ByteBuffer.wrap(bytes).order(ByteOrder.BIG_ENDIAN),
+                direct.order(ByteOrder.LITTLE_ENDIAN),
+                direct.duplicate().order(ByteOrder.BIG_ENDIAN)
+        };
+
+        for(ByteBuffer buffer : buffers)
+        {
+            OctoQuadBase.EncoderDataBlock block = new OctoQuadBase.EncoderDataBlock();
+            OctoQuadCodec.decodeEncoderBlock(buffer, 5, block);
+
+            assertArrayEquals(POSITIONS, block.positions);
+            assertArrayEquals(VELOCITIES, block.velocities);
+            assertEquals(0, buffer.position());
+        }
+    }
+
+    @Test
+    public void decodesPartsOfTheBlock()
+    {
+        ByteBuffer buffer = OctoQuadCodec.wrap(new byte[OctoQuadCodec.ENCODER_BLOCK_SIZE]);
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            buffer.putInt(4 * i, POSITIONS[i]);
+            buffer.putShort(OctoQuadCodec.ENCODER_BLOCK_VELOCITY_OFFSET + 2 * i, VELOCITIES[i]);
+        }
+
+        int[] positions = new int[4];
+        OctoQuadCodec.decodePositions(buffer, 8, positions, 1, 3);
+        assertArrayEquals(new int[] {0, POSITIONS[2], POSITIONS[3], POSITIONS[4]}, positions);
+
+        short[] velocities = new short[2];
+        OctoQuadCodec.decodeVelocities(buffer, OctoQuadCodec.ENCODER_BLOCK_VELOCITY_OFFSET + 12, velocities, 0, 2);
+        assertArrayEquals(new short[] {VELOCITIES[6], VELOCITIES[7]}, velocities);
+    }
+
+    @Test
+    public void encodesCommandFramesBackToBack()
+    {
+        byte[] bytes = new byte[32];
+        ByteBuffer buffer = OctoQuadCodec.wrap(bytes);
+
+        assertEquals(2, OctoQuadCodec.encodeResetEncoders(buffer, 0x81));
+        assertEquals(4, OctoQuadCodec.encodeSetVelocitySampleInterval(buffer, 3, 25));
+        assertEquals(7, OctoQuadCodec.encodeSetPulseWidthParams(buffer, 6, 1, 40000));
+        assertEquals(3, OctoQuadCodec.encodeReadVelocitySampleInterval(buffer, 3));
+        assertEquals(1, OctoQuadCodec.encodeWriteParamsToFlash(buffer));
+        assertEquals(17, buffer.position());
+
+        assertArrayEquals(new byte[] {
+                OctoQuadProtocol.CMD_RESET_ENCODERS, (byte) 0x81,
+                OctoQuadProtocol.CMD_SET_PARAM, OctoQuadProtocol.PARAM_CHANNEL_VEL_INTVL, 3, 25,
+                OctoQuadProtocol.CMD_SET_PARAM, OctoQuadProtocol.PARAM_CHANNEL_PULSE_WIDTH_MIN_MAX, 6, 1, 0, (byte) 0x40, (byte) 0x9C,
+                OctoQuadProtocol.CMD_READ_PARAM, OctoQuadProtocol.PARAM_CHANNEL_VEL_INTVL, 3,
+                OctoQuadProtocol.CMD_WRITE_PARAMS_TO_FLASH
+        }, Arrays.copyOf(bytes, 17));
+    }
+
+    @Test
+    public void pulseWidthParamsRoundTripUnsigned()
+    {
+        ByteBuffer buffer = OctoQuadCodec.wrap(new byte[OctoQuadCodec.COMMAND_FRAME_MAX]);
+        OctoQuadCodec.encodeSetPulseWidthParams(buffer, 0, 500, 65535);
+
+        OctoQuadBase.ChannelPulseWidthParams params = new OctoQuadBase.ChannelPulseWidthParams();
+        OctoQuadCodec.decodePulseWidthParams(buffer, 3, params);
+
+        assertEquals(500, params.min_length_us);
+        assertEquals(65535, params.max_length_us);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Checks that the read paths which fill caller-owned arrays don't allocate once
+ * warmed up, measured with the JVM's per-thread allocation counter.
+ */
+public class OctoQuadDriverAllocationTest
+{
+    private static final int WARMUP_CALLS = 20000;
+    private static final int MEASURED_CALLS = 10000;
+
+    private interface Call
+    {
+        void run();
+    }
+
+    private com.sun.management.ThreadMXBean threadBean;
+    private OctoQuadDriver octoquad;
+
+    private final int[] positions = new int[OctoQuadBase.NUM_ENCODERS];
+    private final short[] velocities = new short[OctoQuadBase.NUM_ENCODERS];
+    private final long[] unwrapped = new long[OctoQuadBase.NUM_ENCODERS];
+    private final int[] positionRange = new int[3];
+    private final short[] velocityRange = new short[3];
+    private final OctoQuadBase.EncoderDataBlock block = new OctoQuadBase.EncoderDataBlock();
+    private final OctoQuadBase.TimestampedEncoderDataBlock timestamped = new OctoQuadBase.TimestampedEncoderDataBlock();
+
+    @Before
+    public void setUp()
+    {
+        assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        OctoQuadSimulator simulator = new OctoQuadSimulator();
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            simulator.setSignal(i, OctoQuadSimulator.constantVelocity(1000 * (i + 1)));
+        }
+
+        octoquad = new OctoQuadDriver(simulator);
+        octoquad.getChipId();
+    }
+
+    @Test
+    public void readAllPositionsDoesNotAllocate()
+    {
+        assertNoAllocation(new Call()
+        {
+            @Override
+            public void run()
+            {
+                octoquad.readAllPositions(positions);
+            }
+        });
+    }
+
+    @Test
+    public void readAllVelocitiesDoesNotAllocate()
+    {
+        assertNoAllocation(new Call()
+        {
+            @Override
+            public void run()
+            {
+                octoquad.readAllVelocities(velocities);
+            }
+        });
+    }
+
+    @Test
+    public void readAllUnwrappedPositionsDoesNotAllocate()
+    {
+        assertNoAllocation(new Call()
+        {
+            @Override
+            public void run()
+            {
+                octoquad.readAllUnwrappedPositions(unwrapped);
+            }
+        });
+    }
+
+    @Test
+    public void readRangesDoNotAllocate()
+    {
+        assertNoAllocation(new Call()
+        {
+            @Override
+            public void run()
+            {
+                octoquad.readPositionRange(2, 4, positionRange);
+                octoquad.readVelocityRange(5, 7, velocityRange);
+            }
+        });
+    }
+
+    @Test
+    public void readAllEncoderDataDoesNotAllocate()
+    {
+        assertNoAllocation(new Call()
+        {
+            @Override
+            public void run()
+            {
+                octoquad.readAllEncoderData(block);
+                octoquad.readAllEncoderDataTimestamped(timestamped);
+            }
+        });
+    }
+
+    @Test
+    public void readEncoderDataWithPlanDoesNotAllocate()
+    {
+        final OctoQuadReadPlan plan = new OctoQuadReadPlan(new int[] {0, 1, 7}, new int[] {1});
+
+        assertNoAllocation(new Call()
+        {
+            @Override
+            public void run()
+            {
+                octoquad.readEncoderData(plan, block);
+            }
+        });
+    }
+
+    @Test
+    public void cachedReadsDoNotAllocate()
+    {
+        octoquad.enableCachedEncoderReads(1, TimeUnit.SECONDS);
+
+        assertNoAllocation(new Call()
+        {
+            @Override
+            public void run()
+            {
+                octoquad.readAllPositions(positions);
+                octoquad.readSinglePosition(3);
+            }
+        });
+    }
+
+    private void assertNoAllocation(Call call)
+    {
+        long threadId = Thread.currentThread().getId();
+
+        for(int i = 0; i < WARMUP_CALLS; i++)
+        {
+            call.run();
+        }
+
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for(int i = 0; i < MEASURED_CALLS; i++)
+        {
+            call.run();
+        }
+        long after = threadBean.getThreadAllocatedBytes(threadId);
+
+        assertEquals("bytes allocated over " + MEASURED_CALLS + " calls", 0, after - before);
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class OctoQuadHistoryTest
+{
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final OctoQuadBase.TimestampedEncoderDataBlock sample = new OctoQuadBase.TimestampedEncoderDataBlock();
+
+    @Test
+    public void interpolatesBetweenSamples()
+    {
+        OctoQuadHistory history = new OctoQuadHistory(16);
+        add(history, 0, 0);
+        add(history, 10 * MS, 100);
+        add(history, 20 * MS, 300);
+
+        assertEquals(50, history.positionAt(0, 5 * MS), 1e-9);
+        assertEquals(200, history.positionAt(0, 15 * MS), 1e-9);
+        assertEquals(100, history.positionAt(0, 10 * MS), 1e-9);
+        assertEquals(300, history.velocityAt(0, 20 * MS), 1e-9);
+    }
+
+    @Test
+    public void clampsOutsideTheHistory()
+    {
+        OctoQuadHistory history = new OctoQuadHistory(16);
+        add(history, 100 * MS, 1000);
+        add(history, 110 * MS, 1100);
+
+        // Before the oldest sample: the oldest value
+        assertEquals(1000, history.positionAt(0, 0), 1e-9);
+
+        // After the newest: extrapolated, but no further than the maximum
+        assertEquals(1150, history.positionAt(0, 115 * MS), 1e-9);
+        assertEquals(1600, history.positionAt(0, 1000 * MS), 1e-9);
+
+        history.setMaxExtrapolation(0, TimeUnit.MILLISECONDS);
+        assertEquals(1100, history.positionAt(0, 1000 * MS), 1e-9);
+    }
+
+    @Test
+    public void ignoresRepeatedSamples()
+    {
+        OctoQuadHistory history = new OctoQuadHistory(16);
+        add(history, 10 * MS, 1);
+        add(history, 10 * MS, 2);
+        add(history, 5 * MS, 3);
+
+        assertEquals(1, history.size());
+        assertEquals(10 * MS, history.getNewestNanos());
+    }
+
+    @Test
+    public void keepsOnlyTheNewestSamples()
+    {
+        OctoQuadHistory history = new OctoQuadHistory(4);
+        for(int i = 0; i < 10; i++)
+        {
+            add(history, i * MS, i);
+        }
+
+        assertEquals(4, history.size());
+        assertEquals(7, history.positionAt(0, 0), 1e-9);
+        assertEquals(8.5, history.positionAt(0, 8 * MS + MS / 2), 1e-9);
+    }
+
+    /*
+     * Samples are 1ms apart with position = time in us, and queries fall between
+     * samples, so an interpolated answer ends in 500. A query which has fallen off
+     * the end of the history gets the oldest sample, a multiple of 1000 and later
+     * than asked for. Anything else came from samples overwritten mid-query.
+     */
+    @Test
+    public void concurrentQueriesNeverSeeOverwrittenSamples() throws InterruptedException
+    {
+        final OctoQuadHistory history = new OctoQuadHistory(32);
+        final AtomicReference<String> failure = new AtomicReference<String>(null);
+        final long queries = 200000;
+
+        add(history, 0, 0);
+        add(history, MS, 1000);
+
+        Thread[] readers = new Thread[3];
+        for(int r = 0; r < readers.length; r++)
+        {
+            readers[r] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for(int i = 0; i < queries && failure.get() == null; i++)
+                    {
+                        long t = history.getNewestNanos() - 10 * MS - MS / 2;
+                        if(t < 0)
+                        {
+                            continue;
+                        }
+
+                        double expected = t / 1000;
+                        double value = history.positionAt(3, t);
+
+                        boolean interpolated = Math.abs(value - expected) < 1e-6;
+                        boolean clamped = value > expected && value % 1000 == 0;
+                        if(!interpolated && !clamped)
+                        {
+                            failure.compareAndSet(null, "at " + t + " got " + value);
+                        }
+                    }
+                }
+            });
+            readers[r].start();
+        }
+
+        long nanos = 2 * MS;
+        while(isAlive(readers))
+        {
+            add(history, nanos, nanos / 1000);
+            nanos += MS;
+        }
+
+        assertEquals(null, failure.get());
+        assertTrue(nanos > 100 * MS);
+    }
+
+    private void add(OctoQuadHistory history, long nanos, long position)
+    {
+        sample.requestNanos = nanos;
+        sample.responseNanos = nanos;
+
+        for(int i = 0; i < OctoQuadBase.NUM_ENCODERS; i++)
+        {
+            sample.unwrappedPositions[i] = position;
+            sample.velocities[i] = (short) position;
+        }
+
+        history.update(sample);
+    }
+
+    private static boolean isAlive(Thread[] threads)
+    {
+        for(Thread thread : threads)
+        {
+            if(thread.isAlive())
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
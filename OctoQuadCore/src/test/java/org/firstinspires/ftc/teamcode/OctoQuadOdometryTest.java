@@ -0,0 +1,290 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+public class OctoQuadOdometryTest
+{
+    private static final int LEFT = 0;
+    private static final int RIGHT = 1;
+    private static final int PERPENDICULAR = 2;
+    private static final double TRACK_WIDTH = 10;
+    private static final double PERPENDICULAR_OFFSET = -3;
+    private static final double PARALLEL_OFFSET = 4;
+    private static final double TICKS_PER_UNIT = 1000;
+
+    private final OctoQuadBase.TimestampedEncoderDataBlock sample = new OctoQuadBase.TimestampedEncoderDataBlock();
+    private final double[] travel = new double[OctoQuadBase.NUM_ENCODERS];
+    private double imuHeading = 0;
+
+    private final OctoQuadOdometry.HeadingSource imu = new OctoQuadOdometry.HeadingSource()
+    {
+        @Override
+        public double getHeading()
+        {
+            return imuHeading;
+        }
+    };
+
+    @Test
+    public void drivesForward()
+    {
+        OctoQuadOdometry odometry = threeWheel();
+
+        for(int i = 0; i < 50; i++)
+        {
+            move(odometry, 0.5, 0.5, 0);
+        }
+
+        assertPose(25, 0, 0, odometry.getPose());
+    }
+
+    @Test
+    public void strafes()
+    {
+        OctoQuadOdometry odometry = threeWheel();
+
+        for(int i = 0; i < 50; i++)
+        {
+            move(odometry, 0, 0, -0.5);
+        }
+
+        assertPose(0, -25, 0, odometry.getPose());
+    }
+
+    @Test
+    public void turnsInPlace()
+    {
+        OctoQuadOdometry odometry = threeWheel();
+        double step = Math.PI / 100;
+
+        // Turning counter-clockwise moves the left wheel backwards and the right wheel forwards
+        for(int i = 0; i < 50; i++)
+        {
+            move(odometry, -TRACK_WIDTH / 2 * step, TRACK_WIDTH / 2 * step, PERPENDICULAR_OFFSET * step);
+        }
+
+        assertPose(0, 0, Math.PI / 2, odometry.getPose());
+    }
+
+    @Test
+    public void followsAnArc()
+    {
+        OctoQuadOdometry odometry = threeWheel();
+        double radius = 50;
+        double step = Math.PI / 200;
+
+        for(int i = 0; i < 100; i++)
+        {
+            move(odometry, (radius - TRACK_WIDTH / 2) * step, (radius + TRACK_WIDTH / 2) * step, PERPENDICULAR_OFFSET * step);
+        }
+
+        // A quarter circle to the left about (0, radius)
+        assertPose(radius, radius, Math.PI / 2, odometry.getPose());
+    }
+
+    @Test
+    public void integratesEachSampleAlongAnArc()
+    {
+        OctoQuadOdometry odometry = threeWheel();
+        double radius = 20;
+        double angle = 1.0;
+
+        // A single sample covering a whole arc lands exactly where the arc does
+        move(odometry, (radius - TRACK_WIDTH / 2) * angle, (radius + TRACK_WIDTH / 2) * angle, PERPENDICULAR_OFFSET * angle);
+
+        assertPose(radius * Math.sin(angle), radius * (1 - Math.cos(angle)), angle, odometry.getPose());
+    }
+
+    @Test
+    public void twoWheelsSubtractTheHeadingChange()
+    {
+        OctoQuadOdometry odometry = twoWheel();
+        double step = Math.PI / 100;
+
+        // Turning in place still moves both wheels, by their heading terms
+        for(int i = 0; i < 50; i++)
+        {
+            imuHeading += step;
+            move(odometry, -PARALLEL_OFFSET * step, 0, PERPENDICULAR_OFFSET * step);
+        }
+        assertPose(0, 0, Math.PI / 2, odometry.getPose());
+
+        double radius = 30;
+        for(int i = 0; i < 100; i++)
+        {
+            imuHeading += step;
+            move(odometry, (radius - PARALLEL_OFFSET) * step, 0, PERPENDICULAR_OFFSET * step);
+        }
+
+        // A half circle to the left starting from facing +y
+        assertPose(-2 * radius, 0, -Math.PI / 2, odometry.getPose());
+    }
+
+    @Test
+    public void twoWheelHeadingIsRelativeToThePose()
+    {
+        imuHeading = 1.0;
+        OctoQuadOdometry odometry = twoWheel();
+        assertPose(0, 0, 0, odometry.getPose());
+
+        odometry.setPose(new OctoQuadOdometry.Pose(0, 0, Math.PI / 2));
+        move(odometry, 0, 0, 0);
+        imuHeading = 1.0 + Math.PI / 4;
+        move(odometry, -PARALLEL_OFFSET * Math.PI / 4, 0, PERPENDICULAR_OFFSET * Math.PI / 4);
+
+        assertPose(0, 0, 3 * Math.PI / 4, odometry.getPose());
+    }
+
+    @Test
+    public void setPoseTakesEffectOnTheNextUpdate()
+    {
+        OctoQuadOdometry odometry = threeWheel();
+        move(odometry, 1, 1, 0);
+        assertPose(1, 0, 0, odometry.getPose());
+
+        odometry.setPose(new OctoQuadOdometry.Pose(10, 20, Math.PI / 2));
+        assertPose(1, 0, 0, odometry.getPose());
+
+        // The movement in the sample that applies the pose is dropped
+        move(odometry, 5, 5, 0);
+        assertPose(10, 20, Math.PI / 2, odometry.getPose());
+
+        // and driving forward now heads along +y
+        move(odometry, 2, 2, 0);
+        assertPose(10, 22, Math.PI / 2, odometry.getPose());
+    }
+
+    @Test
+    public void readPoseReturnsTheSampleTime()
+    {
+        OctoQuadOdometry odometry = threeWheel();
+        double[] pose = new double[3];
+        assertEquals(0, odometry.readPose(pose));
+
+        sample.responseNanos = 1234;
+        move(odometry, 1, 1, 0);
+        assertEquals(1234, odometry.readPose(pose));
+        assertEquals(1234, odometry.getPose().nanos);
+    }
+
+    @Test
+    public void readersNeverSeeAHalfWrittenPose() throws InterruptedException
+    {
+        final OctoQuadOdometry odometry = threeWheel();
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicBoolean torn = new AtomicBoolean(false);
+
+        // Each sample drives 1 unit forward and is stamped with its index, so x always equals the time
+        Thread writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(long k = 1; !stop.get(); k++)
+                {
+                    sample.responseNanos = k;
+                    sample.unwrappedPositions[LEFT] = k * (long) TICKS_PER_UNIT;
+                    sample.unwrappedPositions[RIGHT] = k * (long) TICKS_PER_UNIT;
+                    odometry.onSample(sample);
+                }
+            }
+        });
+        writer.start();
+
+        double[] pose = new double[3];
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+        while(System.nanoTime() < end)
+        {
+            long nanos = odometry.readPose(pose);
+            if(Math.abs(pose[0] - nanos) > 1e-3)
+            {
+                torn.set(true);
+            }
+        }
+
+        stop.set(true);
+        writer.join();
+        assertFalse(torn.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsALayoutThatCantSeeRotation()
+    {
+        new OctoQuadOdometry(new OctoQuadOdometry.Wheel[] {
+                new OctoQuadOdometry.Wheel(LEFT, 0, 0, 0, TICKS_PER_UNIT),
+                new OctoQuadOdometry.Wheel(RIGHT, 0, 0, 0, TICKS_PER_UNIT),
+                new OctoQuadOdometry.Wheel(PERPENDICULAR, 0, 0, Math.PI / 2, TICKS_PER_UNIT)
+        });
+    }
+
+    /*
+     * The odometry factories feed one sample at the starting position,
+     * as the first sample only latches the positions.
+     */
+    private OctoQuadOdometry threeWheel()
+    {
+        OctoQuadOdometry odometry = OctoQuadOdometry.threeWheel(LEFT, RIGHT, PERPENDICULAR,
+                TRACK_WIDTH, PERPENDICULAR_OFFSET, TICKS_PER_UNIT);
+        move(odometry, 0, 0, 0);
+        return odometry;
+    }
+
+    private OctoQuadOdometry twoWheel()
+    {
+        OctoQuadOdometry odometry = OctoQuadOdometry.twoWheel(LEFT, PERPENDICULAR,
+                PARALLEL_OFFSET, PERPENDICULAR_OFFSET, TICKS_PER_UNIT, imu);
+        move(odometry, 0, 0, 0);
+        return odometry;
+    }
+
+    /*
+     * Add to the wheels' travel and feed the result as a sample
+     */
+    private void move(OctoQuadOdometry odometry, double left, double right, double perpendicular)
+    {
+        travel[LEFT] += left;
+        travel[RIGHT] += right;
+        travel[PERPENDICULAR] += perpendicular;
+
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            sample.unwrappedPositions[ch] = Math.round(travel[ch] * TICKS_PER_UNIT);
+        }
+        odometry.onSample(sample);
+    }
+
+    private static void assertPose(double x, double y, double heading, OctoQuadOdometry.Pose pose)
+    {
+        assertEquals(x, pose.x, 0.01);
+        assertEquals(y, pose.y, 0.01);
+        assertEquals(heading, pose.heading, 1e-3);
+    }
+}
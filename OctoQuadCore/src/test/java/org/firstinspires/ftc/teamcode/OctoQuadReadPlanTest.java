@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class OctoQuadReadPlanTest
+{
+    private static final int[] NONE = new int[0];
+
+    @Test
+    public void mergesNearbySpans()
+    {
+        OctoQuadReadPlan plan = new OctoQuadReadPlan(new int[] {0, 1, 7}, new int[] {1});
+
+        assertEquals(2, plan.getReadCount());
+        assertEquals(0, plan.getReadOffset(0));
+        assertEquals(8, plan.getReadLength(0));
+        assertEquals(OctoQuadReadPlan.positionOffset(7), plan.getReadOffset(1));
+        assertEquals(OctoQuadReadPlan.velocityOffset(1) + 2 - OctoQuadReadPlan.positionOffset(7), plan.getReadLength(1));
+        assertEquals(2 * OctoQuadBusCostModel.HUB_100K.transactionNanos
+                + 16 * OctoQuadBusCostModel.HUB_100K.perByteNanos, plan.getCostNanos());
+    }
+
+    @Test
+    public void choosesAccordingToTheBusCost()
+    {
+        int[] positions = {0};
+        int[] velocities = {7};
+
+        // At 100 kHz the 40 bytes in between cost more than a second transaction...
+        OctoQuadReadPlan slow = new OctoQuadReadPlan(positions, velocities, OctoQuadBusCostModel.HUB_100K);
+        assertEquals(2, slow.getReadCount());
+        assertEquals(4, slow.getReadLength(0));
+        assertEquals(2, slow.getReadLength(1));
+
+        // ...but at 400 kHz reading straight through is cheaper
+        OctoQuadReadPlan fast = new OctoQuadReadPlan(positions, velocities, OctoQuadBusCostModel.HUB_400K);
+        assertEquals(1, fast.getReadCount());
+        assertEquals(0, fast.getReadOffset(0));
+        assertEquals(OctoQuadCodec.ENCODER_BLOCK_SIZE, fast.getReadLength(0));
+        assertEquals(OctoQuadBusCostModel.HUB_400K.nanosFor(OctoQuadCodec.ENCODER_BLOCK_SIZE), fast.getCostNanos());
+    }
+
+    @Test
+    public void readsEverythingInOneGoWhenTransactionsDominate()
+    {
+        OctoQuadBusCostModel overheadOnly = new OctoQuadBusCostModel(1000000, 0);
+        OctoQuadReadPlan plan = new OctoQuadReadPlan(new int[] {0, 3, 6}, new int[] {2, 5}, overheadOnly);
+
+        assertEquals(1, plan.getReadCount());
+        assertEquals(1000000, plan.getCostNanos());
+    }
+
+    @Test
+    public void coversEveryRequestedSpanAtTheLowestCost()
+    {
+        Random random = new Random(42);
+        OctoQuadBusCostModel[] models = {OctoQuadBusCostModel.HUB_100K, OctoQuadBusCostModel.HUB_400K,
+                new OctoQuadBusCostModel(100000, 90000)};
+
+        for(int trial = 0; trial < 200; trial++)
+        {
+            int positionMask = random.nextInt(256);
+            int velocityMask = random.nextInt(256);
+            if(positionMask == 0 && velocityMask == 0)
+            {
+                continue;
+            }
+
+            OctoQuadBusCostModel model = models[trial % models.length];
+            OctoQuadReadPlan plan = new OctoQuadReadPlan(channels(positionMask), channels(velocityMask), model);
+
+            boolean[] covered = new boolean[OctoQuadCodec.ENCODER_BLOCK_SIZE];
+            long cost = 0;
+            int lastEnd = 0;
+
+            for(int i = 0; i < plan.getReadCount(); i++)
+            {
+                int offset = plan.getReadOffset(i);
+                int length = plan.getReadLength(i);
+                assertTrue("reads in order without overlap", offset >= lastEnd && length > 0);
+                lastEnd = offset + length;
+
+                for(int b = offset; b < offset + length; b++)
+                {
+                    covered[b] = true;
+                }
+                cost += model.nanosFor(length);
+            }
+
+            assertTrue(lastEnd <= OctoQuadCodec.ENCODER_BLOCK_SIZE);
+            assertEquals(cost, plan.getCostNanos());
+            assertEquals(bruteForceCost(positionMask, velocityMask, model), plan.getCostNanos());
+
+            for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+            {
+                boolean position = (positionMask & (1 << ch)) != 0;
+                boolean velocity = (velocityMask & (1 << ch)) != 0;
+                assertEquals(position, plan.readsPosition(ch));
+                assertEquals(velocity, plan.readsVelocity(ch));
+
+                if(position)
+                {
+                    assertCovered(covered, OctoQuadReadPlan.positionOffset(ch), 4);
+                }
+                if(velocity)
+                {
+                    assertCovered(covered, OctoQuadReadPlan.velocityOffset(ch), 2);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void readEncoderDataFillsOnlyThePlannedFields()
+    {
+        OctoQuadSimulator simulator = new OctoQuadSimulator();
+        simulator.setTime(0);
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            simulator.setSignal(ch, OctoQuadSimulator.constantVelocity(1000 * (ch + 1)));
+        }
+        simulator.advanceTime(1000000000L);
+
+        OctoQuadDriver octoquad = new OctoQuadDriver(simulator);
+        OctoQuadBase.EncoderDataBlock all = new OctoQuadBase.EncoderDataBlock();
+        octoquad.readAllEncoderData(all);
+
+        OctoQuadReadPlan plan = new OctoQuadReadPlan(new int[] {0, 1, 7}, new int[] {1, 4});
+        OctoQuadBase.EncoderDataBlock planned = new OctoQuadBase.EncoderDataBlock();
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            planned.positions[ch] = -1;
+            planned.velocities[ch] = -1;
+        }
+
+        simulator.resetCounters();
+        octoquad.readEncoderData(plan, planned);
+
+        assertEquals(plan.getReadCount(), simulator.getReadCount());
+        long bytes = 0;
+        for(int i = 0; i < plan.getReadCount(); i++)
+        {
+            bytes += plan.getReadLength(i);
+        }
+        assertEquals(bytes, simulator.getBytesRead());
+
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            assertEquals(plan.readsPosition(ch) ? all.positions[ch] : -1, planned.positions[ch]);
+            assertEquals(plan.readsVelocity(ch) ? all.velocities[ch] : -1, planned.velocities[ch]);
+        }
+        assertEquals(8000, planned.positions[7]);
+        assertFalse(all.velocities[4] == 0);
+    }
+
+    private static int[] channels(int mask)
+    {
+        int[] channels = new int[Integer.bitCount(mask)];
+        int n = 0;
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            if((mask & (1 << ch)) != 0)
+            {
+                channels[n++] = ch;
+            }
+        }
+        return channels;
+    }
+
+    /*
+     * The cheapest cost over every way of grouping the wanted spans into consecutive reads
+     */
+    private static long bruteForceCost(int positionMask, int velocityMask, OctoQuadBusCostModel model)
+    {
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        int n = 0;
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            if((positionMask & (1 << ch)) != 0)
+            {
+                starts[n] = OctoQuadReadPlan.positionOffset(ch);
+                ends[n++] = OctoQuadReadPlan.positionOffset(ch) + 4;
+            }
+        }
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            if((velocityMask & (1 << ch)) != 0)
+            {
+                starts[n] = OctoQuadReadPlan.velocityOffset(ch);
+                ends[n++] = OctoQuadReadPlan.velocityOffset(ch) + 2;
+            }
+        }
+
+        long best = Long.MAX_VALUE;
+
+        // Bit i of splits set means a new read starts at span i + 1
+        for(int splits = 0; splits < 1 << (n - 1); splits++)
+        {
+            long cost = 0;
+            int first = 0;
+            for(int i = 0; i < n; i++)
+            {
+                if(i == n - 1 || (splits & (1 << i)) != 0)
+                {
+                    cost += model.nanosFor(ends[i] - starts[first]);
+                    first = i + 1;
+                }
+            }
+            best = Math.min(best, cost);
+        }
+
+        return best;
+    }
+
+    private static void assertCovered(boolean[] covered, int offset, int length)
+    {
+        for(int b = offset; b < offset + length; b++)
+        {
+            assertTrue("byte " + b + " read", covered[b]);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OctoQuadRecorderTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final OctoQuadBase.TimestampedEncoderDataBlock sample = new OctoQuadBase.TimestampedEncoderDataBlock();
+
+    @Test
+    public void writesTheDocumentedLayout() throws IOException
+    {
+        File file = folder.newFile("match.oqr");
+
+        OctoQuadRecorder recorder = new OctoQuadRecorder(file, 100, 3);
+        for(int i = 0; i < 50; i++)
+        {
+            assertTrue(recorder.record(fill(i)));
+        }
+        assertTrue(recorder.record(5, fill(50)));
+        recorder.close();
+        assertEquals(51, recorder.getRecordedCount());
+        assertEquals(0, recorder.getDroppedCount());
+
+        ByteBuffer data = load(file);
+        assertEquals(OctoQuadRecorder.HEADER_SIZE + 100 * OctoQuadRecorder.RECORD_SIZE, data.limit());
+        assertEquals(OctoQuadRecorder.MAGIC, data.getLong(0));
+        assertEquals(OctoQuadRecorder.VERSION, data.getInt(OctoQuadRecorder.HEADER_VERSION));
+        assertEquals(OctoQuadRecorder.RECORD_SIZE, data.getInt(OctoQuadRecorder.HEADER_RECORD_SIZE));
+        assertEquals(100, data.getLong(OctoQuadRecorder.HEADER_CAPACITY));
+        assertEquals(51, data.getLong(OctoQuadRecorder.HEADER_COUNT));
+
+        for(int i = 0; i <= 50; i++)
+        {
+            assertRecord(data, i, i, i == 50 ? 5 : 3);
+        }
+    }
+
+    @Test
+    public void ringKeepsTheNewestRecords() throws IOException
+    {
+        File file = folder.newFile("ring.oqr");
+
+        OctoQuadRecorder recorder = new OctoQuadRecorder(file, 10, 0);
+        for(int i = 0; i < 25; i++)
+        {
+            recorder.record(fill(i));
+        }
+        recorder.close();
+
+        ByteBuffer data = load(file);
+        assertEquals(25, data.getLong(OctoQuadRecorder.HEADER_COUNT));
+
+        // Records 15 to 24 are left, record n in slot n % 10
+        for(int i = 15; i < 25; i++)
+        {
+            assertRecord(data, i % 10, i, 0);
+        }
+    }
+
+    /*
+     * Every sample handed to the recorder is either written or counted as dropped,
+     * and what is written is in order.
+     */
+    @Test
+    public void accountsForEverySampleFromAnotherThread() throws Exception
+    {
+        File file = folder.newFile("threaded.oqr");
+        final int samples = 20000;
+
+        final OctoQuadRecorder recorder = new OctoQuadRecorder(file, samples, 0, 16);
+        Thread producer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                OctoQuadBase.TimestampedEncoderDataBlock block = new OctoQuadBase.TimestampedEncoderDataBlock();
+                for(int i = 0; i < samples; i++)
+                {
+                    block.positions[0] = i;
+                    block.responseNanos = i;
+                    recorder.onSample(block);
+                }
+            }
+        });
+        producer.start();
+        producer.join();
+        recorder.close();
+
+        assertEquals(samples, recorder.getRecordedCount() + recorder.getDroppedCount());
+
+        ByteBuffer data = load(file);
+        assertEquals(recorder.getRecordedCount(), data.getLong(OctoQuadRecorder.HEADER_COUNT));
+
+        int last = -1;
+        for(int i = 0; i < recorder.getRecordedCount(); i++)
+        {
+            int record = OctoQuadRecorder.HEADER_SIZE + i * OctoQuadRecorder.RECORD_SIZE;
+            assertEquals(i, data.getLong(record + OctoQuadRecorder.RECORD_SEQUENCE));
+
+            int position = data.getInt(record + OctoQuadRecorder.RECORD_POSITIONS);
+            assertEquals(position, data.getLong(record + OctoQuadRecorder.RECORD_RESPONSE_NANOS));
+            assertTrue(position > last);
+            last = position;
+        }
+    }
+
+    @Test
+    public void dropsSamplesAfterClose() throws IOException
+    {
+        OctoQuadRecorder recorder = new OctoQuadRecorder(folder.newFile("closed.oqr"), 10, 0);
+        recorder.close();
+
+        assertFalse(recorder.record(fill(0)));
+        assertEquals(1, recorder.getDroppedCount());
+    }
+
+    private OctoQuadBase.TimestampedEncoderDataBlock fill(int i)
+    {
+        sample.requestNanos = i * 1000000L;
+        sample.responseNanos = sample.requestNanos + 500000;
+
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            sample.positions[ch] = i * 10 + ch;
+            sample.velocities[ch] = (short) (i + ch);
+        }
+
+        return sample;
+    }
+
+    private static void assertRecord(ByteBuffer data, int slot, int i, int deviceId)
+    {
+        int record = OctoQuadRecorder.HEADER_SIZE + slot * OctoQuadRecorder.RECORD_SIZE;
+
+        assertEquals(i, data.getLong(record + OctoQuadRecorder.RECORD_SEQUENCE));
+        assertEquals(i * 1000000L, data.getLong(record + OctoQuadRecorder.RECORD_REQUEST_NANOS));
+        assertEquals(i * 1000000L + 500000, data.getLong(record + OctoQuadRecorder.RECORD_RESPONSE_NANOS));
+        assertEquals(deviceId, data.getInt(record + OctoQuadRecorder.RECORD_DEVICE_ID));
+
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            assertEquals(i * 10 + ch, data.getInt(record + OctoQuadRecorder.RECORD_POSITIONS + 4 * ch));
+            assertEquals((short) (i + ch), data.getShort(record + OctoQuadRecorder.RECORD_VELOCITIES + 2 * ch));
+        }
+    }
+
+    private static ByteBuffer load(File file) throws IOException
+    {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try
+        {
+            byte[] bytes = new byte[(int) in.length()];
+            in.readFully(bytes);
+            return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+}
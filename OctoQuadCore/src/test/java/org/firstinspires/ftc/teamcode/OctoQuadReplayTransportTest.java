@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OctoQuadReplayTransportTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final OctoQuadBase.TimestampedEncoderDataBlock sample = new OctoQuadBase.TimestampedEncoderDataBlock();
+
+    @Test
+    public void replaysWhatWasRecorded() throws IOException
+    {
+        File file = folder.newFile("match.oqr");
+
+        OctoQuadRecorder recorder = new OctoQuadRecorder(file, 100, 3);
+        for(int i = 0; i < 50; i++)
+        {
+            assertTrue(recorder.record(fill(i)));
+            assertTrue(recorder.record(5, fill(-i)));
+        }
+        recorder.close();
+
+        // Only device 3's samples are replayed
+        OctoQuadReplayTransport replay = new OctoQuadReplayTransport(file, 3);
+        replay.setStepMode(true);
+        assertEquals(50, replay.getSampleCount());
+
+        OctoQuadDriver octoquad = new OctoQuadDriver(replay);
+        OctoQuadBase.EncoderDataBlock block = new OctoQuadBase.EncoderDataBlock();
+
+        for(int i = 0; i < 50; i++)
+        {
+            assertFalse(replay.isFinished());
+            octoquad.readAllEncoderData(block);
+
+            for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+            {
+                assertEquals(i * 10 + ch, block.positions[ch]);
+                assertEquals((short) (i + ch), block.velocities[ch]);
+            }
+        }
+
+        assertTrue(replay.isFinished());
+    }
+
+    @Test
+    public void replaysTheRecordsLeftInTheRing() throws IOException
+    {
+        File file = folder.newFile("ring.oqr");
+
+        OctoQuadRecorder recorder = new OctoQuadRecorder(file, 10, 0);
+        for(int i = 0; i < 25; i++)
+        {
+            recorder.record(fill(i));
+        }
+        recorder.close();
+
+        OctoQuadReplayTransport replay = new OctoQuadReplayTransport(file, 0);
+        replay.setStepMode(true);
+        assertEquals(10, replay.getSampleCount());
+
+        OctoQuadDriver octoquad = new OctoQuadDriver(replay);
+        for(int i = 15; i < 25; i++)
+        {
+            assertEquals(i * 10, octoquad.readSinglePosition(0));
+        }
+        assertTrue(replay.isFinished());
+
+        // The last sample is held once the recording runs out
+        assertEquals(240, octoquad.readSinglePosition(0));
+
+        replay.restart();
+        assertEquals(-1, replay.getCurrentSample());
+        assertEquals(150, octoquad.readSinglePosition(0));
+    }
+
+    @Test
+    public void timedReplayFollowsTheRecordedClock() throws IOException, InterruptedException
+    {
+        File file = folder.newFile("timed.oqr");
+
+        // 100 samples 1ms apart
+        OctoQuadRecorder recorder = new OctoQuadRecorder(file, 100, 0);
+        for(int i = 0; i < 100; i++)
+        {
+            recorder.record(fill(i));
+        }
+        recorder.close();
+
+        OctoQuadReplayTransport replay = new OctoQuadReplayTransport(file, 0);
+        OctoQuadDriver octoquad = new OctoQuadDriver(replay);
+
+        assertEquals(0, octoquad.readSinglePosition(0));
+        Thread.sleep(20);
+        octoquad.readSinglePosition(0);
+        assertTrue("sample " + replay.getCurrentSample(), replay.getCurrentSample() >= 15);
+        assertFalse(replay.isFinished());
+
+        replay.setSpeed(100);
+        Thread.sleep(20);
+        octoquad.readSinglePosition(0);
+        assertTrue(replay.isFinished());
+    }
+
+    private OctoQuadBase.TimestampedEncoderDataBlock fill(int i)
+    {
+        sample.requestNanos = i * 1000000L;
+        sample.responseNanos = sample.requestNanos + 500000;
+
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            sample.positions[ch] = i * 10 + ch;
+            sample.velocities[ch] = (short) (i + ch);
+        }
+
+        return sample;
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class OctoQuadSamplerTest
+{
+    private final FrameCountingTransport transport = new FrameCountingTransport();
+    private final OctoQuadSampler sampler = new OctoQuadSampler(new OctoQuadDriver(transport));
+
+    @After
+    public void tearDown()
+    {
+        sampler.stop();
+    }
+
+    @Test
+    public void consumerAlwaysSeesWholeFrames() throws InterruptedException
+    {
+        sampler.start();
+        waitForSamples(10);
+
+        OctoQuadBase.EncoderDataBlock block = new OctoQuadBase.EncoderDataBlock();
+        int last = 0;
+
+        for(int i = 0; i < 100000; i++)
+        {
+            OctoQuadBase.TimestampedEncoderDataBlock latest = sampler.getLatest();
+            int frame = latest.positions[0];
+
+            for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+            {
+                assertEquals(frame, latest.positions[ch]);
+                assertEquals((short) (frame & 0x7FFF), latest.velocities[ch]);
+            }
+
+            assertTrue("samples went backwards", frame >= last);
+            last = frame;
+
+            sampler.readLatest(block);
+            for(int ch = 1; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+            {
+                assertEquals(block.positions[0], block.positions[ch]);
+            }
+        }
+
+        assertEquals(0, sampler.getErrorCount());
+    }
+
+    @Test
+    public void freshnessIsConsumedByReading() throws InterruptedException
+    {
+        sampler.start();
+        waitForSamples(1);
+        sampler.stop();
+
+        assertTrue(sampler.hasFreshSample());
+        assertTrue(sampler.readLatest(new OctoQuadBase.EncoderDataBlock()));
+        assertFalse(sampler.hasFreshSample());
+        assertFalse(sampler.readLatest(new OctoQuadBase.EncoderDataBlock()));
+    }
+
+    @Test
+    public void listenersSeeEverySampleBeforeItIsPublished() throws InterruptedException
+    {
+        final AtomicLong calls = new AtomicLong(0);
+
+        sampler.addListener(new OctoQuadSampler.Listener()
+        {
+            @Override
+            public void onSample(OctoQuadBase.TimestampedEncoderDataBlock sample)
+            {
+                calls.incrementAndGet();
+            }
+        });
+
+        sampler.start();
+        waitForSamples(100);
+        sampler.stop();
+
+        assertEquals(sampler.getSampleCount(), calls.get());
+    }
+
+    @Test
+    public void listenerErrorsAreCountedAndDontStopSampling() throws InterruptedException
+    {
+        sampler.addListener(new OctoQuadSampler.Listener()
+        {
+            @Override
+            public void onSample(OctoQuadBase.TimestampedEncoderDataBlock sample)
+            {
+                throw new IllegalStateException("listener");
+            }
+        });
+
+        sampler.start();
+        waitForSamples(10);
+        sampler.stop();
+
+        assertEquals(sampler.getSampleCount(), sampler.getErrorCount());
+        assertEquals("listener", sampler.getLastError().getMessage());
+    }
+
+    @Test
+    public void backsOffWhileReadsFail() throws InterruptedException
+    {
+        transport.failure = new RuntimeException("nack");
+
+        sampler.start();
+        Thread.sleep(300);
+
+        // 1 + 2 + 4 + ... ms then 100ms apart; without a backoff this would be thousands
+        long errors = sampler.getErrorCount();
+        assertTrue("errors: " + errors, errors > 0 && errors < 20);
+        assertEquals(0, sampler.getSampleCount());
+
+        transport.failure = null;
+        waitForSamples(1);
+    }
+
+    @Test
+    public void samplePeriodLimitsTheRate() throws InterruptedException
+    {
+        sampler.setSamplePeriod(10, TimeUnit.MILLISECONDS);
+        sampler.start();
+        Thread.sleep(200);
+        sampler.stop();
+
+        long samples = sampler.getSampleCount();
+        assertTrue("samples: " + samples, samples >= 5 && samples <= 25);
+    }
+
+    private void waitForSamples(long count) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+
+        while(sampler.getSampleCount() < count)
+        {
+            assertTrue("timed out waiting for samples", System.nanoTime() - deadline < 0);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+
+package org.firstinspires.ftc.teamcode;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class OctoQuadVelocityEstimatorTest
+{
+    private static final long PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(2);
+
+    private final OctoQuadBase.TimestampedEncoderDataBlock sample = new OctoQuadBase.TimestampedEncoderDataBlock();
+
+    @Test
+    public void convergesOnConstantVelocity()
+    {
+        OctoQuadVelocityEstimator estimator = new OctoQuadVelocityEstimator();
+        OctoQuadSimulator.Signal signal = OctoQuadSimulator.constantVelocity(12345);
+
+        long t = 0;
+        for(int i = 0; i < 500; i++, t += PERIOD_NANOS)
+        {
+            estimator.update(fill(signal, t));
+        }
+
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            assertEquals(12345, estimator.getVelocity(ch), 12345 * 0.005);
+            assertEquals(0, estimator.getAcceleration(ch), 1000);
+            assertEquals(signal.valueAt(t - PERIOD_NANOS), estimator.getPosition(ch), 2);
+        }
+    }
+
+    @Test
+    public void followsASinusoid()
+    {
+        final double amplitude = 20000;
+        final double periodSeconds = 1;
+        final double peakVelocity = amplitude * 2 * Math.PI / periodSeconds;
+
+        OctoQuadVelocityEstimator estimator = new OctoQuadVelocityEstimator();
+        OctoQuadSimulator.Signal signal = OctoQuadSimulator.sinusoid(amplitude, periodSeconds);
+
+        // Settle for a period, then check across the next one
+        long t = 0;
+        double worst = 0;
+        for(int i = 0; i < 1000; i++, t += PERIOD_NANOS)
+        {
+            estimator.update(fill(signal, t));
+
+            if(i >= 500)
+            {
+                double expected = peakVelocity * Math.cos(2 * Math.PI * t * 1e-9 / periodSeconds);
+                worst = Math.max(worst, Math.abs(estimator.getVelocity(0) - expected));
+            }
+        }
+
+        assertEquals(0, worst, peakVelocity * 0.05);
+    }
+
+    @Test
+    public void ignoresRepeatedSamples()
+    {
+        OctoQuadVelocityEstimator estimator = new OctoQuadVelocityEstimator();
+        OctoQuadSimulator.Signal signal = OctoQuadSimulator.constantVelocity(1000);
+
+        long t = 0;
+        for(int i = 0; i < 500; i++, t += PERIOD_NANOS)
+        {
+            estimator.update(fill(signal, t));
+        }
+
+        double velocity = estimator.getVelocity(0);
+        estimator.update(fill(OctoQuadSimulator.stationary(0), t - PERIOD_NANOS));
+
+        assertEquals(velocity, estimator.getVelocity(0), 0);
+        assertEquals(t - PERIOD_NANOS, estimator.getLastSampleNanos());
+    }
+
+    @Test
+    public void carriesOnPastTheInt32Range()
+    {
+        OctoQuadVelocityEstimator estimator = new OctoQuadVelocityEstimator();
+        OctoQuadSimulator.Signal signal = OctoQuadSimulator.constantVelocity(1e9);
+
+        // Starts 0.5s before the position passes Integer.MAX_VALUE
+        long t = TimeUnit.MILLISECONDS.toNanos(1647);
+        for(int i = 0; i < 1000; i++, t += PERIOD_NANOS)
+        {
+            estimator.update(fill(signal, t));
+        }
+
+        assertEquals(1e9, estimator.getVelocity(0), 1e9 * 0.005);
+        assertEquals(signal.valueAt(t - PERIOD_NANOS), estimator.getPosition(0), 1e9 * 1e-6);
+    }
+
+    private OctoQuadBase.TimestampedEncoderDataBlock fill(OctoQuadSimulator.Signal signal, long nanos)
+    {
+        sample.requestNanos = nanos;
+        sample.responseNanos = nanos;
+
+        long position = (long) Math.floor(signal.valueAt(nanos));
+        for(int ch = 0; ch < OctoQuadBase.NUM_ENCODERS; ch++)
+        {
+            sample.positions[ch] = (int) position;
+            sample.unwrappedPositions[ch] = position;
+            sample.velocities[ch] = 0;
+        }
+
+        return sample;
+    }
+}
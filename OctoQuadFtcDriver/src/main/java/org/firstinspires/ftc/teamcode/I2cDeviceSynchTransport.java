@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import com.qualcomm.robotcore.hardware.I2cDeviceSynch;
+import com.qualcomm.robotcore.hardware.TimestampedData;
+
+/**
+ * An {@link OctoQuadTransport} over an FTC SDK {@link I2cDeviceSynch}.
+ *
+ * A read window hint is turned into a REPEAT {@link I2cDeviceSynch.ReadWindow},
+ * so the hub keeps that range refreshed in the background; the device client's
+ * previous window is restored when the hint is withdrawn.
+ */
+public class I2cDeviceSynchTransport implements OctoQuadTransport
+{
+    private final I2cDeviceSynch deviceClient;
+
+    private I2cDeviceSynch.ReadWindow window = null;
+    private I2cDeviceSynch.ReadWindow previousWindow = null;
+
+    public I2cDeviceSynchTransport(I2cDeviceSynch deviceClient)
+    {
+        this.deviceClient = deviceClient;
+    }
+
+    @Override
+    public long read(int addr, byte[] dst, int off, int len)
+    {
+        TimestampedData data;
+
+        if(window != null && window.contains(addr, len))
+        {
+            // Other register reads may have replaced the window in the meantime, so make sure it's (back) in place
+            data = deviceClient.readTimeStamped(addr, len, window, window);
+        }
+        else
+        {
+            data = deviceClient.readTimeStamped(addr, len);
+        }
+
+        System.arraycopy(data.data, 0, dst, off, len);
+
+        return data.nanoTime != 0 ? data.nanoTime : System.nanoTime();
+    }
+
+    @Override
+    public void write(int addr, byte[] src, int off, int len)
+    {
+        byte[] data = src;
+
+        if(off != 0 || len != src.length)
+        {
+            data = new byte[len];
+            System.arraycopy(src, off, data, 0, len);
+        }
+
+        deviceClient.write(addr, data);
+    }
+
+    @Override
+    public void setReadWindow(int addr, int len)
+    {
+        if(len == 0)
+        {
+            if(window != null && previousWindow != null)
+            {
+                deviceClient.setReadWindow(previousWindow);
+            }
+
+            window = null;
+            previousWindow = null;
+            return;
+        }
+
+        if(window == null)
+        {
+            previousWindow = deviceClient.getReadWindow();
+        }
+
+        try
+        {
+            window = new I2cDeviceSynch.ReadWindow(addr, len, I2cDeviceSynch.ReadMode.REPEAT);
+            deviceClient.setReadWindow(window);
+        }
+        catch (IllegalArgumentException e)
+        {
+            // This client can't hold a read window that large;
+            // reads of the range still work, just without the background refresh
+            window = null;
+        }
+    }
+}
@@ -24,42 +24,19 @@ package org.firstinspires.ftc.teamcode;
 import com.qualcomm.robotcore.hardware.I2cAddr;
 import com.qualcomm.robotcore.hardware.I2cDeviceSynch;
 import com.qualcomm.robotcore.hardware.I2cDeviceSynchDevice;
-import com.qualcomm.robotcore.util.Range;
 import com.qualcomm.robotcore.util.RobotLog;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
 
-public class OctoQuad extends I2cDeviceSynchDevice<I2cDeviceSynch>
+/**
+ * The OctoQuad as an FTC SDK I2C device. All of the work is done by an
+ * {@link OctoQuadDriver} talking over the device client; see {@link OctoQuadBase}
+ * for the API.
+ */
+public class OctoQuad extends I2cDeviceSynchDevice<I2cDeviceSynch> implements OctoQuadBase
 {
-    public static final int I2C_ADDRESS = 0x30;
-    public static final byte OCTOQUAD_CHIP_ID = 0x51;
-    public static final int SUPPORTED_FW_VERSION_MAJ = 2;
-    public static final ByteOrder OCTOQUAD_ENDIAN = ByteOrder.LITTLE_ENDIAN;
-    public static final int ENCODER_FIRST = 0;
-    public static final int ENCODER_LAST = 7;
-    public static final int NUM_ENCODERS = 8;
-    public static final int VELOCITY_MEASUREMENT_INTERVAL_MIN = 1;
-    public static final int VELOCITY_MEASUREMENT_INTERVAL_MAX = 255;
-    public static final int PULSE_WIDTH_LENGTH_MIN = 1; // us
-    public static final int PULSE_WIDTH_LENGTH_MAX = 0xFFFF;
-
-    private static final byte CMD_SET_PARAM = 1;
-    private static final byte CMD_READ_PARAM = 2;
-    private static final byte CMD_WRITE_PARAMS_TO_FLASH = 3;
-
-    private static final byte CMD_RESET_EVERYTHING = 20;
-    private static final byte CMD_RESET_ENCODERS = 21;
-
-    private static final byte PARAM_ENCODER_DIRECTIONS = 0;
-    private static final byte PARAM_I2C_RECOVERY_MODE = 1;
-    private static final byte PARAM_CHANNEL_BANK_CONFIG = 2;
-    private static final byte PARAM_CHANNEL_VEL_INTVL = 3;
-    private static final byte PARAM_CHANNEL_PULSE_WIDTH_MIN_MAX = 4;
-
-    private byte directionRegisterData = 0;
-
-    private boolean isInitialized = false;
+    private final OctoQuadBusMetrics busMetrics;
+    private final OctoQuadDriver driver;
 
     public class OctoQuadException extends RuntimeException
     {
@@ -76,11 +53,40 @@ public class OctoQuad extends I2cDeviceSynchDevice<I2cDeviceSynch>
         this.deviceClient.setI2cAddress(I2cAddr.create7bit(I2C_ADDRESS));
         super.registerArmingStateCallback(false);
         this.deviceClient.engage();
+
+        busMetrics = new OctoQuadBusMetrics(new I2cDeviceSynchTransport(deviceClient));
+        driver = createDriver();
     }
 
     public OctoQuad(I2cDeviceSynch deviceClient, boolean deviceClientIsOwned)
     {
         super(deviceClient, deviceClientIsOwned);
+
+        busMetrics = new OctoQuadBusMetrics(new I2cDeviceSynchTransport(deviceClient));
+        driver = createDriver();
+    }
+
+    private OctoQuadDriver createDriver()
+    {
+        return new OctoQuadDriver(busMetrics)
+        {
+            @Override
+            protected void warn(String format, Object... args)
+            {
+                RobotLog.addGlobalWarningMessage(format, args);
+            }
+        };
+    }
+
+    /**
+     * Get the instrumentation every I2C transaction goes through. It is
+     * disabled until {@link OctoQuadBusMetrics#setEnabled(boolean)} is called.
+     * The SDK doesn't throw on a failed I2C transaction, so its error counts stay at 0.
+     * @return the bus metrics for this OctoQuad
+     */
+    public OctoQuadBusMetrics getBusMetrics()
+    {
+        return busMetrics;
     }
 
     @Override
@@ -101,889 +107,289 @@ public class OctoQuad extends I2cDeviceSynchDevice<I2cDeviceSynch>
         return "OctoQuad";
     }
 
-    enum RegisterType
-    {
-        uint8_t(1),
-        int32_t(4),
-        int16_t(2);
-
-        public final int length;
-
-        RegisterType(int length)
-        {
-            this.length = length;
-        }
-    }
-
-    enum Register
-    {
-        CHIP_ID                           (0x00, RegisterType.uint8_t),
-        FIRMWARE_VERSION_MAJOR            (0x01, RegisterType.uint8_t),
-        FIRMWARE_VERSION_MINOR            (0x02, RegisterType.uint8_t),
-        FIRMWARE_VERSION_ENGINEERING      (0x03, RegisterType.uint8_t),
-        COMMAND                           (0x04, RegisterType.uint8_t),
-        COMMAND_DAT_0                     (0x05, RegisterType.uint8_t),
-        COMMAND_DAT_1                     (0x06, RegisterType.uint8_t),
-        COMMAND_DAT_2                     (0x07, RegisterType.uint8_t),
-        COMMAND_DAT_3                     (0x08, RegisterType.uint8_t),
-        COMMAND_DAT_4                     (0x09, RegisterType.uint8_t),
-        COMMAND_DAT_5                     (0x0A, RegisterType.uint8_t),
-        COMMAND_DAT_6                     (0x0B, RegisterType.uint8_t),
-
-        ENCODER_0_POSITION                (0x0C, RegisterType.int32_t),
-        ENCODER_1_POSITION                (0x10, RegisterType.int32_t),
-        ENCODER_2_POSITION                (0x14, RegisterType.int32_t),
-        ENCODER_3_POSITION                (0x18, RegisterType.int32_t),
-        ENCODER_4_POSITION                (0x1C, RegisterType.int32_t),
-        ENCODER_5_POSITION                (0x20, RegisterType.int32_t),
-        ENCODER_6_POSITION                (0x24, RegisterType.int32_t),
-        ENCODER_7_POSITION                (0x28, RegisterType.int32_t),
-
-        ENCODER_0_VELOCITY                (0x2C, RegisterType.int16_t),
-        ENCODER_1_VELOCITY                (0x2E, RegisterType.int16_t),
-        ENCODER_2_VELOCITY                (0x30, RegisterType.int16_t),
-        ENCODER_3_VELOCITY                (0x32, RegisterType.int16_t),
-        ENCODER_4_VELOCITY                (0x34, RegisterType.int16_t),
-        ENCODER_5_VELOCITY                (0x36, RegisterType.int16_t),
-        ENCODER_6_VELOCITY                (0x38, RegisterType.int16_t),
-        ENCODER_7_VELOCITY                (0x3A, RegisterType.int16_t);
-
-        public final byte addr;
-        public final int length;
-
-        Register(int addr, RegisterType type)
-        {
-            this.addr = (byte) addr;
-            this.length = type.length;
-        }
-
-        public static final Register[] all = Register.values();
-    }
-
     // --------------------------------------------------------------------------------------------------------------------------------
     // PUBLIC API
     //---------------------------------------------------------------------------------------------------------------------------------
 
-    /**
-     * Reads the CHIP_ID register of the OctoQuad
-     * @return the value in the CHIP_ID register of the OctoQuad
-     */
+    @Override
     public byte getChipId()
     {
-        return readRegister(Register.CHIP_ID)[0];
-    }
-
-    /**
-     * Class to represent an OctoQuad firmware version
-     */
-    public static class FirmwareVersion
-    {
-        public final int maj;
-        public final int min;
-        public final int eng;
-
-        public FirmwareVersion(int maj, int min, int eng)
-        {
-            this.maj = maj;
-            this.min = min;
-            this.eng = eng;
-        }
-
-        @Override
-        public String toString()
-        {
-            return String.format("%d.%d.%d", maj, min, eng);
-        }
+        return driver.getChipId();
     }
 
-    /**
-     * Get the firmware version running on the OctoQuad
-     * @return the firmware version running on the OctoQuad
-     */
+    @Override
     public FirmwareVersion getFirmwareVersion()
     {
-        byte[] fw = readContiguousRegisters(Register.FIRMWARE_VERSION_MAJOR, Register.FIRMWARE_VERSION_ENGINEERING);
-
-        int maj = fw[0] & 0xFF;
-        int min = fw[1] & 0xFF;
-        int eng = fw[2] & 0xFF;
-
-        return new FirmwareVersion(maj, min, eng);
+        return driver.getFirmwareVersion();
     }
 
-    /**
-     * Read a single position from the OctoQuad
-     * Depending on the channel bank configuration, this may
-     * either be quadrature step count, or pulse width.
-     * @param idx the index of the encoder to read
-     * @return the position for the specified encoder
-     */
+    @Override
     public int readSinglePosition(int idx)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
-
-        Register register = Register.all[Register.ENCODER_0_POSITION.ordinal()+idx];
-        return intFromBytes(readRegister(register));
+        return driver.readSinglePosition(idx);
     }
 
-    /**
-     * Reads all positions from the OctoQuad, writing the data into
-     * an existing int[] object. The previous values are destroyed.
-     * Depending on the channel bank configuration, this may
-     * either be quadrature step count, or pulse width.
-     * @param out the int[] object to fill with new data
-     */
+    @Override
     public void readAllPositions(int[] out)
     {
-        verifyInitialization();
-
-        if(out.length != NUM_ENCODERS)
-        {
-            throw new IllegalArgumentException("out.length != 8");
-        }
-
-        byte[] bytes = readContiguousRegisters(Register.ENCODER_0_POSITION, Register.ENCODER_7_POSITION);
-
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        buffer.order(OCTOQUAD_ENDIAN);
-
-        for(int i = 0; i < NUM_ENCODERS; i++)
-        {
-            out[i] = buffer.getInt();
-        }
+        driver.readAllPositions(out);
     }
 
-    /**
-     * Reads all positions from the OctoQuad
-     * Depending on the channel bank configuration, this may
-     * either be quadrature step count, or pulse width.
-     * @return an int[] object with the new data
-     */
+    @Override
     public int[] readAllPositions()
     {
-        verifyInitialization();
-
-        int[] block = new int[NUM_ENCODERS];
-        readAllPositions(block);
-        return block;
+        return driver.readAllPositions();
     }
 
-    /**
-     * Read a selected range of encoders
-     * Depending on the channel bank configuration, this may
-     * either be quadrature step count, or pulse width.
-     * @param idxFirst the first encoder (inclusive)
-     * @param idxLast the last encoder (inclusive)
-     * @return an array containing the requested encoder positions
-     */
+    @Override
     public int[] readPositionRange(int idxFirst, int idxLast)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idxFirst, ENCODER_FIRST, ENCODER_LAST);
-        Range.throwIfRangeIsInvalid(idxLast, ENCODER_FIRST, ENCODER_LAST);
-
-        Register registerFirst = Register.all[Register.ENCODER_0_POSITION.ordinal()+idxFirst];
-        Register registerLast = Register.all[Register.ENCODER_0_POSITION.ordinal()+idxLast];
-
-        byte[] data = readContiguousRegisters(registerFirst, registerLast);
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return driver.readPositionRange(idxFirst, idxLast);
+    }
 
-        int numEncodersRead = idxLast-idxFirst+1;
-        int[] encoderCounts = new int[numEncodersRead];
+    @Override
+    public void readPositionRange(int idxFirst, int idxLast, int[] out)
+    {
+        driver.readPositionRange(idxFirst, idxLast, out);
+    }
 
-        for(int i = 0; i < numEncodersRead; i++)
-        {
-            encoderCounts[i] = buffer.getInt();
-        }
+    @Override
+    public long readSingleUnwrappedPosition(int idx)
+    {
+        return driver.readSingleUnwrappedPosition(idx);
+    }
 
-        return encoderCounts;
+    @Override
+    public void readAllUnwrappedPositions(long[] out)
+    {
+        driver.readAllUnwrappedPositions(out);
     }
 
-    /**
-     * Reset a single encoder in the OctoQuad firmware
-     * @param idx the index of the encoder to reset
-     */
+    @Override
     public void resetSinglePosition(int idx)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
-
-        byte dat = (byte) (1 << idx);
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_0, new byte[]{CMD_RESET_ENCODERS, dat});
+        driver.resetSinglePosition(idx);
     }
 
-    /**
-     * Reset all encoder counts in the OctoQuad firmware
-     */
+    @Override
     public void resetAllPositions()
     {
-        verifyInitialization();
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_0, new byte[] {CMD_RESET_ENCODERS, (byte)0xFF});
+        driver.resetAllPositions();
     }
 
-    /**
-     * Reset multiple encoders in the OctoQuad firmware in one command
-     * @param resets the encoders to be reset
-     */
+    @Override
     public void resetMultiplePositions(boolean[] resets)
     {
-        verifyInitialization();
-
-        if(resets.length != NUM_ENCODERS)
-        {
-            throw new IllegalArgumentException("resets.length != 8");
-        }
-
-        byte dat = 0;
-
-        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
-        {
-            dat |= resets[i] ? (byte)(1 << i) : 0;
-        }
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_0, new byte[] {CMD_RESET_ENCODERS, dat});
+        driver.resetMultiplePositions(resets);
     }
 
-    /**
-     * Reset multiple encoders in the OctoQuad firmware in one command
-     * @param indices the indices of the encoders to reset
-     */
+    @Override
     public void resetMultiplePositions(int... indices)
     {
-        verifyInitialization();
-
-        for(int idx : indices)
-        {
-            Range.throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
-        }
-
-        byte dat = 0;
-
-        for(int idx : indices)
-        {
-            dat |= 1 << idx;
-        }
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_0, new byte[] {CMD_RESET_ENCODERS, dat});
+        driver.resetMultiplePositions(indices);
     }
 
-    /**
-     * Set the direction for a single encoder
-     * This parameter will NOT be retained across power cycles, unless
-     * you call {@link #saveParametersToFlash()} ()}
-     * @param idx the index of the encoder
-     * @param reverse direction
-     */
+    @Override
     public void setSingleEncoderDirection(int idx, boolean reverse)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
-
-        if(reverse)
-        {
-            directionRegisterData |= (byte) (1 << idx);
-        }
-        else
-        {
-            directionRegisterData &= (byte) ~(1 << idx);
-        }
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_1, new byte[]{CMD_SET_PARAM, PARAM_ENCODER_DIRECTIONS, directionRegisterData});
+        driver.setSingleEncoderDirection(idx, reverse);
     }
 
-    /**
-     * Get the direction for a single encoder
-     * @param idx the index of the encoder
-     * @return whether the encoder is reversed
-     */
+    @Override
     public boolean getSingleEncoderDirection(int idx)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_0, new byte[]{CMD_READ_PARAM, PARAM_ENCODER_DIRECTIONS});
-        byte directions = readRegister(Register.COMMAND_DAT_0)[0];
-
-        return (directions & (1 << idx)) != 0;
+        return driver.getSingleEncoderDirection(idx);
     }
 
-    /**
-     * Set the direction for all encoders
-     * This parameter will NOT be retained across power cycles, unless
-     * you call {@link #saveParametersToFlash()} ()}
-     * @param reverse 8-length direction array
-     */
+    @Override
     public void setAllEncoderDirections(boolean[] reverse)
     {
-        verifyInitialization();
-
-        if(reverse.length != NUM_ENCODERS)
-        {
-            throw new IllegalArgumentException("reverse.length != 8");
-        }
-
-        directionRegisterData = 0;
-
-        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
-        {
-            if(reverse[i])
-            {
-                directionRegisterData |= (byte) (1 << i);
-            }
-        }
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_1, new byte[]{CMD_SET_PARAM, PARAM_ENCODER_DIRECTIONS, directionRegisterData});
+        driver.setAllEncoderDirections(reverse);
     }
 
-    /**
-     * Read a single velocity from the OctoQuad
-     * NOTE: if using an absolute pulse width encoder, in order to get sane
-     * velocity data, you must set the channel min/max pulse width parameter.
-     * @param idx the index of the encoder to read
-     * @return the velocity for the specified encoder
-     */
+    @Override
     public short readSingleVelocity(int idx)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
-
-        Register register = Register.all[Register.ENCODER_0_VELOCITY.ordinal()+idx];
-        return shortFromBytes(readRegister(register));
+        return driver.readSingleVelocity(idx);
     }
 
-    /**
-     * Reads all velocities from the OctoQuad, writing the data into
-     * an existing short[] object. The previous values are destroyed.
-     * NOTE: if using an absolute pulse width encoder, in order to get sane
-     * velocity data, you must set the channel min/max pulse width parameter.
-     * @param out the short[] object to fill with new data
-     */
+    @Override
     public void readAllVelocities(short[] out)
     {
-        verifyInitialization();
-
-        if(out.length != NUM_ENCODERS)
-        {
-            throw new IllegalArgumentException("out.length != 8");
-        }
-
-        byte[] bytes = readContiguousRegisters(Register.ENCODER_0_VELOCITY, Register.ENCODER_7_VELOCITY);
-
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        buffer.order(OCTOQUAD_ENDIAN);
-
-        for(int i = 0; i < NUM_ENCODERS; i++)
-        {
-            out[i] = buffer.getShort();
-        }
+        driver.readAllVelocities(out);
     }
 
-    /**
-     * Reads all velocities from the OctoQuad
-     * NOTE: if using an absolute pulse width encoder, in order to get sane
-     * velocity data, you must set the channel min/max pulse width parameter.
-     * @return a short[] object with the new data
-     */
+    @Override
     public short[] readAllVelocities()
     {
-        verifyInitialization();
-
-        short[] block = new short[NUM_ENCODERS];
-        readAllVelocities(block);
-        return block;
+        return driver.readAllVelocities();
     }
 
-    /**
-     * Read a selected range of encoder velocities
-     * NOTE: if using an absolute pulse width encoder, in order to get sane
-     * velocity data, you must set the channel min/max pulse width parameter.
-     * @param idxFirst the first encoder (inclusive)
-     * @param idxLast the last encoder (inclusive)
-     * @return an array containing the requested velocities
-     */
+    @Override
     public short[] readVelocityRange(int idxFirst, int idxLast)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idxFirst, ENCODER_FIRST, ENCODER_LAST);
-        Range.throwIfRangeIsInvalid(idxLast, ENCODER_FIRST, ENCODER_LAST);
-
-        Register registerFirst = Register.all[Register.ENCODER_0_VELOCITY.ordinal()+idxFirst];
-        Register registerLast = Register.all[Register.ENCODER_0_VELOCITY.ordinal()+idxLast];
-
-        byte[] data = readContiguousRegisters(registerFirst, registerLast);
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-        int numVelocitiesRead = idxLast-idxFirst+1;
-        short[] velocities = new short[numVelocitiesRead];
-
-        for(int i = 0; i < numVelocitiesRead; i++)
-        {
-            velocities[i] = buffer.getShort();
-        }
-
-        return velocities;
+        return driver.readVelocityRange(idxFirst, idxLast);
     }
 
-    public static class EncoderDataBlock
+    @Override
+    public void readVelocityRange(int idxFirst, int idxLast, short[] out)
     {
-        public int[] positions = new int[NUM_ENCODERS];
-        public short[] velocities = new short[NUM_ENCODERS];
+        driver.readVelocityRange(idxFirst, idxLast, out);
     }
 
-    /**
-     * Reads all encoder data from the OctoQuad, writing the data into
-     * an existing {@link EncoderDataBlock} object. The previous values are destroyed.
-     * @param out the {@link EncoderDataBlock} object to fill with new data
-     */
+    @Override
     public void readAllEncoderData(EncoderDataBlock out)
     {
-        verifyInitialization();
-
-        if(out.positions.length != NUM_ENCODERS)
-        {
-            throw new IllegalArgumentException("out.counts.length != 8");
-        }
-
-        if(out.velocities.length != NUM_ENCODERS)
-        {
-            throw new IllegalArgumentException("out.velocities.length != 8");
-        }
-
-        byte[] bytes = readContiguousRegisters(Register.ENCODER_0_POSITION, Register.ENCODER_7_VELOCITY);
-
-        ByteBuffer buffer = ByteBuffer.wrap(bytes);
-        buffer.order(OCTOQUAD_ENDIAN);
+        driver.readAllEncoderData(out);
+    }
 
-        for(int i = 0; i < NUM_ENCODERS; i++)
-        {
-            out.positions[i] = buffer.getInt();
-        }
+    @Override
+    public void readAllEncoderDataTimestamped(TimestampedEncoderDataBlock out)
+    {
+        driver.readAllEncoderDataTimestamped(out);
+    }
 
-        for(int i = 0; i < NUM_ENCODERS; i++)
-        {
-            out.velocities[i] = buffer.getShort();
-        }
+    @Override
+    public void readEncoderData(OctoQuadReadPlan plan, EncoderDataBlock out)
+    {
+        driver.readEncoderData(plan, out);
     }
 
-    /**
-     * Reads all encoder data from the OctoQuad
-     * @return a {@link EncoderDataBlock} object with the new data
-     */
+    @Override
     public EncoderDataBlock readAllEncoderData()
     {
-        verifyInitialization();
-
-        EncoderDataBlock block = new EncoderDataBlock();
-        readAllEncoderData(block);
-
-        return block;
+        return driver.readAllEncoderData();
     }
 
-    /**
-     * Set the velocity sample interval for a single encoder
-     * This parameter will NOT be retained across power cycles, unless
-     * you call {@link #saveParametersToFlash()} ()}
-     * @param idx the index of the encoder in question
-     * @param intvlms the sample interval in milliseconds
-     */
+    @Override
     public void setSingleVelocitySampleInterval(int idx, int intvlms)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
-        Range.throwIfRangeIsInvalid(intvlms, VELOCITY_MEASUREMENT_INTERVAL_MIN, VELOCITY_MEASUREMENT_INTERVAL_MAX);
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_2, new byte[]{CMD_SET_PARAM, PARAM_CHANNEL_VEL_INTVL, (byte)idx, (byte)intvlms});
+        driver.setSingleVelocitySampleInterval(idx, intvlms);
     }
 
-    /**
-     * Set the velocity sample interval for all encoders
-     * This parameter will NOT be retained across power cycles, unless
-     * you call {@link #saveParametersToFlash()} ()}
-     * @param intvlms the sample interval in milliseconds
-     */
+    @Override
     public void setAllVelocitySampleIntervals(int intvlms)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(intvlms, VELOCITY_MEASUREMENT_INTERVAL_MIN, VELOCITY_MEASUREMENT_INTERVAL_MAX);
-
-        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
-        {
-            writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_2, new byte[]{CMD_SET_PARAM, PARAM_CHANNEL_VEL_INTVL, (byte)i, (byte)intvlms});
-        }
+        driver.setAllVelocitySampleIntervals(intvlms);
     }
 
-    /**
-     * Set the velocity sample intervals for all encoders
-     * This parameter will NOT be retained across power cycles, unless
-     * you call {@link #saveParametersToFlash()} ()}
-     * @param intvlms the sample intervals in milliseconds
-     */
+    @Override
     public void setAllVelocitySampleIntervals(int[] intvlms)
     {
-        verifyInitialization();
-
-        if(intvlms.length != NUM_ENCODERS)
-        {
-            throw new IllegalArgumentException("intvls.length != 8");
-        }
-
-        for(int i : intvlms)
-        {
-            Range.throwIfRangeIsInvalid(i, VELOCITY_MEASUREMENT_INTERVAL_MIN, VELOCITY_MEASUREMENT_INTERVAL_MAX);
-        }
-
-        for(int i = ENCODER_FIRST; i <= ENCODER_LAST; i++)
-        {
-            writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_2, new byte[]{CMD_SET_PARAM, PARAM_CHANNEL_VEL_INTVL, (byte)i, (byte)intvlms[i]});
-        }
+        driver.setAllVelocitySampleIntervals(intvlms);
     }
 
-    /**
-     * Read a single velocity sample interval
-     * @param idx the index of the encoder in question
-     * @return the velocity sample interval
-     */
+    @Override
     public int getSingleVelocitySampleInterval(int idx)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_1, new byte[]{CMD_READ_PARAM, PARAM_CHANNEL_VEL_INTVL, (byte)idx});
-        byte ms = readRegister(Register.COMMAND_DAT_0)[0];
-        return ms & 0xFF;
+        return driver.getSingleVelocitySampleInterval(idx);
     }
 
-    /**
-     * Reads all velocity sample intervals from the OctoQuad
-     * @return all velocity sample intervals from the OctoQuad
-     */
+    @Override
     public int[] getAllVelocitySampleIntervals()
     {
-        verifyInitialization();
-
-        int[] ret = new int[NUM_ENCODERS];
-
-        for(int i = ENCODER_FIRST; i <= ENCODER_FIRST; i++)
-        {
-            writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_1, new byte[]{CMD_READ_PARAM, PARAM_CHANNEL_VEL_INTVL, (byte)i});
-            byte ms = readRegister(Register.COMMAND_DAT_0)[0];
-            ret[i] = ms & 0xFF;
-        }
-
-        return ret;
+        return driver.getAllVelocitySampleIntervals();
     }
 
-    public static class ChannelPulseWidthParams
-    {
-        public int min_length_us;
-        public int max_length_us;
-
-        public ChannelPulseWidthParams() {};
-
-        public ChannelPulseWidthParams(int min_length_us, int max_length_us) {
-            this.min_length_us = min_length_us;
-            this.max_length_us = max_length_us;
-        }
-    }
-
-    /**
-     * Configure the minimum/maximum pulse width reported by an absolute encoder
-     * which is connected to a given channel, to allow the ability to provide
-     * accurate velocity data.
-     * These parameters will NOT be retained across power cycles, unless
-     * you call {@link #saveParametersToFlash()} ()}
-     * @param idx the channel in question
-     * @param params minimum/maximum pulse width
-     */
+    @Override
     public void setSingleChannelPulseWidthParams(int idx, ChannelPulseWidthParams params)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
-        Range.throwIfRangeIsInvalid(params.min_length_us, PULSE_WIDTH_LENGTH_MIN, PULSE_WIDTH_LENGTH_MAX);
-        Range.throwIfRangeIsInvalid(params.max_length_us, PULSE_WIDTH_LENGTH_MIN, PULSE_WIDTH_LENGTH_MAX);
-
-        if(params.max_length_us <= params.min_length_us)
-        {
-            throw new RuntimeException("params.max_length_us <= params.min_length_us");
-        }
-
-        ByteBuffer outgoing = ByteBuffer.allocate(7);
-        outgoing.order(OCTOQUAD_ENDIAN);
-        outgoing.put(CMD_SET_PARAM);
-        outgoing.put(PARAM_CHANNEL_PULSE_WIDTH_MIN_MAX);
-        outgoing.put((byte)idx);
-        outgoing.putShort((short)params.min_length_us);
-        outgoing.putShort((short)params.max_length_us);
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_5, outgoing.array());
+        driver.setSingleChannelPulseWidthParams(idx, params);
     }
 
-    /**
-     * Queries the OctoQuad to determine the currently set minimum/maxiumum pulse
-     * width for an encoder channel, to allow sane velocity data.
-     * @param idx the channel in question
-     * @return minimum/maximum pulse width
-     */
+    @Override
     public ChannelPulseWidthParams getSingleChannelPulseWidthParams(int idx)
     {
-        verifyInitialization();
-
-        Range.throwIfRangeIsInvalid(idx, ENCODER_FIRST, ENCODER_LAST);
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_1, new byte[]{CMD_READ_PARAM, PARAM_CHANNEL_PULSE_WIDTH_MIN_MAX, (byte)idx});
-        byte[] result = readContiguousRegisters(Register.COMMAND_DAT_0, Register.COMMAND_DAT_3);
-
-        ByteBuffer buffer = ByteBuffer.wrap(result);
-        buffer.order(OCTOQUAD_ENDIAN);
-
-        ChannelPulseWidthParams params = new ChannelPulseWidthParams();
-        params.min_length_us = buffer.getShort() & 0xFFFF;
-        params.max_length_us = buffer.getShort() & 0xFFFF;
-
-        return params;
+        return driver.getSingleChannelPulseWidthParams(idx);
     }
 
-    /**
-     * Run the firmware's internal reset routine
-     */
+    @Override
     public void resetEverything()
     {
-        verifyInitialization();
-
-        writeRegister(Register.COMMAND, new byte[]{CMD_RESET_EVERYTHING});
+        driver.resetEverything();
     }
 
-    public enum ChannelBankConfig
-    {
-        /**
-         * Both channel banks are configured for Quadrature input
-         */
-        ALL_QUADRATURE(0),
-
-        /**
-         * Both channel banks are configured for pulse width input
-         */
-        ALL_PULSE_WIDTH(1),
-
-        /**
-         * Bank 1 (channels 0-3) is configured for Quadrature input;
-         * Bank 2 (channels 4-7) is configured for pulse width input.
-         */
-        BANK1_QUADRATURE_BANK2_PULSE_WIDTH(2);
-
-        public byte bVal;
-
-        ChannelBankConfig(int bVal)
-        {
-            this.bVal = (byte) bVal;
-        }
-    }
-
-    /**
-     * Configures the OctoQuad's channel banks
-     * This parameter will NOT be retained across power cycles, unless
-     * you call {@link #saveParametersToFlash()} ()}
-     * @param config the channel bank configuration to use
-     */
+    @Override
     public void setChannelBankConfig(ChannelBankConfig config)
     {
-        verifyInitialization();
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_1, new byte[]{CMD_SET_PARAM, PARAM_CHANNEL_BANK_CONFIG, config.bVal});
+        driver.setChannelBankConfig(config);
     }
 
-    /**
-     * Queries the OctoQuad to determine the current channel bank configuration
-     * @return the current channel bank configuration
-     */
+    @Override
     public ChannelBankConfig getChannelBankConfig()
     {
-        verifyInitialization();
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_0, new byte[]{CMD_READ_PARAM, PARAM_CHANNEL_BANK_CONFIG});
-        byte result = readRegister(Register.COMMAND_DAT_0)[0];
-
-        for(ChannelBankConfig c : ChannelBankConfig.values())
-        {
-            if(c.bVal == result)
-            {
-                return c;
-            }
-        }
-
-        return ChannelBankConfig.ALL_QUADRATURE;
-    }
-
-    public enum I2cRecoveryMode
-    {
-        /**
-         * Does not perform any active attempts to recover a wedged I2C bus
-         */
-        NONE(0),
-
-        /**
-         * The OctoQuad will reset its I2C peripheral if 50ms elapses between
-         * byte transmissions or between bytes and start/stop conditions
-         */
-        MODE_1_PERIPH_RST_ON_FRAME_ERR(1),
-
-        /**
-         * Mode 1 actions + the OctoQuad will toggle the clock line briefly,
-         * once, after 1500ms of no communications.
-         */
-        MODE_2_M1_PLUS_SCL_IDLE_ONESHOT_TGL(2);
-
-        public byte bVal;
-
-        I2cRecoveryMode(int bVal)
-        {
-            this.bVal = (byte) bVal;
-        }
+        return driver.getChannelBankConfig();
     }
 
-    /**
-     * Configures the OctoQuad to use the specified I2C recovery mode.
-     * This parameter will NOT be retained across power cycles, unless
-     * you call {@link #saveParametersToFlash()} ()}
-     * @param mode the recovery mode to use
-     */
+    @Override
     public void setI2cRecoveryMode(I2cRecoveryMode mode)
     {
-        verifyInitialization();
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_1, new byte[]{CMD_SET_PARAM, PARAM_I2C_RECOVERY_MODE, mode.bVal});
+        driver.setI2cRecoveryMode(mode);
     }
 
-    /**
-     * Queries the OctoQuad to determine the currently configured I2C recovery mode
-     * @return the currently configured I2C recovery mode
-     */
+    @Override
     public I2cRecoveryMode getI2cRecoveryMode()
     {
-        verifyInitialization();
-
-        writeContiguousRegisters(Register.COMMAND, Register.COMMAND_DAT_0, new byte[]{CMD_READ_PARAM, PARAM_I2C_RECOVERY_MODE});
-        byte result = readRegister(Register.COMMAND_DAT_0)[0];
-
-        for(I2cRecoveryMode m : I2cRecoveryMode.values())
-        {
-            if(m.bVal == result)
-            {
-                return m;
-            }
-        }
-
-        return I2cRecoveryMode.NONE;
+        return driver.getI2cRecoveryMode();
     }
 
-    /**
-     * Stores the current state of parameters to flash, to be applied at next boot
-     */
+    @Override
     public void saveParametersToFlash()
     {
-        verifyInitialization();
-
-        writeRegister(Register.COMMAND, new byte[] {CMD_WRITE_PARAMS_TO_FLASH});
-        try
-        {
-            Thread.sleep(100);
-        }
-        catch (InterruptedException e)
-        {
-            Thread.currentThread().interrupt();
-            e.printStackTrace();
-        }
+        driver.saveParametersToFlash();
     }
 
-    // --------------------------------------------------------------------------------------------------------------------------------
-    // INTERNAL
-    //---------------------------------------------------------------------------------------------------------------------------------
-
-    private void verifyInitialization()
+    @Override
+    public FlashSave saveParametersToFlashAsync()
     {
-        if(!isInitialized)
-        {
-            byte chipId = getChipId();
-            if(chipId != OCTOQUAD_CHIP_ID)
-            {
-                RobotLog.addGlobalWarningMessage("OctoQuad does not report correct CHIP_ID value; got 0x%X, expect 0x%X", chipId, OCTOQUAD_CHIP_ID);
-            }
-
-            FirmwareVersion fw = getFirmwareVersion();
-
-            if(fw.maj != SUPPORTED_FW_VERSION_MAJ)
-            {
-                RobotLog.addGlobalWarningMessage("OctoQuad is running a different major firmware version than this driver was built for (current=%d; expect=%d)", fw.maj, SUPPORTED_FW_VERSION_MAJ);
-            }
-
-            isInitialized = true;
-        }
+        return driver.saveParametersToFlashAsync();
     }
 
-    private static int intFromBytes(byte[] bytes)
+    @Override
+    public Parameters getParameters()
     {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-        byteBuffer.order(OCTOQUAD_ENDIAN);
-        return byteBuffer.getInt();
+        return driver.getParameters();
     }
 
-    private static short shortFromBytes(byte[] bytes)
+    @Override
+    public void resyncParameters()
     {
-        ByteBuffer byteBuffer = ByteBuffer.wrap(bytes);
-        byteBuffer.order(OCTOQUAD_ENDIAN);
-        return byteBuffer.getShort();
+        driver.resyncParameters();
     }
 
-    private byte[] readRegister(Register reg)
+    @Override
+    public void invalidateParameters()
     {
-        return deviceClient.read(reg.addr, reg.length);
+        driver.invalidateParameters();
     }
 
-    private byte[] readContiguousRegisters(Register first, Register last)
+    @Override
+    public int applyParameters(Parameters target, boolean saveToFlash)
     {
-        int addrStart = first.addr;
-        int addrEnd = last.addr + last.length;
-        int bytesToRead = addrEnd-addrStart;
-
-        return deviceClient.read(addrStart, bytesToRead);
+        return driver.applyParameters(target, saveToFlash);
     }
 
-    private void writeRegister(Register reg, byte[] bytes)
+    @Override
+    public void enableCachedEncoderReads(long maxAge, TimeUnit unit)
     {
-        if(reg.length != bytes.length)
-        {
-            throw new IllegalArgumentException("reg.length != bytes.length");
-        }
-
-        deviceClient.write(reg.addr, bytes);
+        driver.enableCachedEncoderReads(maxAge, unit);
     }
 
-    private void writeContiguousRegisters(Register first, Register last, byte[] dat)
+    @Override
+    public void disableCachedEncoderReads()
     {
-        int addrStart = first.addr;
-        int addrEnd = last.addr + last.length;
-        int bytesToWrite = addrEnd-addrStart;
+        driver.disableCachedEncoderReads();
+    }
 
-        if(bytesToWrite != dat.length)
-        {
-            throw new IllegalArgumentException("bytesToWrite != dat.length");
-        }
+    @Override
+    public boolean isCachedEncoderReadsEnabled()
+    {
+        return driver.isCachedEncoderReadsEnabled();
+    }
 
-        deviceClient.write(addrStart, dat);
+    @Override
+    public long getEncoderDataAgeNanos()
+    {
+        return driver.getEncoderDataAgeNanos();
     }
 }
-
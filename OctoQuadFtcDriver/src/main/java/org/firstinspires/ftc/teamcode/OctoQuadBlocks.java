@@ -20,8 +20,8 @@ public class OctoQuadBlocks extends OctoQuad
     //---------------------------------------------------------------------------------------------------------------------------------
     private int[]   pAge = new int[OctoQuad.ENCODER_LAST + 1];
     private int[]   vAge = new int[OctoQuad.ENCODER_LAST + 1];
-    private int[]   positions = null;
-    private short[] velocities = null;
+    private int[]   positions = new int[OctoQuad.NUM_ENCODERS];
+    private short[] velocities = new short[OctoQuad.NUM_ENCODERS];
 
     /***
      * Return OctoQuad firmware version
@@ -122,7 +122,7 @@ public class OctoQuadBlocks extends OctoQuad
                     "Note: This is done automatically if you are looping reading the same encoders."
     )
     public void refreshPositions() {
-        positions = readPositionRange(ENCODER_FIRST, ENCODER_LAST);
+        readAllPositions(positions);
         java.util.Arrays.fill(pAge, 1);
     }
 
@@ -135,7 +135,7 @@ public class OctoQuadBlocks extends OctoQuad
                     "Note: This is done automatically if you are looping reading the same encoders."
     )
     public void refreshVelocities() {
-        velocities = readVelocityRange(ENCODER_FIRST, ENCODER_LAST);
+        readAllVelocities(velocities);
         java.util.Arrays.fill(vAge, 1);
     }
 
@@ -0,0 +1,369 @@
+/*
+ * Copyright (c) 2022 DigitalChickenLabs
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package org.firstinspires.ftc.teamcode;
+
+import com.qualcomm.robotcore.hardware.I2cAddr;
+import com.qualcomm.robotcore.hardware.I2cDeviceSynch;
+import com.qualcomm.robotcore.hardware.I2cWaitControl;
+import com.qualcomm.robotcore.hardware.TimestampedData;
+
+/**
+ * An {@link I2cDeviceSynch} which talks to an {@link OctoQuadTransport}, such as
+ * an {@link OctoQuadSimulator}, instead of a physical bus, so that {@link OctoQuad}
+ * can be run without hardware:
+ *
+ * <pre>
+ * OctoQuadSimulator sim = new OctoQuadSimulator();
+ * OctoQuad octoquad = new OctoQuad(new SimulatedI2cDeviceSynch(sim), true);
+ * </pre>
+ *
+ * Every read goes straight to the transport; read windows are recorded but
+ * nothing is cached, so each read costs one transaction.
+ */
+public class SimulatedI2cDeviceSynch implements I2cDeviceSynch
+{
+    private final OctoQuadTransport transport;
+
+    private I2cAddr i2cAddr = I2cAddr.create7bit(OctoQuadBase.I2C_ADDRESS);
+    private ReadWindow readWindow = null;
+    private HeartbeatAction heartbeatAction = null;
+    private int heartbeatInterval = 0;
+    private boolean engaged = true;
+    private boolean writeCoalescing = false;
+    private boolean logging = false;
+    private String loggingTag = "OctoQuadSimulator";
+    private String userConfiguredName = "octoquad";
+    private HealthStatus healthStatus = HealthStatus.HEALTHY;
+
+    public SimulatedI2cDeviceSynch(OctoQuadTransport transport)
+    {
+        this.transport = transport;
+    }
+
+    public OctoQuadTransport getTransport()
+    {
+        return transport;
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // Reads
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public byte read8()
+    {
+        return read8(0);
+    }
+
+    @Override
+    public byte read8(int ireg)
+    {
+        return read(ireg, 1)[0];
+    }
+
+    @Override
+    public byte[] read(int creg)
+    {
+        return read(0, creg);
+    }
+
+    @Override
+    public byte[] read(int ireg, int creg)
+    {
+        return readTimeStamped(ireg, creg).data;
+    }
+
+    @Override
+    public TimestampedData readTimeStamped(int creg)
+    {
+        return readTimeStamped(0, creg);
+    }
+
+    @Override
+    public TimestampedData readTimeStamped(int ireg, int creg)
+    {
+        TimestampedData result = new TimestampedData();
+        result.data = new byte[creg];
+        result.nanoTime = transport.read(ireg, result.data, 0, creg);
+        return result;
+    }
+
+    @Override
+    public TimestampedData readTimeStamped(int ireg, int creg, ReadWindow readWindowNeeded, ReadWindow readWindowSet)
+    {
+        ensureReadWindow(readWindowNeeded, readWindowSet);
+        return readTimeStamped(ireg, creg);
+    }
+
+    @Override
+    public synchronized void setReadWindow(ReadWindow window)
+    {
+        readWindow = window;
+    }
+
+    @Override
+    public synchronized ReadWindow getReadWindow()
+    {
+        return readWindow;
+    }
+
+    @Override
+    public synchronized void ensureReadWindow(ReadWindow windowNeeded, ReadWindow windowToSet)
+    {
+        if(readWindow == null || !readWindow.contains(windowNeeded))
+        {
+            readWindow = windowToSet;
+        }
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // Writes
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public void write8(int bVal)
+    {
+        write8(0, bVal);
+    }
+
+    @Override
+    public void write8(int ireg, int bVal)
+    {
+        write(ireg, new byte[]{(byte) bVal});
+    }
+
+    @Override
+    public void write(byte[] data)
+    {
+        write(0, data);
+    }
+
+    @Override
+    public void write(int ireg, byte[] data)
+    {
+        transport.write(ireg, data, 0, data.length);
+    }
+
+    @Override
+    public void write8(int bVal, I2cWaitControl waitControl)
+    {
+        write8(bVal);
+    }
+
+    @Override
+    public void write8(int ireg, int bVal, I2cWaitControl waitControl)
+    {
+        write8(ireg, bVal);
+    }
+
+    @Override
+    public void write(byte[] data, I2cWaitControl waitControl)
+    {
+        write(data);
+    }
+
+    @Override
+    public void write(int ireg, byte[] data, I2cWaitControl waitControl)
+    {
+        write(ireg, data);
+    }
+
+    @Override
+    public void waitForWriteCompletions(I2cWaitControl waitControl)
+    {
+        // Writes complete synchronously
+    }
+
+    @Override
+    public void enableWriteCoalescing(boolean enable)
+    {
+        writeCoalescing = enable;
+    }
+
+    @Override
+    public boolean isWriteCoalescingEnabled()
+    {
+        return writeCoalescing;
+    }
+
+    // --------------------------------------------------------------------------------------------------------------------------------
+    // Device housekeeping
+    //---------------------------------------------------------------------------------------------------------------------------------
+
+    @Override
+    public boolean isArmed()
+    {
+        return engaged;
+    }
+
+    @Override
+    public void engage()
+    {
+        engaged = true;
+    }
+
+    @Override
+    public boolean isEngaged()
+    {
+        return engaged;
+    }
+
+    @Override
+    public void disengage()
+    {
+        engaged = false;
+    }
+
+    @Override
+    public void setHeartbeatInterval(int ms)
+    {
+        heartbeatInterval = ms;
+    }
+
+    @Override
+    public int getHeartbeatInterval()
+    {
+        return heartbeatInterval;
+    }
+
+    @Override
+    public void setHeartbeatAction(HeartbeatAction action)
+    {
+        heartbeatAction = action;
+    }
+
+    @Override
+    public HeartbeatAction getHeartbeatAction()
+    {
+        return heartbeatAction;
+    }
+
+    @Override
+    public void setI2cAddress(I2cAddr newAddress)
+    {
+        i2cAddr = newAddress;
+    }
+
+    @Override
+    public I2cAddr getI2cAddress()
+    {
+        return i2cAddr;
+    }
+
+    @Override
+    @Deprecated
+    public void setI2cAddr(I2cAddr i2cAddr)
+    {
+        setI2cAddress(i2cAddr);
+    }
+
+    @Override
+    @Deprecated
+    public I2cAddr getI2cAddr()
+    {
+        return getI2cAddress();
+    }
+
+    @Override
+    public void setLogging(boolean enabled)
+    {
+        logging = enabled;
+    }
+
+    @Override
+    public boolean getLogging()
+    {
+        return logging;
+    }
+
+    @Override
+    public void setLoggingTag(String loggingTag)
+    {
+        this.loggingTag = loggingTag;
+    }
+
+    @Override
+    public String getLoggingTag()
+    {
+        return loggingTag;
+    }
+
+    @Override
+    public void setUserConfiguredName(String name)
+    {
+        userConfiguredName = name;
+    }
+
+    @Override
+    public String getUserConfiguredName()
+    {
+        return userConfiguredName;
+    }
+
+    @Override
+    public void setHealthStatus(HealthStatus status)
+    {
+        healthStatus = status;
+    }
+
+    @Override
+    public HealthStatus getHealthStatus()
+    {
+        return healthStatus;
+    }
+
+    @Override
+    public Manufacturer getManufacturer()
+    {
+        return Manufacturer.Other;
+    }
+
+    @Override
+    public String getDeviceName()
+    {
+        return "Simulated OctoQuad";
+    }
+
+    @Override
+    public String getConnectionInfo()
+    {
+        return "simulated";
+    }
+
+    @Override
+    public int getVersion()
+    {
+        return 1;
+    }
+
+    @Override
+    public void resetDeviceConfigurationForOpMode()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+        engaged = false;
+        healthStatus = HealthStatus.CLOSED;
+    }
+}